@@ -0,0 +1,41 @@
+package de.intranda.iiif.downloader.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.iiif.downloader.ImageUri;
+
+/**
+ * Rewriting image resource URLs to full-size image requests, for an Image API request and for a plain service ID
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImageUriBenchmark {
+
+    private final String imageRequest = SyntheticManifest.imageUri(4711);
+    private final String serviceId = SyntheticManifest.BASE_URL + "files/images/00004711.tif";
+
+    @Benchmark
+    public ImageUri resolveImageRequest() {
+        return ImageUri.resolve(imageRequest);
+    }
+
+    @Benchmark
+    public ImageUri resolveServiceId() {
+        return ImageUri.resolve(serviceId);
+    }
+}
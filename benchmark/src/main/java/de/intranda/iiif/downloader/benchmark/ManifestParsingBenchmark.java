@@ -0,0 +1,56 @@
+package de.intranda.iiif.downloader.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import de.intranda.iiif.downloader.CompactManifest;
+
+/**
+ * Reading a serialized manifest into a tree compared with the streaming parser filling a compact manifest
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ManifestParsingBenchmark {
+
+    @Param({ "1000", "20000", "200000" })
+    int canvases;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private byte[] manifest;
+
+    @Setup
+    public void setup() {
+        manifest = SyntheticManifest.generateBytes(canvases);
+    }
+
+    @Benchmark
+    public JsonNode readTree() throws IOException {
+        return mapper.readTree(new ByteArrayInputStream(manifest));
+    }
+
+    @Benchmark
+    public CompactManifest compactManifest() throws IOException {
+        return CompactManifest.read(new ByteArrayInputStream(manifest));
+    }
+}
@@ -0,0 +1,85 @@
+package de.intranda.iiif.downloader.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.intranda.iiif.downloader.CanvasSampler;
+import de.intranda.iiif.downloader.CompactManifest;
+import de.intranda.iiif.downloader.StructureFilter;
+
+/**
+ * Selecting canvases by structure on a compact manifest, like one download with --include_structure and --exclude_structure does
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class StructureSelectionBenchmark {
+    private static final List<String> INCLUDE = Collections.singletonList("Strukturtyp::Abbildung");
+    private static final List<String> EXCLUDE = Collections.singletonList("Structure type::Vorwort");
+    private static final List<String> EXPRESSIONS = Arrays.asList("(Strukturtyp::Kapitel OR Strukturtyp::Abbildung) AND NOT Strukturtyp^=Vor",
+            "\"Structure type\"@en~=^Reg");
+
+    @Param({ "1000", "20000", "200000" })
+    int canvases;
+
+    private CompactManifest manifest;
+    private StructureFilter include;
+    private StructureFilter exclude;
+    private StructureFilter expressions;
+
+    @Setup
+    public void setup() throws IOException {
+        manifest = CompactManifest.read(new ByteArrayInputStream(SyntheticManifest.generateBytes(canvases)));
+        include = StructureFilter.compile(INCLUDE, null);
+        exclude = StructureFilter.compile(null, EXCLUDE);
+        expressions = StructureFilter.compile(EXPRESSIONS, EXCLUDE);
+    }
+
+    @Benchmark
+    public StructureFilter compileFilter() {
+        return StructureFilter.compile(EXPRESSIONS, EXCLUDE);
+    }
+
+    @Benchmark
+    public int[] selectIncluded() {
+        return manifest.selectCanvases(include, false);
+    }
+
+    @Benchmark
+    public int[] selectNotExcluded() {
+        return manifest.selectCanvases(exclude, false);
+    }
+
+    @Benchmark
+    public int[] selectByExpressions() {
+        return manifest.selectCanvases(expressions, false);
+    }
+
+    /**
+     * Three random pages of every included structure, like --pages_per_structure 3 --random_images
+     */
+    @Benchmark
+    public int[] samplePerStructure() {
+        return new CanvasSampler(42).sample(manifest.selectCanvasesByStructure(expressions, false), 3, true);
+    }
+}
@@ -0,0 +1,111 @@
+package de.intranda.iiif.downloader.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Generates IIIF presentation 2 manifests of any size, shaped like the manifests of the Goobi viewer: canvases with an image service and
+ * an ALTO seeAlso, and one structure per {@link #PAGES_PER_STRUCTURE} pages with a multi-language "Strukturtyp" metadata entry
+ *
+ */
+public class SyntheticManifest {
+    public static final int PAGES_PER_STRUCTURE = 10;
+    public static final String[] STRUCTURE_TYPES = new String[] { "Kapitel", "Abbildung", "Vorwort", "Register" };
+    public static final String BASE_URL = "https://viewer.example.org/api/v1/records/PPN123/";
+
+    private static final JsonNodeFactory NODES = JsonNodeFactory.instance;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * @param canvases number of canvases
+     * @return the manifest
+     */
+    public static ObjectNode generate(int canvases) {
+        ObjectNode manifest = NODES.objectNode();
+        manifest.put("@context", "http://iiif.io/api/presentation/2/context.json");
+        manifest.put("@id", BASE_URL + "manifest/");
+        manifest.put("@type", "sc:Manifest");
+        manifest.put("label", "Synthetic manifest with " + canvases + " canvases");
+        ArrayNode canvasArray = manifest.putArray("sequences").addObject().put("@type", "sc:Sequence").putArray("canvases");
+        for (int i = 1; i <= canvases; i++) {
+            canvasArray.add(canvas(i));
+        }
+        ArrayNode structures = manifest.putArray("structures");
+        ObjectNode root = structures.addObject();
+        root.put("@id", BASE_URL + "sections/LOG_0000/range/");
+        root.put("@type", "sc:Range");
+        root.putArray("viewingHint").add("top");
+        for (int first = 1, s = 1; first <= canvases; first += PAGES_PER_STRUCTURE, s++) {
+            structures.add(structure(s, first, Math.min(first + PAGES_PER_STRUCTURE - 1, canvases)));
+        }
+        return manifest;
+    }
+
+    /**
+     * @param canvases number of canvases
+     * @return the serialized manifest
+     */
+    public static byte[] generateBytes(int canvases) {
+        try {
+            return MAPPER.writeValueAsBytes(generate(canvases));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String canvasId(int page) {
+        return BASE_URL + "pages/" + page + "/canvas/";
+    }
+
+    public static String imageUri(int page) {
+        return String.format("%sfiles/images/%08d.tif/full/!400,400/0/default.jpg", BASE_URL, page);
+    }
+
+    private static ObjectNode canvas(int page) {
+        ObjectNode canvas = NODES.objectNode();
+        canvas.put("@id", canvasId(page));
+        canvas.put("@type", "sc:Canvas");
+        canvas.put("label", page + " - ");
+        canvas.put("width", 5000);
+        canvas.put("height", 7000);
+        ObjectNode resource = canvas.putArray("images").addObject().put("@type", "oa:Annotation").put("motivation", "sc:painting").putObject(
+                "resource");
+        resource.put("@id", imageUri(page));
+        resource.put("@type", "dcTypes:Image");
+        resource.put("format", "image/jpeg");
+        ObjectNode service = resource.putObject("service");
+        service.put("@context", "http://iiif.io/api/image/2/context.json");
+        service.put("@id", String.format("%sfiles/images/%08d.tif", BASE_URL, page));
+        service.put("profile", "http://iiif.io/api/image/2/level2.json");
+        ObjectNode alto = canvas.putArray("seeAlso").addObject();
+        alto.put("@id", String.format("%sfiles/alto/%08d.xml", BASE_URL, page));
+        alto.put("format", "application/xml+alto");
+        alto.putArray("label").addObject().put("@value", "ALTO");
+        return canvas;
+    }
+
+    private static ObjectNode structure(int number, int firstPage, int lastPage) {
+        ObjectNode struct = NODES.objectNode();
+        struct.put("@id", String.format("%ssections/LOG_%04d/range/", BASE_URL, number));
+        struct.put("@type", "sc:Range");
+        struct.set("label", languages("Abschnitt " + number, "Section " + number));
+        ObjectNode meta = struct.putArray("metadata").addObject();
+        meta.set("label", languages("Strukturtyp", "Structure type"));
+        meta.put("value", STRUCTURE_TYPES[number % STRUCTURE_TYPES.length]);
+        ArrayNode canvases = struct.putArray("canvases");
+        for (int page = firstPage; page <= lastPage; page++) {
+            canvases.add(canvasId(page));
+        }
+        return struct;
+    }
+
+    private static JsonNode languages(String de, String en) {
+        ArrayNode arr = NODES.arrayNode();
+        arr.addObject().put("@language", "de").put("@value", de);
+        arr.addObject().put("@language", "en").put("@value", en);
+        return arr;
+    }
+}
@@ -0,0 +1,246 @@
+package de.intranda.iiif.downloader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Extracts the plain text and the word coordinates of an ALTO file with a StAX parser, so it can be done on the stream while the file is
+ * downloaded, with constant memory. Elements are matched by their local names, so all ALTO versions are read.
+ * <p>
+ * The text has one line per TextLine and an empty line between TextBlocks. Words hyphenated at the end of a line are written as a whole
+ * if the file contains the full word (SUBS_CONTENT). The word file has a header and one tab-separated line per String: the number of its
+ * TextLine in the file, HPOS, VPOS, WIDTH, HEIGHT (as in the file, usually pixels) and CONTENT.
+ *
+ */
+public class AltoTextExtractor {
+    public static final String TEXT_SUFFIX = ".txt";
+    public static final String WORDS_SUFFIX = ".words.tsv";
+    private static final String XML_SUFFIX = ".xml";
+    private static final XMLInputFactory FACTORY = newFactory();
+
+    private final boolean text;
+    private final boolean words;
+    private final boolean keepXml;
+
+    /**
+     * @param text write the plain text
+     * @param words write the word coordinates
+     * @param keepXml store the ALTO file as well
+     */
+    public AltoTextExtractor(boolean text, boolean words, boolean keepXml) {
+        if (!text && !words) {
+            throw new IllegalArgumentException("nothing to extract");
+        }
+        this.text = text;
+        this.words = words;
+        this.keepXml = keepXml;
+    }
+
+    private static XMLInputFactory newFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // ALTO files come from remote servers, never resolve anything they point to
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    public boolean isText() {
+        return text;
+    }
+
+    public boolean isWords() {
+        return words;
+    }
+
+    public boolean isKeepXml() {
+        return keepXml;
+    }
+
+    /**
+     * @param xmlFile the path of the ALTO file
+     * @return the file a download of this ALTO file is recorded under: the ALTO file itself, or the first extracted file if it is not
+     *         kept
+     */
+    public Path primaryFile(Path xmlFile) {
+        if (keepXml) {
+            return xmlFile;
+        }
+        return text ? textFile(xmlFile) : wordsFile(xmlFile);
+    }
+
+    /**
+     * @param file the ALTO file or one of the files extracted from it
+     * @return the ALTO file
+     */
+    public static Path xmlFile(Path file) {
+        return file.resolveSibling(baseName(file) + XML_SUFFIX);
+    }
+
+    /**
+     * @param file the ALTO file or one of the files extracted from it
+     * @return all files written for the ALTO file
+     */
+    public List<Path> files(Path file) {
+        List<Path> files = new ArrayList<>();
+        if (keepXml) {
+            files.add(xmlFile(file));
+        }
+        if (text) {
+            files.add(textFile(file));
+        }
+        if (words) {
+            files.add(wordsFile(file));
+        }
+        return files;
+    }
+
+    /**
+     * @param file the ALTO file or one of the files extracted from it
+     * @return the plain text file of the ALTO file
+     */
+    public static Path textFile(Path file) {
+        return file.resolveSibling(baseName(file) + TEXT_SUFFIX);
+    }
+
+    /**
+     * @param file the ALTO file or one of the files extracted from it
+     * @return the word coordinate file of the ALTO file
+     */
+    public static Path wordsFile(Path file) {
+        return file.resolveSibling(baseName(file) + WORDS_SUFFIX);
+    }
+
+    private static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        for (String suffix : new String[] { WORDS_SUFFIX, TEXT_SUFFIX, XML_SUFFIX }) {
+            if (name.endsWith(suffix)) {
+                return name.substring(0, name.length() - suffix.length());
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Reads an ALTO document and writes its text and words. The stream is read up to the end of the document and not closed.
+     *
+     * @param in
+     * @param textOut receives the plain text, may be null
+     * @param wordsOut receives the word coordinates, may be null
+     * @throws IOException if the stream cannot be read or is not an XML document
+     */
+    public static void extract(InputStream in, Writer textOut, Writer wordsOut) throws IOException {
+        XMLStreamReader reader;
+        try {
+            // the parser of the JDK closes the stream at the end of the document
+            reader = FACTORY.createXMLStreamReader(new FilterInputStream(in) {
+                @Override
+                public void close() {
+                    // left to the caller
+                }
+            });
+        } catch (XMLStreamException e) {
+            throw new IOException("could not read ALTO: " + e.getMessage(), e);
+        }
+        if (wordsOut != null) {
+            wordsOut.write("line\thpos\tvpos\twidth\theight\tcontent\n");
+        }
+        int line = 0;
+        boolean anyText = false;
+        boolean lineHasText = false;
+        // the full word was written for the first part of a hyphenated word, so the hyphen and the second part are left out
+        boolean hyphenationResolved = false;
+        try {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "TextBlock":
+                            if (textOut != null && anyText) {
+                                textOut.write('\n');
+                            }
+                            break;
+                        case "TextLine":
+                            line++;
+                            lineHasText = false;
+                            break;
+                        case "String":
+                            String content = attribute(reader, "CONTENT");
+                            if (wordsOut != null) {
+                                writeWord(wordsOut, line, reader, content);
+                            }
+                            if (textOut == null) {
+                                break;
+                            }
+                            String subsType = attribute(reader, "SUBS_TYPE");
+                            String subsContent = attribute(reader, "SUBS_CONTENT");
+                            if ("HypPart2".equals(subsType) && hyphenationResolved) {
+                                hyphenationResolved = false;
+                                break;
+                            }
+                            hyphenationResolved = "HypPart1".equals(subsType) && !subsContent.isEmpty();
+                            String word = hyphenationResolved ? subsContent : content;
+                            if (!word.isEmpty()) {
+                                if (lineHasText) {
+                                    textOut.write(' ');
+                                }
+                                textOut.write(word);
+                                lineHasText = true;
+                                anyText = true;
+                            }
+                            break;
+                        case "HYP":
+                            if (textOut != null && !hyphenationResolved) {
+                                String hyphen = attribute(reader, "CONTENT");
+                                textOut.write(hyphen.isEmpty() ? "-" : hyphen);
+                                lineHasText = true;
+                                anyText = true;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "TextLine".equals(reader.getLocalName())) {
+                    if (textOut != null && lineHasText) {
+                        textOut.write('\n');
+                    }
+                    lineHasText = false;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("could not read ALTO: " + e.getMessage(), e);
+        } finally {
+            try {
+                reader.close();
+            } catch (XMLStreamException e) {
+                // does not close the stream
+            }
+        }
+    }
+
+    private static void writeWord(Writer out, int line, XMLStreamReader reader, String content) throws IOException {
+        out.write(Integer.toString(line));
+        for (String name : new String[] { "HPOS", "VPOS", "WIDTH", "HEIGHT" }) {
+            out.write('\t');
+            out.write(attribute(reader, name));
+        }
+        out.write('\t');
+        // keep one word per line
+        out.write(content.replaceAll("[\\t\\r\\n]", " "));
+        out.write('\n');
+    }
+
+    private static String attribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+}
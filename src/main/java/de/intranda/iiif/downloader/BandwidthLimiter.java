@@ -0,0 +1,49 @@
+package de.intranda.iiif.downloader;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket limiting the total download bandwidth of all connections. Bursts of up to one second are allowed.
+ *
+ */
+public class BandwidthLimiter {
+    private final double bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        if (bytesPerSecond < 1) {
+            throw new IllegalArgumentException("the bandwidth must be at least 1 byte per second");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+    }
+
+    /**
+     * Takes tokens for data that was received, and waits until the bucket is no longer in debt
+     *
+     * @param bytes
+     * @throws InterruptedIOException
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) / 1e9 * bytesPerSecond);
+            lastRefill = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens / bytesPerSecond * 1e9) : 0;
+        }
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while limiting the bandwidth");
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package de.intranda.iiif.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes one tab-separated line per finished manifest of a batch: manifest URL, destination, status ("ok", "failed" or "manifest_error"),
+ * number of queued files, number of skipped files and number of failed files
+ *
+ */
+public class BatchSummary implements Closeable {
+    private final PrintWriter writer;
+    private final boolean closeWriter;
+    private int failedJobs;
+
+    public BatchSummary(Path file) throws IOException {
+        this(new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8)), true);
+    }
+
+    public BatchSummary(PrintStream out) {
+        this(new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), false);
+    }
+
+    private BatchSummary(PrintWriter writer, boolean closeWriter) {
+        this.writer = writer;
+        this.closeWriter = closeWriter;
+        writer.println("manifest\tdestination\tstatus\tfiles\tskipped\tfailed");
+        writer.flush();
+    }
+
+    public synchronized void jobCompleted(DownloadJob job) {
+        String status;
+        if (job.getManifestError() != null) {
+            status = "manifest_error";
+        } else if (!job.getFailures().isEmpty()) {
+            status = "failed";
+        } else {
+            status = "ok";
+        }
+        if (!"ok".equals(status)) {
+            failedJobs++;
+        }
+        writer.println(String.join("\t", job.getManifestUrl(), job.getDestination().toString(), status, Integer.toString(job.getQueued()),
+                Integer.toString(job.getSkipped()), Integer.toString(job.getFailures().size())));
+        writer.flush();
+    }
+
+    /**
+     * Counts a line of the batch file that could not be read as a failed job
+     */
+    public synchronized void lineSkipped() {
+        failedJobs++;
+    }
+
+    public synchronized int getFailedJobs() {
+        return failedJobs;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closeWriter) {
+            writer.close();
+        } else {
+            writer.flush();
+        }
+    }
+}
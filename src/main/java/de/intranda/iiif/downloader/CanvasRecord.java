@@ -0,0 +1,18 @@
+package de.intranda.iiif.downloader;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Data class holding the parts of a canvas needed for downloading. The ID is normalized with
+ * {@link StreamingManifestParser#normalizeId(String)}, the ALTO URL is null if the canvas does not link to an ALTO file.
+ *
+ */
+@Data
+@AllArgsConstructor
+public class CanvasRecord {
+    String id;
+    String label;
+    String imageUri;
+    String altoUri;
+}
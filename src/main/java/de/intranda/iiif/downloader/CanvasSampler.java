@@ -0,0 +1,139 @@
+package de.intranda.iiif.downloader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Random selection of canvases that can be repeated with the same seed. All samples keep the manifest order of the selected canvases and
+ * need memory only for the selected canvases, not for all canvases of the manifest.
+ *
+ */
+public class CanvasSampler {
+    private final Random random;
+
+    /**
+     * @param seed the same seed selects the same canvases from the same manifest
+     */
+    public CanvasSampler(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Selects k of n indexes with Floyd's algorithm
+     *
+     * @param n
+     * @param k
+     * @return min(k, n) distinct indexes in ascending order
+     */
+    public int[] sample(int n, int k) {
+        if (k >= n) {
+            int[] all = new int[n];
+            for (int i = 0; i < n; i++) {
+                all[i] = i;
+            }
+            return all;
+        }
+        Set<Integer> selected = new HashSet<>(k * 2);
+        for (int j = n - k; j < n; j++) {
+            int t = random.nextInt(j + 1);
+            selected.add(selected.contains(t) ? j : t);
+        }
+        int[] sample = new int[k];
+        int i = 0;
+        for (int index : selected) {
+            sample[i++] = index;
+        }
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    /**
+     * Selects k of the given values
+     *
+     * @param values
+     * @param k
+     * @return min(k, values.length) values in their original order
+     */
+    public int[] sample(int[] values, int k) {
+        int[] indexes = sample(values.length, k);
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = values[indexes[i]];
+        }
+        return indexes;
+    }
+
+    /**
+     * Stratified sampling: selects up to k values from each group, e.g. k pages from each chapter
+     *
+     * @param groups
+     * @param k
+     * @param random select random values instead of the first ones of each group
+     * @return the distinct selected values of all groups in ascending order. A value selected in several overlapping groups is taken once.
+     */
+    public int[] sample(List<int[]> groups, int k, boolean random) {
+        List<int[]> parts = new ArrayList<>(groups.size());
+        for (int[] group : groups) {
+            parts.add(random ? sample(group, k) : Arrays.copyOf(group, Math.min(k, group.length)));
+        }
+        return CompactManifest.union(parts);
+    }
+
+    /**
+     * @param k
+     * @return a reservoir that selects k of the values added to it
+     */
+    public <T> Reservoir<T> reservoir(int k) {
+        return new Reservoir<>(k);
+    }
+
+    /**
+     * Reservoir sampling for streams of unknown length: every added value has the same chance to be in the sample, but only k values are
+     * kept at any time
+     */
+    public class Reservoir<T> {
+        private final int k;
+        private final List<T> values;
+        private final long[] positions;
+        private long count;
+
+        private Reservoir(int k) {
+            this.k = k;
+            this.values = new ArrayList<>(k);
+            this.positions = new long[k];
+        }
+
+        public void add(T value) {
+            if (count < k) {
+                positions[values.size()] = count;
+                values.add(value);
+            } else {
+                long j = (long) (random.nextDouble() * (count + 1));
+                if (j < k) {
+                    values.set((int) j, value);
+                    positions[(int) j] = count;
+                }
+            }
+            count++;
+        }
+
+        /**
+         * @return the sample in the order the values were added
+         */
+        public List<T> getSample() {
+            Integer[] order = new Integer[values.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Long.compare(positions[a], positions[b]));
+            List<T> sample = new ArrayList<>(order.length);
+            for (int i : order) {
+                sample.add(values.get(i));
+            }
+            return sample;
+        }
+    }
+}
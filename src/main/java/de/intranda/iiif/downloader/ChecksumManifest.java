@@ -0,0 +1,123 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the SHA-256 digests of the files of a job and writes them as a checksum manifest in the format of a BagIt payload manifest
+ * ("manifest-sha256.txt"): one line per file with the hex digest, two spaces and the path relative to the destination folder.
+ * <p>
+ * The digests are calculated while the files are downloaded, so the files do not have to be read again for verification.
+ *
+ */
+public class ChecksumManifest {
+    public static final String FILE_NAME = "manifest-sha256.txt";
+    private static final String ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final Path destination;
+    private final boolean linkDuplicates;
+    // sorted by path, so the manifest does not depend on the order in which downloads finish
+    private final Map<String, String> digests = new TreeMap<>();
+    private final Map<String, Path> filesByDigest = new HashMap<>();
+
+    /**
+     * @param destination the folder the paths in the manifest are relative to
+     * @param linkDuplicates find earlier files with the same content, so they can be hard-linked instead of stored twice
+     */
+    public ChecksumManifest(Path destination, boolean linkDuplicates) {
+        this.destination = destination;
+        this.linkDuplicates = linkDuplicates;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Updates the digest with the content of a file
+     *
+     * @param file
+     * @param digest
+     * @return the digest
+     * @throws IOException
+     */
+    public static MessageDigest update(Path file, MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * Records the digest of a finished file
+     *
+     * @param file
+     * @param digest
+     * @return a different file recorded before with the same content if duplicates are linked, otherwise null
+     */
+    public synchronized Path record(Path file, byte[] digest) {
+        String hex = toHex(digest);
+        digests.put(destination.relativize(file).toString().replace('\\', '/'), hex);
+        if (!linkDuplicates) {
+            return null;
+        }
+        Path original = filesByDigest.putIfAbsent(hex, file);
+        return original == null || original.equals(file) ? null : original;
+    }
+
+    /**
+     * @return the content of the manifest
+     */
+    public synchronized byte[] toBytes() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : digests.entrySet()) {
+            sb.append(e.getValue()).append("  ").append(encodePath(e.getKey())).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the manifest into the destination folder
+     *
+     * @throws IOException
+     */
+    public void write() throws IOException {
+        Path file = destination.resolve(FILE_NAME);
+        Path partFile = FileDownloader.partFile(file);
+        Files.write(partFile, toBytes());
+        FileDownloader.moveToTarget(partFile, file);
+    }
+
+    /**
+     * Encodes line breaks and percent signs in a path, as required by BagIt
+     */
+    private static String encodePath(String path) {
+        return path.replace("%", "%25").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,200 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Walks a IIIF collection and all collections nested in it, and hands every manifest to a pool of manifest workers. Collection documents
+ * are read as a stream, one member at a time, and only the IDs of their manifests are kept. Each document (or page of a paged collection)
+ * is read completely before its manifests are handed to the workers, so the response is not held open while the crawler waits for them.
+ * Only a few manifests wait for a worker at any time. Each collection and manifest is visited only once.
+ * <p>
+ * Presentation API 2 collections ("collections", "manifests", "members", paged with "first" and "next") and Presentation API 3 collections
+ * ("items") are supported.
+ *
+ */
+public class CollectionCrawler {
+
+    /**
+     * Processes a manifest. Called concurrently from the manifest workers; exceptions must be handled by the implementation.
+     */
+    @FunctionalInterface
+    public interface ManifestHandler {
+        void onManifest(String manifestUrl);
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+
+    private final HttpDownloadClient client;
+    private final ManifestHandler handler;
+    private final int manifestThreads;
+    private final UrlSet visited = new UrlSet();
+    private final Deque<String> collections = new ArrayDeque<>();
+    private int manifests;
+    private int collectionErrors;
+
+    /**
+     * @param client
+     * @param manifestThreads the number of manifests processed at the same time
+     * @param handler
+     */
+    public CollectionCrawler(HttpDownloadClient client, int manifestThreads, ManifestHandler handler) {
+        this.client = client;
+        this.manifestThreads = manifestThreads;
+        this.handler = handler;
+    }
+
+    /**
+     * Crawls the collection and returns when all manifests have been handled. If the URL points to a manifest, only this manifest is
+     * handled.
+     *
+     * @param collectionUrl
+     * @throws InterruptedException
+     */
+    public void crawl(String collectionUrl) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(manifestThreads);
+        Semaphore waitingManifests = new Semaphore(manifestThreads * 2);
+        try {
+            visited.add(StreamingManifestParser.normalizeId(collectionUrl));
+            collections.push(collectionUrl);
+            while (!collections.isEmpty()) {
+                String url = collections.pop();
+                List<String> found;
+                try {
+                    found = readCollection(url);
+                } catch (IOException e) {
+                    collectionErrors++;
+                    System.err.println(String.format("could not read collection %s: %s", url, e));
+                    continue;
+                }
+                for (String manifestUrl : found) {
+                    waitingManifests.acquire();
+                    manifests++;
+                    workers.execute(() -> {
+                        try {
+                            handler.onManifest(manifestUrl);
+                        } finally {
+                            waitingManifests.release();
+                        }
+                    });
+                }
+            }
+        } finally {
+            workers.shutdown();
+        }
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * Reads a collection document and queues the collections it refers to
+     *
+     * @return the IDs of the manifests of the collection, or the URL itself if it is a manifest
+     */
+    private List<String> readCollection(String url) throws IOException {
+        List<String> found = new ArrayList<>();
+        try (HttpDownloadClient.Response response = client.get(url, null, true)) {
+            if (response.getStatusCode() != 200) {
+                throw new HttpStatusException(response.getStatusCode(), response.getUrl(), response.getHeader("Retry-After"));
+            }
+            try (InputStream in = response.getBody(); JsonParser parser = FACTORY.createParser(in)) {
+                parser.setCodec(MAPPER);
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("not a JSON object: " + url);
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getText();
+                    JsonToken token = parser.nextToken();
+                    if (("@type".equals(field) || "type".equals(field)) && token == JsonToken.VALUE_STRING
+                            && parser.getText().endsWith("Manifest")) {
+                        // not a collection after all
+                        response.abort();
+                        found.add(url);
+                        return found;
+                    }
+                    switch (field) {
+                        case "collections":
+                        case "manifests":
+                        case "members":
+                        case "items":
+                            if (token == JsonToken.START_ARRAY) {
+                                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                                    addMember(parser.readValueAsTree(), field, found);
+                                }
+                            } else {
+                                parser.skipChildren();
+                            }
+                            break;
+                        case "first":
+                        case "next":
+                            // pages of a paged collection
+                            addCollection(id(parser.readValueAsTree()));
+                            break;
+                        default:
+                            parser.skipChildren();
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private void addMember(JsonNode member, String field, List<String> found) {
+        String id = id(member);
+        if (id == null) {
+            return;
+        }
+        String type = member.has("@type") ? member.get("@type").asText() : member.path("type").asText();
+        if (type.endsWith("Collection") || (type.isEmpty() && "collections".equals(field))) {
+            addCollection(id);
+        } else if ((type.endsWith("Manifest") || (type.isEmpty() && "manifests".equals(field)))
+                && visited.add(StreamingManifestParser.normalizeId(id))) {
+            found.add(id);
+        }
+    }
+
+    private void addCollection(String id) {
+        if (id != null && visited.add(StreamingManifestParser.normalizeId(id))) {
+            collections.push(id);
+        }
+    }
+
+    private static String id(JsonNode node) {
+        if (node == null) {
+            return null;
+        }
+        if (node.isTextual()) {
+            return node.asText();
+        }
+        JsonNode id = node.has("@id") ? node.get("@id") : node.get("id");
+        return id == null ? null : id.asText();
+    }
+
+    /**
+     * @return the number of manifests found
+     */
+    public int getManifests() {
+        return manifests;
+    }
+
+    /**
+     * @return the number of collections that could not be read
+     */
+    public int getCollectionErrors() {
+        return collectionErrors;
+    }
+}
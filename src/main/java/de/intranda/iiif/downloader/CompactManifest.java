@@ -0,0 +1,288 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of a manifest needed for downloading, in a compact form: the canvases of the first sequence are kept in parallel arrays, and
+ * structures refer to them by index instead of by ID. Repeated texts like metadata labels and values are stored only once. Filled by the
+ * {@link StreamingManifestParser}, so the manifest is never held as a JSON tree.
+ *
+ */
+public class CompactManifest implements StreamingManifestParser.Handler {
+    private static final int[] NO_CANVASES = new int[0];
+
+    /**
+     * A structure with its metadata and the indexes of its canvases
+     */
+    private static class Structure {
+        final LabelValuePair[] metadata;
+        final int[] canvases;
+
+        Structure(LabelValuePair[] metadata, int[] canvases) {
+            this.metadata = metadata;
+            this.canvases = canvases;
+        }
+    }
+
+    private String[] ids = new String[64];
+    private String[] labels = new String[64];
+    private String[] imageUris = new String[64];
+    private String[] altoUris = new String[64];
+    private int size;
+    private final List<Structure> structures = new ArrayList<>();
+
+    // only needed while parsing, dropped by compact()
+    private Map<String, Integer> indexById = new HashMap<>();
+    private Map<String, String> texts = new HashMap<>();
+    private List<StructureRecord> unresolved = new ArrayList<>();
+
+    /**
+     * Parses a manifest into a compact manifest
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static CompactManifest read(InputStream in) throws IOException {
+        CompactManifest manifest = new CompactManifest();
+        StreamingManifestParser.parse(in, manifest);
+        manifest.compact();
+        return manifest;
+    }
+
+    @Override
+    public boolean onCanvas(CanvasRecord canvas) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            labels = Arrays.copyOf(labels, capacity);
+            imageUris = Arrays.copyOf(imageUris, capacity);
+            altoUris = Arrays.copyOf(altoUris, capacity);
+        }
+        ids[size] = canvas.getId();
+        labels[size] = text(canvas.getLabel());
+        imageUris[size] = canvas.getImageUri();
+        altoUris[size] = canvas.getAltoUri();
+        // structures refer to the first canvas with an ID, like the lookups on the manifest tree
+        indexById.putIfAbsent(canvas.getId(), size);
+        size++;
+        return true;
+    }
+
+    @Override
+    public void onStructure(StructureRecord structure) {
+        // structures listed before the sequence are resolved when parsing is done
+        for (String id : structure.getCanvasIds()) {
+            if (!indexById.containsKey(id)) {
+                unresolved.add(structure);
+                structures.add(null);
+                return;
+            }
+        }
+        structures.add(resolve(structure));
+    }
+
+    private Structure resolve(StructureRecord structure) {
+        LabelValuePair[] metadata = new LabelValuePair[structure.getMetadata().size()];
+        for (int i = 0; i < metadata.length; i++) {
+            LabelValuePair pair = structure.getMetadata().get(i);
+            metadata[i] = new LabelValuePair(text(pair.getLabel()), text(pair.getValue()), text(pair.getLanguage()));
+        }
+        int[] canvases = structure.getCanvasIds().isEmpty() ? NO_CANVASES : new int[structure.getCanvasIds().size()];
+        int count = 0;
+        for (String id : structure.getCanvasIds()) {
+            Integer index = indexById.get(id);
+            // canvases that are not in the sequence cannot be downloaded
+            if (index != null) {
+                canvases[count++] = index;
+            }
+        }
+        return new Structure(metadata, count == canvases.length ? canvases : Arrays.copyOf(canvases, count));
+    }
+
+    private String text(String text) {
+        if (text == null) {
+            return null;
+        }
+        String known = texts.putIfAbsent(text, text);
+        return known == null ? text : known;
+    }
+
+    /**
+     * Resolves the remaining structures and drops everything that was only needed for parsing
+     */
+    public void compact() {
+        if (indexById == null) {
+            return;
+        }
+        int next = 0;
+        for (int i = 0; i < structures.size(); i++) {
+            if (structures.get(i) == null) {
+                structures.set(i, resolve(unresolved.get(next++)));
+            }
+        }
+        ids = Arrays.copyOf(ids, size);
+        labels = Arrays.copyOf(labels, size);
+        imageUris = Arrays.copyOf(imageUris, size);
+        altoUris = Arrays.copyOf(altoUris, size);
+        indexById = null;
+        texts = null;
+        unresolved = null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getStructureCount() {
+        return structures.size();
+    }
+
+    /**
+     * @param index
+     * @return the metadata of the structure with this index, in manifest order
+     */
+    public List<LabelValuePair> getStructureMetadata(int index) {
+        return Collections.unmodifiableList(Arrays.asList(structures.get(index).metadata));
+    }
+
+    /**
+     * @param index
+     * @return the canvas with this index, as a new record
+     */
+    public CanvasRecord getCanvas(int index) {
+        return new CanvasRecord(ids[index], labels[index], imageUris[index], altoUris[index]);
+    }
+
+    /**
+     * @param indexes
+     * @return the canvases with these indexes, as new records
+     */
+    public List<CanvasRecord> getCanvases(int[] indexes) {
+        List<CanvasRecord> canvases = new ArrayList<>(indexes.length);
+        for (int index : indexes) {
+            canvases.add(getCanvas(index));
+        }
+        return canvases;
+    }
+
+    /**
+     * @return all canvases in manifest order, as a read-only view that creates the records on access
+     */
+    public List<CanvasRecord> getCanvases() {
+        return new AbstractList<CanvasRecord>() {
+            @Override
+            public CanvasRecord get(int index) {
+                if (index >= size) {
+                    throw new IndexOutOfBoundsException("canvas " + index + " of " + size);
+                }
+                return getCanvas(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Selects canvases by exact label-value pairs, see {@link #selectCanvases(StructureFilter, boolean)}
+     */
+    public int[] selectCanvases(List<LabelValuePair> include, List<LabelValuePair> exclude, boolean firstPageOnly) {
+        return selectCanvases(StructureFilter.of(include, exclude), firstPageOnly);
+    }
+
+    /**
+     * Selects canvases by exact label-value pairs, see {@link #selectCanvasesByStructure(StructureFilter, boolean)}
+     */
+    public List<int[]> selectCanvasesByStructure(List<LabelValuePair> include, List<LabelValuePair> exclude, boolean firstPageOnly) {
+        return selectCanvasesByStructure(StructureFilter.of(include, exclude), firstPageOnly);
+    }
+
+    /**
+     * Selects canvases: if the filter has include expressions, the canvases of all matching structures are taken, otherwise all canvases.
+     * Canvases belonging to a structure matching an exclude expression are dropped.
+     *
+     * @param filter
+     * @param firstPageOnly only take (and check) the first canvas of each structure
+     * @return the indexes of the selected canvases in manifest order, each only once even if it belongs to several matching structures
+     */
+    public int[] selectCanvases(StructureFilter filter, boolean firstPageOnly) {
+        return union(selectCanvasesByStructure(filter, firstPageOnly));
+    }
+
+    /**
+     * @param groups canvas indexes, which may overlap
+     * @return the distinct indexes of all groups in ascending order
+     */
+    static int[] union(List<int[]> groups) {
+        BitSet all = new BitSet();
+        for (int[] group : groups) {
+            for (int index : group) {
+                all.set(index);
+            }
+        }
+        return all.stream().toArray();
+    }
+
+    /**
+     * Selects canvases like {@link #selectCanvases(StructureFilter, boolean)}, but keeps the canvases of each included structure apart.
+     * The metadata of each structure is only matched once, for include and exclude together.
+     *
+     * @param filter
+     * @param firstPageOnly
+     * @return the indexes of the selected canvases of each matching structure in manifest order, or a single group of all canvases that
+     *         are not excluded if there are no include expressions. Nested or overlapping structures share canvases.
+     */
+    public List<int[]> selectCanvasesByStructure(StructureFilter filter, boolean firstPageOnly) {
+        compact();
+        BitSet excluded = new BitSet(size);
+        List<Structure> included = new ArrayList<>();
+        if (filter.hasInclude() || filter.hasExclude()) {
+            for (Structure struct : structures) {
+                int match = filter.match(struct.metadata);
+                if ((match & StructureFilter.INCLUDE) != 0) {
+                    included.add(struct);
+                }
+                if ((match & StructureFilter.EXCLUDE) != 0) {
+                    int end = firstPageOnly ? Math.min(1, struct.canvases.length) : struct.canvases.length;
+                    for (int i = 0; i < end; i++) {
+                        excluded.set(struct.canvases[i]);
+                    }
+                }
+            }
+        }
+        List<int[]> groups = new ArrayList<>();
+        if (!filter.hasInclude()) {
+            int[] selected = new int[size - excluded.cardinality()];
+            for (int i = excluded.nextClearBit(0), count = 0; i < size; i = excluded.nextClearBit(i + 1)) {
+                selected[count++] = i;
+            }
+            groups.add(selected);
+            return groups;
+        }
+        // a structure may be excluded by a later one, so the canvases are only taken when all structures are matched
+        for (Structure struct : included) {
+            int end = firstPageOnly ? Math.min(1, struct.canvases.length) : struct.canvases.length;
+            int[] selected = new int[end];
+            int count = 0;
+            for (int i = 0; i < end; i++) {
+                if (!excluded.get(struct.canvases[i])) {
+                    selected[count++] = struct.canvases[i];
+                }
+            }
+            groups.add(count == end ? selected : Arrays.copyOf(selected, count));
+        }
+        return groups;
+    }
+}
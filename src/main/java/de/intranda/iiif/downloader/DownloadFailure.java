@@ -0,0 +1,15 @@
+package de.intranda.iiif.downloader;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Data class to record a download that could not be completed
+ *
+ */
+@Data
+@AllArgsConstructor
+public class DownloadFailure {
+    DownloadItem item;
+    String message;
+}
@@ -0,0 +1,28 @@
+package de.intranda.iiif.downloader;
+
+import java.nio.file.Path;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Data class describing a single file that should be fetched from a IIIF server
+ *
+ */
+@Data
+@AllArgsConstructor
+public class DownloadItem {
+    public enum Kind {
+        IMAGE,
+        ALTO,
+        /** an image requested from its image service as negotiated by the {@link ImageRequest}, the URL is the ID of the service */
+        SERVICE_IMAGE,
+        /** an image assembled from the tiles of an image service, the URL is the ID of the service */
+        TILED_IMAGE
+    }
+
+    String url;
+    Path target;
+    Kind kind;
+    DownloadJob job;
+}
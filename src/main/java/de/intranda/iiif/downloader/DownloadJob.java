@@ -0,0 +1,111 @@
+package de.intranda.iiif.downloader;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Downloads of a single manifest into a single destination folder. Several jobs can share one {@link DownloadScheduler}; each queued
+ * {@link DownloadItem} refers to its job, so that results are counted per manifest.
+ *
+ */
+public class DownloadJob {
+    @Getter
+    private final String manifestUrl;
+    @Getter
+    private final Path destination;
+    @Getter
+    @Setter
+    private volatile DownloadJournal journal;
+    @Getter
+    @Setter
+    private volatile String manifestError;
+    /** the digests of the downloaded files, null if they are not calculated */
+    @Getter
+    @Setter
+    private volatile ChecksumManifest checksums;
+    /** extracts the text of ALTO files while they are downloaded, null if only the ALTO files are stored */
+    @Getter
+    @Setter
+    private volatile AltoTextExtractor altoText;
+    /** jobs with a higher priority are downloaded first when they share a {@link DownloadScheduler} with other jobs */
+    @Getter
+    @Setter
+    private volatile int priority;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger finished = new AtomicInteger();
+    // one extra count for the queueing itself, so the job cannot complete before all items are queued
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final List<DownloadFailure> failures = Collections.synchronizedList(new ArrayList<>());
+    private final Consumer<DownloadJob> onComplete;
+
+    /**
+     * @param manifestUrl
+     * @param destination
+     * @param onComplete called once, after queueing has finished and all queued items are done
+     */
+    public DownloadJob(String manifestUrl, Path destination, Consumer<DownloadJob> onComplete) {
+        this.manifestUrl = manifestUrl;
+        this.destination = destination;
+        this.onComplete = onComplete;
+    }
+
+    void itemQueued() {
+        queued.incrementAndGet();
+        pending.incrementAndGet();
+    }
+
+    void itemFinished(DownloadFailure failure) {
+        if (failure != null) {
+            failures.add(failure);
+        }
+        finished.incrementAndGet();
+        countDown();
+    }
+
+    public void itemSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    /**
+     * Marks the end of queueing. The job completes as soon as all queued items are done.
+     */
+    public void queueingFinished() {
+        countDown();
+    }
+
+    private void countDown() {
+        if (pending.decrementAndGet() == 0 && onComplete != null) {
+            onComplete.accept(this);
+        }
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of queued items that are downloaded or failed
+     */
+    public int getFinished() {
+        return finished.get();
+    }
+
+    public int getSkipped() {
+        return skipped.get();
+    }
+
+    public List<DownloadFailure> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+}
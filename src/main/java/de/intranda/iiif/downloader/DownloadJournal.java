@@ -0,0 +1,140 @@
+package de.intranda.iiif.downloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Append-only journal in the destination folder recording which files were started and completed. It is used to skip finished files and to
+ * resume partial ones when a download is repeated.
+ * <p>
+ * Each line has the tab-separated fields status ("started" or "done"), size, validator (strong ETag or Last-Modified, "-" if none), URL and
+ * file name. The last line for a file wins.
+ *
+ */
+public class DownloadJournal implements Closeable {
+    public static final String FILE_NAME = ".iiif-downloader-journal";
+
+    private static final String STARTED = "started";
+    private static final String DONE = "done";
+    private static final String NO_VALIDATOR = "-";
+
+    @Data
+    @AllArgsConstructor
+    public static class Entry {
+        boolean done;
+        long size;
+        String validator;
+        String url;
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private final BufferedWriter writer;
+
+    private DownloadJournal(Path journalFile) throws IOException {
+        if (Files.exists(journalFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    parseLine(line);
+                }
+            }
+        }
+        // rewrite the journal with only the latest entry per file, so that repeated runs do not let it grow without bounds
+        Path compacted = journalFile.resolveSibling(FILE_NAME + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.write(formatLine(e.getKey(), e.getValue()));
+            }
+        }
+        Files.move(compacted, journalFile, StandardCopyOption.REPLACE_EXISTING);
+        writer = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Opens (or creates) the journal in the given folder
+     *
+     * @param folder
+     * @return
+     * @throws IOException
+     */
+    public static DownloadJournal open(Path folder) throws IOException {
+        return new DownloadJournal(folder.resolve(FILE_NAME));
+    }
+
+    private void parseLine(String line) {
+        String[] fields = line.split("\t", 5);
+        if (fields.length != 5 || !(STARTED.equals(fields[0]) || DONE.equals(fields[0]))) {
+            // e.g. the last line of a journal that was interrupted while writing
+            return;
+        }
+        try {
+            entries.put(fields[4], new Entry(DONE.equals(fields[0]), Long.parseLong(fields[1]), NO_VALIDATOR.equals(fields[2]) ? null : fields[2],
+                    fields[3]));
+        } catch (NumberFormatException e) {
+            // ignore broken lines
+        }
+    }
+
+    private static String formatLine(String fileName, Entry entry) {
+        return String.join("\t", entry.isDone() ? DONE : STARTED, Long.toString(entry.getSize()),
+                entry.getValidator() == null ? NO_VALIDATOR : entry.getValidator(), entry.getUrl(), fileName) + "\n";
+    }
+
+    private static String key(DownloadItem item) {
+        return item.getTarget().getFileName().toString();
+    }
+
+    /**
+     * @param item
+     * @return true if the item was downloaded completely from the same URL and the file still has the recorded size
+     * @throws IOException
+     */
+    public synchronized boolean isComplete(DownloadItem item) throws IOException {
+        Entry entry = entries.get(key(item));
+        return entry != null && entry.isDone() && entry.getUrl().equals(item.getUrl()) && Files.exists(item.getTarget())
+                && Files.size(item.getTarget()) == entry.getSize();
+    }
+
+    /**
+     * @param item
+     * @return the validator of an unfinished download of the same URL, or null if there is none
+     */
+    public synchronized String getPartialValidator(DownloadItem item) {
+        Entry entry = entries.get(key(item));
+        if (entry == null || entry.isDone() || !entry.getUrl().equals(item.getUrl())) {
+            return null;
+        }
+        return entry.getValidator();
+    }
+
+    public synchronized void started(DownloadItem item, String validator) throws IOException {
+        write(key(item), new Entry(false, -1, validator, item.getUrl()));
+    }
+
+    public synchronized void completed(DownloadItem item, long size, String validator) throws IOException {
+        write(key(item), new Entry(true, size, validator, item.getUrl()));
+    }
+
+    private void write(String fileName, Entry entry) throws IOException {
+        entries.put(fileName, entry);
+        writer.write(formatLine(fileName, entry));
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,210 @@
+package de.intranda.iiif.downloader;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * A download plan: the files selected from one or more manifests, written instead of being downloaded, so that they can be downloaded
+ * later or split between several machines. The plan is a tab-separated file with a header and one line per file: manifest URL,
+ * destination folder, kind of the item, URL, target relative to the destination folder and size in bytes (-1 if unknown).
+ * <p>
+ * Images that are requested from their image service are only resolved to their URL when the plan is downloaded, so the second line of
+ * the plan records the size, quality and format of the images and whether they are tiled. The plan is downloaded with these options.
+ * <p>
+ * A plan is split into shards by a hash of the destination and target of each file, so every machine can read its own shard from the same
+ * plan without any coordination.
+ *
+ */
+public class DownloadPlan {
+    static final String HEADER = "manifest\tdestination\tkind\turl\ttarget\tsize";
+    static final String IMAGE_OPTIONS = "#image";
+
+    /**
+     * The images a plan was written for
+     */
+    @Data
+    @AllArgsConstructor
+    public static class ImageOptions {
+        ImageRequest request;
+        boolean tiled;
+
+        /**
+         * @return the options as the second line of a plan
+         */
+        String toLine() {
+            return String.join("\t", IMAGE_OPTIONS, "size=" + request.getSize(), "max_pixels=" + request.getMaxPixels(),
+                    "quality=" + request.getQuality(), "format=" + request.getFormat(), "tiled=" + tiled);
+        }
+
+        /**
+         * @return the options of a line written by {@link #toLine()}, or null if the line is not valid
+         */
+        static ImageOptions parse(String line) {
+            Map<String, String> values = new HashMap<>();
+            String[] fields = line.split("\t");
+            for (int i = 1; i < fields.length; i++) {
+                int equals = fields[i].indexOf('=');
+                if (equals > 0) {
+                    values.put(fields[i].substring(0, equals), fields[i].substring(equals + 1));
+                }
+            }
+            try {
+                return new ImageOptions(new ImageRequest(values.get("size"), Long.parseLong(values.getOrDefault("max_pixels", "0")),
+                        values.get("quality"), values.get("format")), Boolean.parseBoolean(values.get("tiled")));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return toLine().substring(IMAGE_OPTIONS.length() + 1).replace('\t', ' ');
+        }
+    }
+
+    /**
+     * One file of a plan
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Entry {
+        String manifestUrl;
+        Path destination;
+        DownloadItem.Kind kind;
+        String url;
+        /** the target relative to the destination */
+        Path target;
+        long size;
+
+        /**
+         * @param shards the number of shards
+         * @return the shard of this file, from 0 to shards - 1
+         */
+        public int shard(int shards) {
+            String key = destination.resolve(target).toString().replace('\\', '/');
+            return (int) Long.remainderUnsigned(UrlSet.fingerprint(key), shards);
+        }
+    }
+
+    /**
+     * Handles the entries of a plan while it is read
+     */
+    @FunctionalInterface
+    public interface EntryHandler {
+        void onEntry(Entry entry) throws IOException;
+    }
+
+    /**
+     * Writes a plan. Entries may be added from several threads.
+     */
+    public static class Writer implements Closeable {
+        private final BufferedWriter writer;
+
+        /**
+         * @param file
+         * @param imageOptions the images the plan is written for
+         * @throws IOException
+         */
+        public Writer(Path file, ImageOptions imageOptions) throws IOException {
+            this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write(imageOptions.toLine());
+            writer.newLine();
+        }
+
+        public synchronized void write(Entry entry) throws IOException {
+            writer.write(String.join("\t", entry.getManifestUrl(), entry.getDestination().toString(), entry.getKind().name(), entry.getUrl(),
+                    entry.getTarget().toString(), Long.toString(entry.getSize())));
+            writer.newLine();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads the entries of one shard of a plan, line by line
+     *
+     * @param file
+     * @param shard the shard to read, from 0 to shards - 1
+     * @param shards the number of shards, 1 to read the whole plan
+     * @param handler
+     * @return the number of entries in the whole plan
+     * @throws IOException if the plan cannot be read or has an invalid line
+     */
+    public static int read(Path file, int shard, int shards, EntryHandler handler) throws IOException {
+        readImageOptions(file);
+        int entries = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException(String.format("'%s' is not a download plan", file));
+            }
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                Entry entry = parse(line);
+                if (entry == null) {
+                    throw new IOException(String.format("invalid line %d in download plan '%s'", lineNumber, file));
+                }
+                entries++;
+                if (entry.shard(shards) == shard) {
+                    handler.onEntry(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @param file
+     * @return the images the plan was written for, or null for a plan of an earlier version, which does not record them
+     * @throws IOException if the plan cannot be read or its image options are invalid
+     */
+    public static ImageOptions readImageOptions(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException(String.format("'%s' is not a download plan", file));
+            }
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(IMAGE_OPTIONS + "\t")) {
+                return null;
+            }
+            ImageOptions options = ImageOptions.parse(line);
+            if (options == null) {
+                throw new IOException(String.format("invalid image options in download plan '%s'", file));
+            }
+            return options;
+        }
+    }
+
+    private static Entry parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 6) {
+            return null;
+        }
+        try {
+            return new Entry(fields[0], Paths.get(fields[1]), DownloadItem.Kind.valueOf(fields[2]), fields[3], Paths.get(fields[4]),
+                    Long.parseLong(fields[5]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
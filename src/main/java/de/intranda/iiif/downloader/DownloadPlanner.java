@@ -0,0 +1,78 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Writes the selected items to a {@link DownloadPlan} instead of downloading them. It runs on the {@link DownloadScheduler} like a
+ * download, so the optional HEAD requests for the sizes of the files are limited and retried per host in the same way.
+ *
+ */
+public class DownloadPlanner implements DownloadScheduler.Fetcher {
+    private static final int HTTP_METHOD_NOT_ALLOWED = 405;
+    private static final int HTTP_NOT_IMPLEMENTED = 501;
+
+    private final DownloadPlan.Writer writer;
+    private final HttpDownloadClient client;
+    private final ImageServiceCache imageServices;
+    private final ImageRequest imageRequest;
+    private final boolean sizes;
+
+    /**
+     * @param writer
+     * @param client
+     * @param imageServices
+     * @param imageRequest
+     * @param sizes find out the size of every file with a HEAD request. Images requested from their image service are resolved to their
+     *            URL with the info.json of the service first.
+     */
+    public DownloadPlanner(DownloadPlan.Writer writer, HttpDownloadClient client, ImageServiceCache imageServices, ImageRequest imageRequest,
+            boolean sizes) {
+        this.writer = writer;
+        this.client = client;
+        this.imageServices = imageServices;
+        this.imageRequest = imageRequest;
+        this.sizes = sizes;
+    }
+
+    @Override
+    public void fetch(DownloadItem item) throws IOException {
+        String url = item.getUrl();
+        DownloadItem.Kind kind = item.getKind();
+        long size = -1;
+        if (sizes) {
+            if (kind == DownloadItem.Kind.SERVICE_IMAGE) {
+                url = imageServices.getImageUrl(url, imageRequest);
+                kind = DownloadItem.Kind.IMAGE;
+            }
+            // tiled images are assembled from many requests
+            if (kind != DownloadItem.Kind.TILED_IMAGE) {
+                size = headSize(url);
+            }
+        }
+        Path destination = item.getJob().getDestination();
+        writer.write(new DownloadPlan.Entry(item.getJob().getManifestUrl(), destination, kind, url, destination.relativize(item.getTarget()),
+                size));
+    }
+
+    /**
+     * @return the size announced by the server, or -1 if it is unknown or the server does not support HEAD requests
+     */
+    private long headSize(String url) throws IOException {
+        try (HttpDownloadClient.Response response = client.head(url)) {
+            int status = response.getStatusCode();
+            if (status == HTTP_METHOD_NOT_ALLOWED || status == HTTP_NOT_IMPLEMENTED) {
+                return -1;
+            }
+            if (status >= 400) {
+                throw new HttpStatusException(status, url, response.getHeader("Retry-After"));
+            }
+            String length = response.getHeader("Content-Length");
+            try {
+                return length == null ? -1 : Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.nio.file.FileSystemException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs downloads on a fixed pool of workers while limiting the number of concurrent requests per host (see {@link HostLimiter}). Transient
+ * failures (connection problems, 429 and 5xx responses) are retried with a jittered exponential backoff, honouring Retry-After. Downloads
+ * that still fail are recorded in the {@link DownloadJob} of the item and do not stop the remaining downloads. Waiting items of jobs with a
+ * higher priority are run first. With a {@link PostProcessingStage}, an item is finished when its file is processed.
+ *
+ */
+public class DownloadScheduler implements AutoCloseable {
+
+    /**
+     * Fetches a single item. Implementations are called concurrently from the worker threads.
+     */
+    @FunctionalInterface
+    public interface Fetcher {
+        void fetch(DownloadItem item) throws IOException;
+    }
+
+    private static final long BASE_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60000;
+    private static final long MAX_RETRY_AFTER_MS = 600000;
+
+    private final Fetcher fetcher;
+    private final ProgressReporter progress;
+    private final HostLimits hostLimits;
+    private final int retries;
+    private final RunMetrics metrics;
+    private final PostProcessingStage postProcessing;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService retryTimer;
+    private final Semaphore queueSlots;
+    private final Phaser pending = new Phaser(1);
+
+    /**
+     * @param fetcher
+     * @param progress
+     * @param threads the number of workers
+     * @param hostLimits the limits of concurrent requests per host
+     * @param retries how often a transient failure is retried
+     * @param metrics records retries and failed downloads, may be null
+     * @param postProcessing processes the downloaded files before the items are finished, may be null
+     */
+    public DownloadScheduler(Fetcher fetcher, ProgressReporter progress, int threads, HostLimits hostLimits, int retries, RunMetrics metrics,
+            PostProcessingStage postProcessing) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("the number of threads must be at least 1");
+        }
+        if (retries < 0) {
+            throw new IllegalArgumentException("the number of retries must not be negative");
+        }
+        this.fetcher = fetcher;
+        this.progress = progress;
+        this.hostLimits = hostLimits;
+        this.retries = retries;
+        this.metrics = metrics;
+        this.postProcessing = postProcessing;
+        // items of jobs with a higher priority overtake the items that are already waiting
+        this.workers = PrioritizedTask.newPool(threads);
+        // waiting items are kept by the timer instead of blocking a worker
+        this.retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "retries");
+            t.setDaemon(true);
+            return t;
+        });
+        // keep the queue short, so huge selections do not pile up in memory before they are fetched
+        this.queueSlots = new Semaphore(threads * 4);
+    }
+
+    /**
+     * Queues an item for download. Blocks while the queue is full.
+     *
+     * @param item
+     * @throws InterruptedException
+     */
+    public void submit(DownloadItem item) throws InterruptedException {
+        queueSlots.acquire();
+        pending.register();
+        item.getJob().itemQueued();
+        progress.fileQueued();
+        try {
+            workers.execute(new PrioritizedTask(item.getJob().getPriority(), () -> run(item, 0)));
+        } catch (RuntimeException e) {
+            finish(item, new DownloadFailure(item, e.toString()));
+            throw e;
+        }
+    }
+
+    private void run(DownloadItem item, int attempt) {
+        // the tiles of a tiled image are limited one by one, a slot held for the whole image could block them
+        HostLimiter limiter = item.getKind() != DownloadItem.Kind.TILED_IMAGE ? hostLimits.limiter(item.getUrl()) : null;
+        DownloadFailure failure = null;
+        try {
+            if (limiter != null) {
+                limiter.acquire();
+            }
+            HostLimiter.Outcome outcome = HostLimiter.Outcome.ERROR;
+            long start = System.nanoTime();
+            try {
+                fetcher.fetch(item);
+                outcome = HostLimiter.Outcome.SUCCESS;
+            } catch (HttpStatusException e) {
+                outcome = outcome(e);
+                throw e;
+            } finally {
+                if (limiter != null) {
+                    limiter.release(outcome, System.nanoTime() - start);
+                }
+            }
+        } catch (IOException e) {
+            if (attempt < retries && isTransient(e) && !Thread.currentThread().isInterrupted()) {
+                try {
+                    retryTimer.schedule(() -> retry(item, attempt + 1), backoffMs(e, attempt), TimeUnit.MILLISECONDS);
+                    if (metrics != null) {
+                        metrics.retried(item.getUrl());
+                    }
+                    // the item stays pending until the retry is finished
+                    return;
+                } catch (RuntimeException rejected) {
+                    // the scheduler is closed
+                }
+            }
+            failure = new DownloadFailure(item, attempt > 0 ? e.toString() + " (after " + (attempt + 1) + " attempts)" : e.toString());
+        } catch (RuntimeException e) {
+            failure = new DownloadFailure(item, e.toString());
+        } catch (InterruptedException e) {
+            failure = new DownloadFailure(item, "interrupted");
+            Thread.currentThread().interrupt();
+        }
+        if (failure == null && postProcessing != null && postProcessing.accepts(item)) {
+            try {
+                // the worker waits here while the post-processing queue is full, so downloads cannot run ahead of it
+                postProcessing.submit(item, processingFailure -> finish(item, processingFailure));
+                return;
+            } catch (RuntimeException e) {
+                failure = new DownloadFailure(item, e.toString());
+            } catch (InterruptedException e) {
+                failure = new DownloadFailure(item, "interrupted");
+                Thread.currentThread().interrupt();
+            }
+        }
+        finish(item, failure);
+    }
+
+    private void retry(DownloadItem item, int attempt) {
+        try {
+            workers.execute(new PrioritizedTask(item.getJob().getPriority(), () -> run(item, attempt)));
+        } catch (RuntimeException e) {
+            finish(item, new DownloadFailure(item, e.toString()));
+        }
+    }
+
+    private void finish(DownloadItem item, DownloadFailure failure) {
+        // the job is notified first, so that its completion handling is done when awaitCompletion returns
+        item.getJob().itemFinished(failure);
+        if (failure == null) {
+            progress.fileDone();
+        } else {
+            progress.fileFailed();
+            if (metrics != null) {
+                metrics.downloadFailed(item.getUrl());
+            }
+        }
+        queueSlots.release();
+        pending.arriveAndDeregister();
+    }
+
+    static HostLimiter.Outcome outcome(HttpStatusException e) {
+        int status = e.getStatusCode();
+        if (status == 429 || status == 503) {
+            return HostLimiter.Outcome.OVERLOAD;
+        }
+        // other client errors like 404 say nothing about the load of the server
+        return status >= 500 ? HostLimiter.Outcome.ERROR : HostLimiter.Outcome.SUCCESS;
+    }
+
+    static boolean isTransient(IOException e) {
+        if (e instanceof HttpStatusException) {
+            int status = ((HttpStatusException) e).getStatusCode();
+            return status == 408 || status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+        }
+        // local file problems and broken URLs do not go away by waiting, and requests that were retried already are not repeated again
+        return !(e instanceof FileSystemException) && !(e instanceof MalformedURLException) && !(e instanceof HostLimits.RetriesExhaustedException);
+    }
+
+    /**
+     * @return a random delay between half and all of the exponential backoff, or the delay the server asked for if that is longer
+     */
+    static long backoffMs(IOException e, int attempt) {
+        long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 16));
+        long delay = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+        if (e instanceof HttpStatusException && ((HttpStatusException) e).getRetryAfterSeconds() >= 0) {
+            // capped before the conversion, so that a huge value cannot overflow
+            delay = Math.max(delay, Math.min(MAX_RETRY_AFTER_MS / 1000, ((HttpStatusException) e).getRetryAfterSeconds()) * 1000);
+        }
+        return delay;
+    }
+
+    /**
+     * Waits until all submitted items are either downloaded or failed.
+     */
+    public void awaitCompletion() {
+        pending.arriveAndAwaitAdvance();
+    }
+
+    @Override
+    public void close() {
+        retryTimer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    static String hostKey(String url) {
+        try {
+            URI uri = new URI(url);
+            if (uri.getHost() == null) {
+                return "";
+            }
+            return uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package de.intranda.iiif.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Keeps the downloader running and accepts jobs over a local HTTP API and/or a spool folder, so that a job does not pay for the start of
+ * a JVM, class loading and new connections. A job is a JSON object with the command line arguments of a single download and an optional
+ * priority:
+ *
+ * <pre>
+ * {"args": ["-m", "https://example.com/iiif/AC03885497/manifest/", "-d", "/data/AC03885497", "-da"], "priority": 10}
+ * </pre>
+ *
+ * The HTTP API is bound to the loopback interface only. Every request needs the header {@code Authorization: Bearer <token>} with the
+ * random token that is written to a file readable only by the owner when the server starts, so that other local users and processes
+ * cannot submit jobs. Requests with an {@code Origin} header are rejected, so that web pages cannot use the API through the browser, and
+ * POST requests with a body must be sent as {@code application/json}.
+ * <ul>
+ * <li>POST /jobs - submits a job, answers 202 with the status of the job</li>
+ * <li>GET /jobs - the status of all queued, running and recently finished jobs</li>
+ * <li>GET /jobs/&lt;id&gt; - the status of one job</li>
+ * <li>POST /shutdown - stops accepting jobs; the server exits when all accepted jobs are finished</li>
+ * </ul>
+ * Files ending in ".job" in the spool folder are read as jobs and deleted. They should be written under a different name and then
+ * renamed, so that they are not read before they are complete. When the job is finished, its status is written to a file with the same
+ * name ending in ".status".
+ *
+ */
+public class DownloadServer implements Closeable {
+
+    /**
+     * Creates a job from its command line arguments
+     */
+    @FunctionalInterface
+    public interface JobParser {
+        /**
+         * @throws IllegalArgumentException if the arguments are not valid for a job
+         */
+        ServerJob parse(String id, List<String> args, int priority);
+    }
+
+    private static final int MAX_FINISHED_JOBS = 1000;
+    private static final String JOB_SUFFIX = ".job";
+    private static final String STATUS_SUFFIX = ".status";
+
+    private final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+    private final JobParser parser;
+    private final ExecutorService loaders;
+    // guarded by jobs
+    private long lastId;
+    // in the order of submission, finished jobs are removed from the front when there are too many
+    private final Map<String, ServerJob> jobs = new LinkedHashMap<>();
+    private final CountDownLatch shutdown = new CountDownLatch(1);
+    private volatile boolean accepting = true;
+    private HttpServer http;
+    private ExecutorService httpExecutor;
+    private byte[] token;
+    private Path tokenFile;
+    private Thread spoolWatcher;
+
+    /**
+     * @param parser
+     * @param loaderThreads the number of manifests that are loaded at the same time
+     */
+    public DownloadServer(JobParser parser, int loaderThreads) {
+        this.parser = parser;
+        this.loaders = PrioritizedTask.newPool(loaderThreads);
+    }
+
+    /**
+     * Starts the HTTP API on the loopback interface
+     *
+     * @param port the port, or 0 for any free port
+     * @param tokenFile the file the access token is written to. It is replaced if it exists and deleted when the server is closed.
+     * @throws IOException
+     */
+    public void startHttp(int port, Path tokenFile) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String tokenText = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+        writeTokenFile(tokenFile, tokenText);
+        this.token = tokenText.getBytes(StandardCharsets.US_ASCII);
+        this.tokenFile = tokenFile;
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/jobs", exchange -> {
+            if (authorize(exchange)) {
+                handleJobs(exchange);
+            }
+        });
+        http.createContext("/shutdown", exchange -> {
+            if (!authorize(exchange)) {
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, error("use POST"));
+                return;
+            }
+            respond(exchange, 202, mapper.createObjectNode().put("state", "stopping"));
+            shutdown();
+        });
+        // requests are only small JSON documents, a few threads are enough
+        httpExecutor = Executors.newFixedThreadPool(2);
+        http.setExecutor(httpExecutor);
+        http.start();
+        System.out.println(String.format("Accepting jobs on http://%s:%d/jobs with the token in %s",
+                InetAddress.getLoopbackAddress().getHostAddress(), getPort(), tokenFile.toAbsolutePath()));
+    }
+
+    /**
+     * @return the port of the HTTP API, or -1 if it is not started
+     */
+    public int getPort() {
+        return http != null ? http.getAddress().getPort() : -1;
+    }
+
+    /**
+     * Writes the token to a new file that only the owner can read
+     */
+    private static void writeTokenFile(Path file, String token) throws IOException {
+        // a new file, so that the permissions of an existing one are not kept
+        Files.deleteIfExists(file);
+        if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(file);
+        }
+        Files.write(file, (token + "\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Checks the token, the origin and the content type of a request and answers it if it is not allowed
+     *
+     * @return true if the request may be handled
+     */
+    private boolean authorize(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            // sent by browsers, this API is not meant for web pages
+            respond(exchange, 403, error("requests from web pages are not allowed"));
+            return false;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] given = authorization != null && authorization.startsWith("Bearer ")
+                ? authorization.substring("Bearer ".length()).trim().getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        // compares in constant time
+        if (!MessageDigest.isEqual(token, given)) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            respond(exchange, 401, error("missing or wrong token, see " + tokenFile.toAbsolutePath()));
+            return false;
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if ("POST".equals(exchange.getRequestMethod()) && exchange.getRequestURI().getPath().startsWith("/jobs")
+                && (contentType == null || !contentType.toLowerCase().replaceFirst(";.*", "").trim().equals("application/json"))) {
+            respond(exchange, 415, error("jobs must be sent as application/json"));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Starts reading job files from the spool folder. Files that are already there are read first.
+     *
+     * @param folder
+     * @throws IOException
+     */
+    public void watchSpool(Path folder) throws IOException {
+        Files.createDirectories(folder);
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+        spoolWatcher = new Thread(() -> {
+            try {
+                while (accepting) {
+                    // the folder is also scanned without events, which are not reported for some network file systems
+                    scanSpool(folder);
+                    WatchKey key = watchService.poll(1, TimeUnit.SECONDS);
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    // nothing left to watch
+                }
+            }
+        }, "spool");
+        spoolWatcher.setDaemon(true);
+        spoolWatcher.start();
+        System.out.println(String.format("Reading jobs from %s", folder.toAbsolutePath()));
+    }
+
+    /**
+     * Submits all job files in the spool folder, in the order of their names
+     */
+    private void scanSpool(Path folder) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, "*" + JOB_SUFFIX)) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            System.err.println(String.format("could not read spool folder '%s': %s", folder, e));
+            return;
+        }
+        files.sort(null);
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            Path statusFile = folder.resolve(name.substring(0, name.length() - JOB_SUFFIX.length()) + STATUS_SUFFIX);
+            byte[] content;
+            try {
+                content = Files.readAllBytes(file);
+                Files.delete(file);
+            } catch (NoSuchFileException e) {
+                // taken by another server
+                continue;
+            } catch (IOException e) {
+                System.err.println(String.format("could not read job file '%s': %s", file, e));
+                continue;
+            }
+            try {
+                submit(mapper.readTree(content), job -> writeStatus(statusFile, job.toJson(mapper)));
+            } catch (IOException e) {
+                writeStatus(statusFile, error("invalid JSON: " + e.getMessage()));
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                writeStatus(statusFile, error(e.getMessage()));
+            }
+        }
+    }
+
+    private void writeStatus(Path statusFile, JsonNode status) {
+        Path part = statusFile.resolveSibling(statusFile.getFileName() + ".part");
+        try {
+            mapper.writeValue(part.toFile(), status);
+            Files.move(part, statusFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println(String.format("could not write job status '%s': %s", statusFile, e));
+        }
+    }
+
+    /**
+     * Queues a job given as JSON
+     *
+     * @param request
+     * @param onFinished called when the job is done or failed, may be null
+     * @return the job
+     * @throws IllegalArgumentException if the job is not valid
+     * @throws IllegalStateException if the server is shutting down
+     */
+    ServerJob submit(JsonNode request, Consumer<ServerJob> onFinished) {
+        if (request == null || !request.isObject()) {
+            throw new IllegalArgumentException("the job must be a JSON object");
+        }
+        JsonNode argNodes = request.get("args");
+        if (argNodes == null || !argNodes.isArray()) {
+            throw new IllegalArgumentException("a job needs \"args\" with an array of command line arguments");
+        }
+        List<String> args = new ArrayList<>();
+        for (JsonNode arg : argNodes) {
+            if (!arg.isTextual()) {
+                throw new IllegalArgumentException("all arguments must be strings");
+            }
+            args.add(arg.asText());
+        }
+        JsonNode priorityNode = request.get("priority");
+        if (priorityNode != null && !priorityNode.canConvertToInt()) {
+            throw new IllegalArgumentException("the priority must be an integer");
+        }
+        int priority = priorityNode == null ? 0 : priorityNode.asInt();
+        synchronized (jobs) {
+            if (!accepting) {
+                throw new IllegalStateException("the server is shutting down");
+            }
+            // rejected jobs do not use up an ID
+            ServerJob job = parser.parse(Long.toString(lastId + 1), args, priority);
+            lastId++;
+            if (onFinished != null) {
+                job.setOnFinished(() -> onFinished.accept(job));
+            }
+            jobs.put(job.getId(), job);
+            removeFinishedJobs();
+            loaders.execute(new PrioritizedTask(priority, job::run));
+            return job;
+        }
+    }
+
+    private void removeFinishedJobs() {
+        int finished = 0;
+        for (ServerJob job : jobs.values()) {
+            if (isFinished(job)) {
+                finished++;
+            }
+        }
+        Iterator<ServerJob> it = jobs.values().iterator();
+        while (finished > MAX_FINISHED_JOBS && it.hasNext()) {
+            if (isFinished(it.next())) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+
+    private static boolean isFinished(ServerJob job) {
+        ServerJob.State state = job.getState();
+        return state == ServerJob.State.DONE || state == ServerJob.State.FAILED;
+    }
+
+    private void handleJobs(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().replaceFirst("/+$", "");
+            String method = exchange.getRequestMethod();
+            if ("/jobs".equals(path)) {
+                if ("POST".equals(method)) {
+                    JsonNode request;
+                    try (InputStream in = exchange.getRequestBody()) {
+                        request = mapper.readTree(in);
+                    } catch (IOException e) {
+                        respond(exchange, 400, error("invalid JSON: " + e.getMessage()));
+                        return;
+                    }
+                    try {
+                        respond(exchange, 202, submit(request, null).toJson(mapper));
+                    } catch (IllegalArgumentException e) {
+                        respond(exchange, 400, error(e.getMessage()));
+                    } catch (IllegalStateException e) {
+                        respond(exchange, 503, error(e.getMessage()));
+                    }
+                } else if ("GET".equals(method)) {
+                    ObjectNode list = mapper.createObjectNode();
+                    ArrayNode nodes = list.putArray("jobs");
+                    synchronized (jobs) {
+                        for (ServerJob job : jobs.values()) {
+                            nodes.add(job.toJson(mapper));
+                        }
+                    }
+                    respond(exchange, 200, list);
+                } else {
+                    respond(exchange, 405, error("use GET or POST"));
+                }
+                return;
+            }
+            ServerJob job;
+            synchronized (jobs) {
+                job = jobs.get(path.substring(path.lastIndexOf('/') + 1));
+            }
+            if (job == null || !path.equals("/jobs/" + job.getId())) {
+                respond(exchange, 404, error("no such job"));
+            } else if (!"GET".equals(method)) {
+                respond(exchange, 405, error("use GET"));
+            } else {
+                respond(exchange, 200, job.toJson(mapper));
+            }
+        } catch (RuntimeException e) {
+            respond(exchange, 500, error(e.toString()));
+        }
+    }
+
+    private ObjectNode error(String message) {
+        return mapper.createObjectNode().put("error", message);
+    }
+
+    private void respond(HttpExchange exchange, int status, JsonNode body) throws IOException {
+        byte[] bytes = mapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stops accepting new jobs
+     */
+    public void shutdown() {
+        synchronized (jobs) {
+            accepting = false;
+        }
+        shutdown.countDown();
+    }
+
+    /**
+     * Waits for {@link #shutdown()} and then until all accepted jobs are queued. The downloads may still be running.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitShutdown() throws InterruptedException {
+        shutdown.await();
+        if (http != null) {
+            // give the answer to the shutdown request time to be sent
+            http.stop(1);
+            httpExecutor.shutdown();
+        }
+        if (spoolWatcher != null) {
+            spoolWatcher.join();
+        }
+        loaders.shutdown();
+        loaders.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        accepting = false;
+        if (http != null) {
+            http.stop(0);
+            httpExecutor.shutdownNow();
+            try {
+                Files.deleteIfExists(tokenFile);
+            } catch (IOException e) {
+                System.err.println(String.format("could not delete token file '%s': %s", tokenFile, e));
+            }
+        }
+        loaders.shutdownNow();
+    }
+}
@@ -0,0 +1,662 @@
+package de.intranda.iiif.downloader;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downloads single images and ALTO files. Depending on the job, finished files are skipped and partial files are continued (see
+ * {@link DownloadJournal}), and files are served from the {@link HttpCache} if one is configured.
+ * <p>
+ * Files are written to a ".part" file next to the target, which is renamed to the target when the download is complete. An interrupted
+ * download therefore never leaves a truncated file under the final name.
+ * <p>
+ * Tiled images are assembled by the {@link TiledImageDownloader}. They are not cached, and an interrupted tiled image is started over.
+ * <p>
+ * With an {@link OutputSink}, files are not written to their targets but added to an archive, with the target path as the name of
+ * the entry.
+ * <p>
+ * If the job has an {@link AltoTextExtractor}, the text of ALTO files is extracted while they are downloaded.
+ *
+ */
+public class FileDownloader implements DownloadScheduler.Fetcher {
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_PARTIAL = 206;
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final String PART_SUFFIX = ".part";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_BUFFERED_ENTRY = 16 * 1024 * 1024;
+
+    private final HttpDownloadClient client;
+    private final HttpCache cache;
+    private final ProgressReporter progress;
+    private final ImageServiceCache imageServices;
+    private final ImageRequest imageRequest;
+    private final TiledImageDownloader tiledDownloader;
+    private final OutputSink sink;
+    private final RequestHedger hedger;
+
+    /**
+     * @param client
+     * @param cache the download cache, may be null
+     * @param progress
+     * @param imageServices info.json lookup for {@link DownloadItem.Kind#SERVICE_IMAGE} and {@link DownloadItem.Kind#TILED_IMAGE} items,
+     *            may be null if there are none
+     * @param imageRequest size, quality and format for these items
+     * @param tiledDownloader downloader for {@link DownloadItem.Kind#TILED_IMAGE} items, may be null if there are none
+     * @param sink the archive to write all files to instead of the target files, may be null. Cache and journal are not used then.
+     * @param hedger sends a second request for slow images, may be null
+     */
+    public FileDownloader(HttpDownloadClient client, HttpCache cache, ProgressReporter progress, ImageServiceCache imageServices,
+            ImageRequest imageRequest, TiledImageDownloader tiledDownloader, OutputSink sink, RequestHedger hedger) {
+        this.client = client;
+        this.cache = cache;
+        this.progress = progress;
+        this.imageServices = imageServices;
+        this.imageRequest = imageRequest;
+        this.tiledDownloader = tiledDownloader;
+        this.sink = sink;
+        this.hedger = hedger;
+    }
+
+    @Override
+    public void fetch(DownloadItem item) throws IOException {
+        DownloadJournal journal = item.getJob().getJournal();
+        if (journal != null && journal.isComplete(journalItem(item))) {
+            item.getJob().itemSkipped();
+            // the file was downloaded in an earlier run, so there is no stream to calculate the digest on
+            for (Path file : files(item)) {
+                recordChecksum(withTarget(item, file), file);
+            }
+            return;
+        }
+        if (item.getKind() == DownloadItem.Kind.ALTO && item.getJob().getAltoText() != null) {
+            fetchAlto(item, item.getJob().getAltoText());
+            return;
+        }
+        if (item.getKind() == DownloadItem.Kind.SERVICE_IMAGE || item.getKind() == DownloadItem.Kind.TILED_IMAGE) {
+            fetchFromService(item);
+            return;
+        }
+        if (sink != null) {
+            fetchToSink(item);
+            return;
+        }
+        if (cache != null) {
+            fetchCached(item);
+            return;
+        }
+        MessageDigest digest = newDigest(item);
+        if (journal == null) {
+            try (HttpDownloadClient.Response response = get(item, null)) {
+                downloadWithProgress(item.getTarget(), checkStatus(response), false, digest);
+            } catch (IOException e) {
+                Files.deleteIfExists(partFile(item.getTarget()));
+                throw e;
+            }
+            recordChecksum(item, digest);
+            return;
+        }
+        // continue a partial file, but only if we know which version of the file it belongs to
+        Path partFile = partFile(item.getTarget());
+        long existing = Files.exists(partFile) ? Files.size(partFile) : 0;
+        String partialValidator = journal.getPartialValidator(item);
+        Map<String, String> headers = null;
+        if (existing > 0 && partialValidator != null) {
+            headers = new HashMap<>();
+            headers.put("Range", "bytes=" + existing + "-");
+            headers.put("If-Range", partialValidator);
+        }
+        HttpDownloadClient.Response response = get(item, headers);
+        try {
+            if (headers != null && response.getStatusCode() == HTTP_RANGE_NOT_SATISFIABLE) {
+                // the partial file does not fit the file on the server anymore, start over
+                response.close();
+                response = get(item, null);
+            }
+            checkStatus(response);
+            boolean append = headers != null && isRangeResponse(response, existing);
+            String validator = getValidator(response);
+            journal.started(item, validator);
+            downloadWithProgress(item.getTarget(), response, append, digest);
+            journal.completed(item, Files.size(item.getTarget()), validator);
+        } finally {
+            response.close();
+        }
+        recordChecksum(item, digest);
+    }
+
+    /**
+     * @return the files written for an item: the target, and for ALTO files also the extracted text
+     */
+    private static List<Path> files(DownloadItem item) {
+        AltoTextExtractor altoText = item.getJob().getAltoText();
+        if (item.getKind() == DownloadItem.Kind.ALTO && altoText != null) {
+            return altoText.files(item.getTarget());
+        }
+        return Collections.singletonList(item.getTarget());
+    }
+
+    /**
+     * @return the item as it is recorded in the journal. Images from an image service are recorded with the request as asked for, so a
+     *         finished image is recognised without loading the info.json of its service.
+     */
+    private DownloadItem journalItem(DownloadItem item) {
+        if (item.getKind() != DownloadItem.Kind.SERVICE_IMAGE && item.getKind() != DownloadItem.Kind.TILED_IMAGE) {
+            return item;
+        }
+        return new DownloadItem(imageRequest.requestedUrl(item.getUrl(), item.getKind() == DownloadItem.Kind.TILED_IMAGE), item.getTarget(),
+                item.getKind(), item.getJob());
+    }
+
+    private static DownloadItem withTarget(DownloadItem item, Path target) {
+        return new DownloadItem(item.getUrl(), target, item.getKind(), item.getJob());
+    }
+
+    private static MessageDigest newDigest(DownloadItem item) {
+        return item.getJob().getChecksums() != null ? ChecksumManifest.newDigest() : null;
+    }
+
+    /**
+     * Reads a file to record its digest
+     */
+    private static void recordChecksum(DownloadItem item, Path file) throws IOException {
+        if (item.getJob().getChecksums() != null) {
+            recordChecksum(item, ChecksumManifest.update(file, ChecksumManifest.newDigest()));
+        }
+    }
+
+    /**
+     * Records the digest of a finished file. In dedup mode, a file with the same content as an earlier one is replaced by a hard link to
+     * it.
+     */
+    private static void recordChecksum(DownloadItem item, MessageDigest digest) throws IOException {
+        if (digest == null) {
+            return;
+        }
+        Path original = item.getJob().getChecksums().record(item.getTarget(), digest.digest());
+        if (original != null && Files.exists(original)) {
+            Path link = partFile(item.getTarget());
+            try {
+                Files.deleteIfExists(link);
+                Files.createLink(link, original);
+                moveToTarget(link, item.getTarget());
+            } catch (UnsupportedOperationException | IOException e) {
+                // keep the copy, e.g. on file systems without hard links
+                Files.deleteIfExists(link);
+            }
+        }
+    }
+
+    /**
+     * Revalidates a cached file with a conditional request, or downloads it into the cache, and then links it to the target
+     */
+    private void fetchCached(DownloadItem item) throws IOException {
+        DownloadJournal journal = item.getJob().getJournal();
+        MessageDigest digest = newDigest(item);
+        boolean digested = false;
+        HttpCache.Entry entry = cache.lookup(item.getUrl());
+        try {
+            Map<String, String> headers = new HashMap<>();
+            if (entry != null) {
+                if (entry.getEtag() != null) {
+                    headers.put("If-None-Match", entry.getEtag());
+                }
+                if (entry.getLastModified() != null) {
+                    headers.put("If-Modified-Since", entry.getLastModified());
+                }
+            }
+            try (HttpDownloadClient.Response response = get(item, headers)) {
+                if (entry != null && response.getStatusCode() == HTTP_NOT_MODIFIED) {
+                    cache.countHit();
+                } else {
+                    checkStatus(response);
+                    cache.countMiss();
+                    cache.release(entry);
+                    entry = null;
+                    Path tempFile = cache.createTempFile(item.getUrl());
+                    try {
+                        write(tempFile, response, false, digest);
+                        digested = true;
+                        entry = cache.store(item.getUrl(), tempFile, response.getHeader("ETag"), response.getHeader("Last-Modified"));
+                    } finally {
+                        Files.deleteIfExists(tempFile);
+                    }
+                }
+            }
+            cache.copyTo(entry, item.getTarget());
+            if (journal != null) {
+                journal.completed(item, entry.getSize(), entry.getEtag() != null ? entry.getEtag() : entry.getLastModified());
+            }
+        } finally {
+            cache.release(entry);
+        }
+        if (digested) {
+            recordChecksum(item, digest);
+        } else {
+            // nothing was downloaded, the cached file has to be read
+            recordChecksum(item, item.getTarget());
+        }
+    }
+
+    /**
+     * Downloads an ALTO file and extracts its text in the same pass: the parser reads the response, and everything it reads is written
+     * to the ALTO file, so the file is parsed once and never read back. These files are not cached, and partial files are not continued.
+     */
+    private void fetchAlto(DownloadItem item, AltoTextExtractor altoText) throws IOException {
+        DownloadJournal journal = item.getJob().getJournal();
+        Path xmlFile = AltoTextExtractor.xmlFile(item.getTarget());
+        List<OutputFile> files = new ArrayList<>();
+        try (HttpDownloadClient.Response response = get(item, null)) {
+            checkStatus(response);
+            String validator = getValidator(response);
+            if (journal != null) {
+                journal.started(item, validator);
+            }
+            OutputFile xml = altoText.isKeepXml() ? add(files, new OutputFile(xmlFile, newDigest(item))) : null;
+            OutputFile text = altoText.isText() ? add(files, new OutputFile(AltoTextExtractor.textFile(xmlFile), newDigest(item))) : null;
+            OutputFile words = altoText.isWords() ? add(files, new OutputFile(AltoTextExtractor.wordsFile(xmlFile), newDigest(item))) : null;
+            try (InputStream in = new CopyingInputStream(response.getBody(), xml == null ? null : xml.out)) {
+                Writer textOut = text == null ? null : new OutputStreamWriter(text.out, StandardCharsets.UTF_8);
+                Writer wordsOut = words == null ? null : new OutputStreamWriter(words.out, StandardCharsets.UTF_8);
+                AltoTextExtractor.extract(in, textOut, wordsOut);
+                if (textOut != null) {
+                    textOut.flush();
+                }
+                if (wordsOut != null) {
+                    wordsOut.flush();
+                }
+                // whatever follows the document belongs to the ALTO file as well
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (in.read(buffer) != -1) {
+                    // copied by the stream
+                }
+            }
+            for (OutputFile file : files) {
+                file.commit();
+            }
+            if (journal != null) {
+                journal.completed(item, Files.size(item.getTarget()), validator);
+            }
+        } catch (IOException e) {
+            for (OutputFile file : files) {
+                file.discard();
+            }
+            throw e;
+        }
+        for (OutputFile file : files) {
+            recordChecksum(withTarget(item, file.target), file.digest);
+        }
+    }
+
+    private static OutputFile add(List<OutputFile> files, OutputFile file) {
+        files.add(file);
+        return file;
+    }
+
+    /**
+     * A file written during a download: a ".part" file next to its target, or a buffer for an archive entry
+     */
+    private class OutputFile {
+        final Path target;
+        final MessageDigest digest;
+        final OutputStream out;
+        private final ByteArrayOutputStream buffer;
+
+        OutputFile(Path target, MessageDigest digest) throws IOException {
+            this.target = target;
+            this.digest = digest;
+            OutputStream stream;
+            if (sink != null) {
+                buffer = new ByteArrayOutputStream();
+                stream = buffer;
+            } else {
+                buffer = null;
+                stream = new BufferedOutputStream(Files.newOutputStream(partFile(target)), BUFFER_SIZE);
+            }
+            out = digest != null ? new DigestOutputStream(stream, digest) : stream;
+        }
+
+        /**
+         * Renames the complete file to its target, or adds it to the archive
+         */
+        void commit() throws IOException {
+            out.close();
+            if (buffer != null) {
+                sink.write(entryName(target), buffer.toByteArray(), buffer.size());
+            } else {
+                moveToTarget(partFile(target), target);
+            }
+        }
+
+        void discard() {
+            try {
+                out.close();
+                if (buffer == null) {
+                    Files.deleteIfExists(partFile(target));
+                }
+            } catch (IOException e) {
+                // the download failed anyway
+            }
+        }
+    }
+
+    /**
+     * Copies everything that is read to an output stream, which may be null, and reports the progress
+     */
+    private class CopyingInputStream extends FilterInputStream {
+        private final OutputStream copy;
+
+        CopyingInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                if (copy != null) {
+                    copy.write(b);
+                }
+                progress.bytesTransferred(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                if (copy != null) {
+                    copy.write(b, off, read);
+                }
+                progress.bytesTransferred(read);
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Resolves the image request against the info.json of the image service. Tiled images are assembled from the tiles, unless the
+     * service has none.
+     */
+    private void fetchFromService(DownloadItem item) throws IOException {
+        DownloadJournal journal = item.getJob().getJournal();
+        if (item.getKind() == DownloadItem.Kind.SERVICE_IMAGE) {
+            fetch(new DownloadItem(imageServices.getImageUrl(item.getUrl(), imageRequest), item.getTarget(), DownloadItem.Kind.IMAGE,
+                    item.getJob()));
+            if (journal != null) {
+                journal.completed(journalItem(item), Files.size(item.getTarget()), null);
+            }
+            return;
+        }
+        ImageServiceInfo info = imageServices.getInfo(item.getUrl());
+        if (!info.isTiled()) {
+            DownloadItem image = new DownloadItem(imageRequest.buildUrl(info), item.getTarget(), DownloadItem.Kind.IMAGE, item.getJob());
+            // the scheduler leaves tiled images to the limits of the tiles
+            tiledDownloader.getHostLimits().call(image.getUrl(), () -> {
+                fetch(image);
+                return null;
+            });
+            if (journal != null) {
+                journal.completed(journalItem(item), Files.size(item.getTarget()), null);
+            }
+            return;
+        }
+        if (sink != null) {
+            Path tempFile = Files.createTempFile("iiif-downloader", ".jpg");
+            try {
+                tiledDownloader.download(info, imageRequest.scaleFactor(info), tempFile);
+                sink.write(entryName(item.getTarget()), tempFile);
+                recordChecksum(item, tempFile);
+            } finally {
+                Files.deleteIfExists(partFile(tempFile));
+                Files.deleteIfExists(tempFile);
+            }
+            return;
+        }
+        try {
+            tiledDownloader.download(info, imageRequest.scaleFactor(info), item.getTarget());
+        } finally {
+            Files.deleteIfExists(partFile(item.getTarget()));
+        }
+        if (journal != null) {
+            journal.completed(journalItem(item), Files.size(item.getTarget()), null);
+        }
+        // the image is encoded locally, so there is no download stream to calculate the digest on
+        recordChecksum(item, item.getTarget());
+    }
+
+    /**
+     * Downloads a file into memory and adds it to the archive when it is complete. Files larger than {@link #MAX_BUFFERED_ENTRY} are
+     * collected in a temporary file instead.
+     */
+    private void fetchToSink(DownloadItem item) throws IOException {
+        String name = entryName(item.getTarget());
+        MessageDigest digest = newDigest(item);
+        try (HttpDownloadClient.Response response = get(item, null)) {
+            checkStatus(response);
+            long length = response.getContentLength();
+            // one byte more than announced, so that a complete body does not make the buffer grow
+            byte[] data = new byte[length >= 0 && length < MAX_BUFFERED_ENTRY ? (int) length + 1 : BUFFER_SIZE];
+            try (InputStream in = response.getBody()) {
+                int filled = 0;
+                int read;
+                while ((read = in.read(data, filled, data.length - filled)) != -1) {
+                    filled += read;
+                    progress.bytesTransferred(read);
+                    if (filled == data.length) {
+                        if (data.length >= MAX_BUFFERED_ENTRY) {
+                            writeSpooled(name, data, in, digest);
+                            recordChecksum(item, digest);
+                            return;
+                        }
+                        data = Arrays.copyOf(data, Math.min(2 * data.length, MAX_BUFFERED_ENTRY));
+                    }
+                }
+                sink.write(name, data, filled);
+                if (digest != null) {
+                    digest.update(data, 0, filled);
+                }
+            }
+        }
+        recordChecksum(item, digest);
+    }
+
+    private void writeSpooled(String name, byte[] start, InputStream in, MessageDigest digest) throws IOException {
+        Path tempFile = Files.createTempFile("iiif-downloader", ".part");
+        try {
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                out.write(start);
+                if (digest != null) {
+                    digest.update(start);
+                }
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    if (digest != null) {
+                        digest.update(buffer, 0, read);
+                    }
+                    progress.bytesTransferred(read);
+                }
+            }
+            sink.write(name, tempFile);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * @return the name of the archive entry for a target file
+     */
+    static String entryName(Path target) {
+        return target.normalize().toString().replace('\\', '/').replaceFirst("^/+", "");
+    }
+
+    private HttpDownloadClient.Response get(DownloadItem item, Map<String, String> headers) throws IOException {
+        // ALTO compresses well, but compressed bodies cannot be continued with range requests
+        boolean compressed = item.getKind() == DownloadItem.Kind.ALTO && (headers == null || !headers.containsKey("Range"));
+        // hedged here, where the request is sent: IIIFDownloaderMain.downloadImageAndAlto only queues the items
+        if (hedger != null && item.getKind() == DownloadItem.Kind.IMAGE) {
+            return hedger.get(item.getUrl(), headers, compressed);
+        }
+        return client.get(item.getUrl(), headers, compressed);
+    }
+
+    private static HttpDownloadClient.Response checkStatus(HttpDownloadClient.Response response) throws HttpStatusException {
+        if (response.getStatusCode() != HTTP_OK && response.getStatusCode() != HTTP_PARTIAL) {
+            throw new HttpStatusException(response.getStatusCode(), response.getUrl(), response.getHeader("Retry-After"));
+        }
+        return response;
+    }
+
+    private static boolean isRangeResponse(HttpDownloadClient.Response response, long offset) {
+        if (response.getStatusCode() != HTTP_PARTIAL) {
+            return false;
+        }
+        String contentRange = response.getHeader("Content-Range");
+        return contentRange != null && contentRange.startsWith("bytes " + offset + "-");
+    }
+
+    /**
+     * @return a validator usable in an If-Range header: a strong ETag or else the Last-Modified date
+     */
+    private static String getValidator(HttpDownloadClient.Response response) {
+        String etag = response.getHeader("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return response.getHeader("Last-Modified");
+    }
+
+    /**
+     * Downloads the body of a response to a ".part" file and renames it to the destination file when it is complete
+     *
+     * @param destFile
+     * @param response
+     * @param append continue an existing ".part" file instead of starting over
+     * @param digest updated with the content of the file, may be null
+     * @throws IOException
+     */
+    public void downloadWithProgress(Path destFile, HttpDownloadClient.Response response, boolean append, MessageDigest digest)
+            throws IOException {
+        Path partFile = partFile(destFile);
+        write(partFile, response, append, digest);
+        moveToTarget(partFile, destFile);
+    }
+
+    /**
+     * Renames a complete ".part" file to its target. This replaces the target instead of writing into it, so a hard link into the
+     * download cache is never overwritten.
+     */
+    static void moveToTarget(Path partFile, Path target) throws IOException {
+        try {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(partFile, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the body of a response to a file through a file channel. The file is preallocated if the length of the body is known, and the
+     * body is written in large blocks to keep the number of system calls low. The digest is calculated on the same blocks.
+     */
+    private void write(Path file, HttpDownloadClient.Response response, boolean append, MessageDigest digest) throws IOException {
+        if (append && digest != null) {
+            // the digest has to include the part downloaded before
+            ChecksumManifest.update(file, digest);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = response.getBody(); RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw");
+                FileChannel channel = raf.getChannel()) {
+            long position = append ? channel.size() : 0;
+            long contentLength = response.getContentLength();
+            // the length of a compressed body says nothing about the size of the file
+            if (contentLength > 0 && !"gzip".equalsIgnoreCase(response.getHeader("Content-Encoding"))) {
+                raf.setLength(position + contentLength);
+            }
+            try {
+                BlockReader reader = new BlockReader(in);
+                int filled;
+                while ((filled = reader.fill(buffer)) > 0) {
+                    ByteBuffer block = ByteBuffer.wrap(buffer, 0, filled);
+                    while (block.hasRemaining()) {
+                        position += channel.write(block, position);
+                    }
+                    if (digest != null) {
+                        digest.update(buffer, 0, filled);
+                    }
+                    progress.bytesTransferred(filled);
+                }
+            } finally {
+                // also after a failure: the size of a partial file is where the next request continues
+                channel.truncate(position);
+            }
+        }
+    }
+
+    /**
+     * Reads a stream in blocks. If reading fails, the bytes received before are returned first and the error is thrown by the next call,
+     * so that they are kept in the partial file.
+     */
+    private static class BlockReader {
+        private final InputStream in;
+        private IOException failure;
+
+        BlockReader(InputStream in) {
+            this.in = in;
+        }
+
+        /**
+         * Reads from the stream until the buffer is full or the stream ends
+         *
+         * @return the number of bytes read, 0 at the end of the stream
+         */
+        int fill(byte[] buffer) throws IOException {
+            if (failure != null) {
+                throw failure;
+            }
+            int filled = 0;
+            try {
+                int read;
+                while (filled < buffer.length && (read = in.read(buffer, filled, buffer.length - filled)) != -1) {
+                    filled += read;
+                }
+            } catch (IOException e) {
+                if (filled == 0) {
+                    throw e;
+                }
+                failure = e;
+            }
+            return filled;
+        }
+    }
+
+    static Path partFile(Path target) {
+        return target.resolveSibling(target.getFileName() + PART_SUFFIX);
+    }
+}
@@ -0,0 +1,79 @@
+package de.intranda.iiif.downloader;
+
+/**
+ * Limits the number of concurrent requests to one host. The limit adapts to the server (additive increase, multiplicative decrease): it
+ * grows by about one for each full window of successful requests, and it is halved when the server signals overload (429, 503) or
+ * requests fail, at most once per typical request duration. When requests become much slower than they used to be, the limit shrinks a
+ * little, so that no long queue builds up in front of the server.
+ *
+ */
+public class HostLimiter {
+    public enum Outcome {
+        SUCCESS,
+        OVERLOAD,
+        ERROR
+    }
+
+    private static final double SHORT_ALPHA = 0.3;
+    private static final double LONG_ALPHA = 0.02;
+    private static final double SLOW_FACTOR = 2.0;
+
+    private final int maxLimit;
+    private double limit;
+    private int inFlight;
+    // request durations in nanoseconds: the recent trend and the long-term level
+    private double shortLatency;
+    private double longLatency;
+    private long lastDecrease;
+
+    /**
+     * @param maxLimit the limit never grows beyond this number of concurrent requests, which is also the initial limit
+     */
+    public HostLimiter(int maxLimit) {
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Waits until another request to the host is allowed
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Ends a request and adapts the limit to its outcome
+     *
+     * @param outcome
+     * @param durationNanos
+     */
+    public synchronized void release(Outcome outcome, long durationNanos) {
+        inFlight--;
+        if (outcome == Outcome.SUCCESS) {
+            shortLatency = shortLatency == 0 ? durationNanos : (1 - SHORT_ALPHA) * shortLatency + SHORT_ALPHA * durationNanos;
+            longLatency = longLatency == 0 ? durationNanos : (1 - LONG_ALPHA) * longLatency + LONG_ALPHA * durationNanos;
+            if (shortLatency > SLOW_FACTOR * longLatency) {
+                limit = Math.max(1, limit * 0.95);
+            } else {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        } else {
+            long now = System.nanoTime();
+            // the requests that were already running when the first error came in must not halve the limit again
+            if (now - lastDecrease > Math.max(shortLatency, 1e9)) {
+                limit = Math.max(1, limit / 2);
+                lastDecrease = now;
+            }
+        }
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+}
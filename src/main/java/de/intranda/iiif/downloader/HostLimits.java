@@ -0,0 +1,112 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link HostLimiter}s of all hosts, shared by the {@link DownloadScheduler} and the requests it does not run itself, like the tiles of
+ * a tiled image. Those requests get the same limits, backoff and retries as the downloads.
+ *
+ */
+public class HostLimits {
+
+    /**
+     * A single request
+     */
+    @FunctionalInterface
+    public interface Request<T> {
+        T run() throws IOException;
+    }
+
+    /**
+     * Thrown when a request still fails after all retries, so that the item it belongs to is not retried as a whole
+     */
+    public static class RetriesExhaustedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RetriesExhaustedException(IOException cause, int attempts) {
+            super(cause.toString() + " (after " + attempts + " attempts)", cause);
+        }
+    }
+
+    private final int maxPerHost;
+    private final int retries;
+    private final RunMetrics metrics;
+    private final Map<String, HostLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxPerHost the maximum number of concurrent requests to a single host
+     * @param retries how often a single request is retried after a transient failure
+     * @param metrics records the retries, may be null
+     */
+    public HostLimits(int maxPerHost, int retries, RunMetrics metrics) {
+        if (maxPerHost < 1) {
+            throw new IllegalArgumentException("the number of connections per host must be at least 1");
+        }
+        this.maxPerHost = maxPerHost;
+        this.retries = retries;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param url
+     * @return the limiter of the host of the URL
+     */
+    public HostLimiter limiter(String url) {
+        return limiters.computeIfAbsent(DownloadScheduler.hostKey(url), h -> new HostLimiter(maxPerHost));
+    }
+
+    /**
+     * Runs a request within the limit of its host and retries transient failures. The calling thread waits during the backoff, so this is
+     * not meant for the workers of the scheduler.
+     *
+     * @param url
+     * @param request
+     * @return the result of the request
+     * @throws IOException the failure of the last attempt
+     */
+    public <T> T call(String url, Request<T> request) throws IOException {
+        HostLimiter limiter = limiter(url);
+        for (int attempt = 0;; attempt++) {
+            try {
+                limiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for " + url);
+            }
+            long start = System.nanoTime();
+            IOException failure;
+            try {
+                T result = request.run();
+                limiter.release(HostLimiter.Outcome.SUCCESS, System.nanoTime() - start);
+                return result;
+            } catch (IOException e) {
+                limiter.release(e instanceof HttpStatusException ? DownloadScheduler.outcome((HttpStatusException) e) : HostLimiter.Outcome.ERROR,
+                        System.nanoTime() - start);
+                failure = e;
+            } catch (RuntimeException e) {
+                limiter.release(HostLimiter.Outcome.ERROR, System.nanoTime() - start);
+                throw e;
+            }
+            if (attempt >= retries || !DownloadScheduler.isTransient(failure) || Thread.currentThread().isInterrupted()) {
+                throw attempt > 0 ? new RetriesExhaustedException(failure, attempt + 1) : failure;
+            }
+            if (metrics != null) {
+                metrics.retried(url);
+            }
+            // the slot of the host is free while waiting
+            sleep(DownloadScheduler.backoffMs(failure, attempt), url);
+        }
+    }
+
+    private static void sleep(long ms, String url) throws InterruptedIOException {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to retry " + url);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Persistent on-disk cache for downloaded files, keyed by URL. Each entry stores the file and its ETag/Last-Modified header, so that it can
+ * be revalidated with a conditional request. The total size is limited; the least recently used entries are evicted first.
+ * <p>
+ * Files are handed out by hard-linking them to the target (or copying them if the target is on another file system). The data files are
+ * therefore never modified; the time of the last access is the modification time of the {@code .meta} file of an entry.
+ *
+ */
+public class HttpCache {
+    private static final String DATA_SUFFIX = ".data";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    @Data
+    @AllArgsConstructor
+    public static class Entry {
+        String key;
+        String etag;
+        String lastModified;
+        long size;
+    }
+
+    private final Path folder;
+    private final long maxSize;
+    // access ordered, the first entry is the least recently used one
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> pinned = new HashMap<>();
+    private long totalSize;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * Opens the cache in the given folder and evicts entries if it is larger than allowed
+     *
+     * @param folder
+     * @param maxSize maximum size in bytes
+     * @throws IOException
+     */
+    public HttpCache(Path folder, long maxSize) throws IOException {
+        this.folder = folder;
+        this.maxSize = maxSize;
+        Files.createDirectories(folder);
+        List<Path> metaFiles = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(folder)) {
+            for (Path p : ds) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // left over from an interrupted run
+                    Files.deleteIfExists(p);
+                } else if (name.endsWith(DATA_SUFFIX)) {
+                    String key = name.substring(0, name.length() - DATA_SUFFIX.length());
+                    if (!Files.exists(metaFile(key))) {
+                        Files.deleteIfExists(p);
+                    }
+                } else if (name.endsWith(META_SUFFIX)) {
+                    metaFiles.add(p);
+                }
+            }
+        }
+        metaFiles.sort(Comparator.comparing(HttpCache::lastAccess));
+        for (Path p : metaFiles) {
+            String name = p.getFileName().toString();
+            String key = name.substring(0, name.length() - META_SUFFIX.length());
+            if (!Files.exists(dataFile(key))) {
+                // the data file was evicted, but the meta file could not be deleted
+                Files.deleteIfExists(p);
+                continue;
+            }
+            long size = Files.size(dataFile(key));
+            sizes.put(key, size);
+            totalSize += size;
+        }
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    private static FileTime lastAccess(Path p) {
+        try {
+            return Files.getLastModifiedTime(p);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Looks up the entry for a URL. A returned entry is protected from eviction until {@link #release(Entry)} is called.
+     *
+     * @param url
+     * @return the entry or null if the URL is not cached
+     * @throws IOException
+     */
+    public Entry lookup(String url) throws IOException {
+        String key = key(url);
+        synchronized (this) {
+            if (!sizes.containsKey(key)) {
+                return null;
+            }
+            pinned.merge(key, 1, Integer::sum);
+        }
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(metaFile(key))) {
+            meta.load(in);
+        } catch (IOException e) {
+            release(key);
+            return null;
+        }
+        if (!url.equals(meta.getProperty("url"))) {
+            release(key);
+            return null;
+        }
+        return new Entry(key, meta.getProperty("etag"), meta.getProperty("lastModified"), Long.parseLong(meta.getProperty("size", "-1")));
+    }
+
+    public void release(Entry entry) {
+        if (entry != null) {
+            release(entry.getKey());
+        }
+    }
+
+    private synchronized void release(String key) {
+        pinned.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * @param url
+     * @return a file in the cache folder to download to before calling {@link #store(String, Path, String, String)}
+     * @throws IOException
+     */
+    public Path createTempFile(String url) throws IOException {
+        return Files.createTempFile(folder, key(url) + ".", TEMP_SUFFIX);
+    }
+
+    /**
+     * Moves a downloaded file into the cache
+     *
+     * @param url
+     * @param tempFile a file created by {@link #createTempFile(String)}
+     * @param etag
+     * @param lastModified
+     * @return the new entry, protected from eviction until it is released
+     * @throws IOException
+     */
+    public Entry store(String url, Path tempFile, String etag, String lastModified) throws IOException {
+        String key = key(url);
+        long size = Files.size(tempFile);
+        Properties meta = new Properties();
+        meta.setProperty("url", url);
+        meta.setProperty("size", Long.toString(size));
+        if (etag != null) {
+            meta.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            meta.setProperty("lastModified", lastModified);
+        }
+        synchronized (this) {
+            Path metaTemp = Files.createTempFile(folder, key + ".", TEMP_SUFFIX);
+            try (OutputStream out = Files.newOutputStream(metaTemp)) {
+                meta.store(out, null);
+            }
+            Files.move(tempFile, dataFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(metaTemp, metaFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Long old = sizes.put(key, size);
+            totalSize += size - (old == null ? 0 : old);
+            pinned.merge(key, 1, Integer::sum);
+            evict();
+        }
+        return new Entry(key, etag, lastModified, size);
+    }
+
+    /**
+     * Makes the cached file available at the target path, as hard link if possible
+     *
+     * @param entry
+     * @param target
+     * @throws IOException
+     */
+    public void copyTo(Entry entry, Path target) throws IOException {
+        Path data = dataFile(entry.getKey());
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, data);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(data, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        try {
+            // not the data file, which is now also the target and whose modification time must not change
+            Files.setLastModifiedTime(metaFile(entry.getKey()), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // the entry is only evicted earlier in a later run
+        }
+        synchronized (this) {
+            // moves the entry to the end of the access order
+            sizes.get(entry.getKey());
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = sizes.entrySet().iterator();
+        while (totalSize > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> e = it.next();
+            if (pinned.containsKey(e.getKey())) {
+                continue;
+            }
+            try {
+                // the data file first, a meta file without one is removed when the cache is opened again
+                Files.deleteIfExists(dataFile(e.getKey()));
+            } catch (IOException ex) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(metaFile(e.getKey()));
+            } catch (IOException ex) {
+                // orphaned, see above
+            }
+            totalSize -= e.getValue();
+            it.remove();
+        }
+    }
+
+    public void countHit() {
+        hits.incrementAndGet();
+    }
+
+    public void countMiss() {
+        misses.incrementAndGet();
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    private Path dataFile(String key) {
+        return folder.resolve(key + DATA_SUFFIX);
+    }
+
+    private Path metaFile(String key) {
+        return folder.resolve(key + META_SUFFIX);
+    }
+
+    private static String key(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
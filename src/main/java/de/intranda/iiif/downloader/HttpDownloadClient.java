@@ -0,0 +1,316 @@
+package de.intranda.iiif.downloader;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+/**
+ * Shared HTTP client for manifests, images and ALTO files. Connections are pooled and kept alive between requests, so that the TCP and TLS
+ * handshakes are not repeated for every file.
+ * <p>
+ * Compression is only requested explicitly (for JSON and XML): images do not compress, and compressed responses would break range
+ * requests.
+ *
+ */
+public class HttpDownloadClient implements Closeable {
+
+    /**
+     * Response of a GET request. The connection is returned to the pool when the response is closed.
+     */
+    public static class Response implements Closeable {
+        private final CloseableHttpResponse response;
+        private final HttpRequestBase request;
+        private final BandwidthLimiter bandwidthLimiter;
+        private final RunMetrics metrics;
+        private final long startNanos;
+        private final long ttfbNanos;
+        private long bytesRead;
+        private boolean closed;
+
+        private Response(CloseableHttpResponse response, HttpRequestBase request, BandwidthLimiter bandwidthLimiter, RunMetrics metrics,
+                long startNanos) {
+            this.response = response;
+            this.request = request;
+            this.bandwidthLimiter = bandwidthLimiter;
+            this.metrics = metrics;
+            this.startNanos = startNanos;
+            this.ttfbNanos = System.nanoTime() - startNanos;
+        }
+
+        /**
+         * @return the time from sending the request until the response headers were received
+         */
+        public long getTtfbNanos() {
+            return ttfbNanos;
+        }
+
+        public int getStatusCode() {
+            return response.getStatusLine().getStatusCode();
+        }
+
+        /**
+         * @param name
+         * @return the value of the first header with this name or null
+         */
+        public String getHeader(String name) {
+            Header header = response.getFirstHeader(name);
+            return header == null ? null : header.getValue();
+        }
+
+        /**
+         * @return the length of the body as sent by the server, or -1 if unknown
+         */
+        public long getContentLength() {
+            HttpEntity entity = response.getEntity();
+            return entity == null ? -1 : entity.getContentLength();
+        }
+
+        /**
+         * @return the body, decompressed if the server sent it gzip-encoded
+         * @throws IOException
+         */
+        public InputStream getBody() throws IOException {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new IOException("empty response from " + request.getURI());
+            }
+            InputStream in = entity.getContent();
+            if (metrics != null) {
+                in = new CountingInputStream(in);
+            }
+            if (bandwidthLimiter != null) {
+                in = new ThrottledInputStream(in, bandwidthLimiter);
+            }
+            if ("gzip".equalsIgnoreCase(getHeader("Content-Encoding"))) {
+                return new GZIPInputStream(in);
+            }
+            return in;
+        }
+
+        public String getUrl() {
+            return request.getURI().toString();
+        }
+
+        /**
+         * Closes the response without reading the body. The connection is not reused.
+         */
+        public void abort() {
+            request.abort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed && metrics != null) {
+                metrics.requestCompleted(getUrl(), getStatusCode(), ttfbNanos, System.nanoTime() - startNanos, bytesRead);
+            }
+            closed = true;
+            response.close();
+        }
+
+        /**
+         * Counts the bytes received for the body, before they are decompressed
+         */
+        private class CountingInputStream extends FilterInputStream {
+            CountingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    bytesRead++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    bytesRead += read;
+                }
+                return read;
+            }
+        }
+    }
+
+    /**
+     * A request that has not been sent yet. It can be aborted from another thread while it waits for the response.
+     */
+    public class Request {
+        private final HttpRequestBase request;
+        private final String url;
+
+        private Request(HttpRequestBase request, String url) {
+            this.request = request;
+            this.url = url;
+        }
+
+        /**
+         * @return the response, which must be closed by the caller
+         * @throws IOException also if the request was aborted
+         */
+        public Response execute() throws IOException {
+            return HttpDownloadClient.this.execute(request, url);
+        }
+
+        public void abort() {
+            request.abort();
+        }
+    }
+
+    /**
+     * Takes tokens from the bandwidth limiter for all data read from the connection
+     */
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final BandwidthLimiter limiter;
+
+        ThrottledInputStream(InputStream in, BandwidthLimiter limiter) {
+            super(in);
+            this.limiter = limiter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                limiter.acquire(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                limiter.acquire(read);
+            }
+            return read;
+        }
+    }
+
+    private final CloseableHttpClient client;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final RunMetrics metrics;
+
+    /**
+     * @param maxConnections maximum number of pooled connections in total
+     * @param maxPerHost maximum number of pooled connections to a single host
+     * @param connectTimeoutMs
+     * @param readTimeoutMs maximum time without data while reading a response
+     * @param bandwidthLimiter limit for the total bandwidth of all responses, may be null
+     * @param metrics records latency and size of all requests, may be null
+     */
+    public HttpDownloadClient(int maxConnections, int maxPerHost, int connectTimeoutMs, int readTimeoutMs, BandwidthLimiter bandwidthLimiter,
+            RunMetrics metrics) {
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.metrics = metrics;
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxPerHost);
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs)
+                .setSocketTimeout(readTimeoutMs)
+                .setConnectionRequestTimeout(connectTimeoutMs)
+                .build();
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(config)
+                .disableContentCompression()
+                .setUserAgent("goobi-iiif-downloader")
+                .build();
+    }
+
+    /**
+     * Sends a GET request
+     *
+     * @param url
+     * @param headers additional request headers, may be null
+     * @param compressed ask the server for a gzip-compressed response
+     * @return the response, which must be closed by the caller
+     * @throws IOException
+     */
+    public Response get(String url, Map<String, String> headers, boolean compressed) throws IOException {
+        return newGet(url, headers, compressed).execute();
+    }
+
+    /**
+     * Prepares a GET request without sending it
+     *
+     * @param url
+     * @param headers additional request headers, may be null
+     * @param compressed ask the server for a gzip-compressed response
+     * @return the request
+     * @throws MalformedURLException
+     */
+    public Request newGet(String url, Map<String, String> headers, boolean compressed) throws MalformedURLException {
+        HttpGet request;
+        try {
+            request = new HttpGet(url);
+        } catch (IllegalArgumentException e) {
+            throw malformed(url, e);
+        }
+        if (headers != null) {
+            headers.forEach(request::setHeader);
+        }
+        if (compressed) {
+            request.setHeader("Accept-Encoding", "gzip");
+        }
+        return new Request(request, url);
+    }
+
+    /**
+     * Sends a HEAD request, e.g. to find out the size of a file
+     *
+     * @param url
+     * @return the response without a body, which must be closed by the caller
+     * @throws IOException
+     */
+    public Response head(String url) throws IOException {
+        try {
+            return execute(new HttpHead(url), url);
+        } catch (IllegalArgumentException e) {
+            throw malformed(url, e);
+        }
+    }
+
+    private static MalformedURLException malformed(String url, IllegalArgumentException e) {
+        MalformedURLException malformed = new MalformedURLException("invalid URL: " + url);
+        malformed.initCause(e);
+        return malformed;
+    }
+
+    private Response execute(HttpRequestBase request, String url) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return new Response(client.execute(request), request, bandwidthLimiter, metrics, start);
+        } catch (IOException e) {
+            // an aborted request lost a race and did not fail
+            if (metrics != null && !request.isAborted()) {
+                metrics.requestFailed(url, e);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+}
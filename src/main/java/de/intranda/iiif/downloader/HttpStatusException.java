@@ -0,0 +1,58 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import lombok.Getter;
+
+/**
+ * Thrown when a server answers a download request with an error status
+ *
+ */
+public class HttpStatusException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    @Getter
+    private final int statusCode;
+    @Getter
+    private final String url;
+    /** the delay the server asked for with a Retry-After header in seconds, or -1 */
+    @Getter
+    private final long retryAfterSeconds;
+
+    /**
+     * @param statusCode
+     * @param url
+     * @param retryAfter the value of the Retry-After header, may be null
+     */
+    public HttpStatusException(int statusCode, String url, String retryAfter) {
+        super(String.format("the server responded with status code %d for %s", statusCode, url));
+        this.statusCode = statusCode;
+        this.url = url;
+        this.retryAfterSeconds = parseRetryAfter(retryAfter);
+    }
+
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        String value = retryAfter.trim();
+        if (value.matches("\\d+")) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                // too large for a long, the normal backoff applies
+                return -1;
+            }
+        }
+        try {
+            ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, Duration.between(ZonedDateTime.now(date.getZone()), date).getSeconds());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
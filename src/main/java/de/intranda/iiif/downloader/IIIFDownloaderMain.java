@@ -4,43 +4,33 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
-import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.client.fluent.Request;
-
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Model.OptionSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.ParameterException;
+import picocli.CommandLine.ParseResult;
+import picocli.CommandLine.Spec;
 
 /**
  * CLI to download files linked in IIIF manifests.
@@ -51,18 +41,39 @@ import picocli.CommandLine.Option;
 @Command(name = "java -jar goobi-iiif-downloader.jar", sortOptions = false)
 public class IIIFDownloaderMain implements Callable<Integer> {
 
-    @Option(names = { "--manifest", "-m" }, description = "the manifest URL to parse and download from", required = true)
+    @Spec
+    private CommandSpec spec;
+
+    @Option(names = { "--manifest", "-m" }, description = "the manifest URL to parse and download from")
     private String manifestUrl;
 
-    @Option(names = { "--destination", "-d" }, description = "the destination folder to download to", required = true)
+    @Option(names = { "--destination", "-d" }, description = "the destination folder to download to")
     private String destinationFolder;
 
+    @Option(names = { "--batch", "-b" },
+            description = "file with one manifest URL and destination folder per line, separated by whitespace. Use \"-\" to read from stdin. Replaces --manifest and --destination.")
+    private String batchFile;
+
+    @Option(names = { "--collection", "-col" },
+            description = "URL of a IIIF collection. All manifests of the collection and its sub-collections are downloaded into sub-folders of the destination folder. Replaces --manifest.")
+    private String collectionUrl;
+
+    @Option(names = { "--manifest_threads", "-mt" }, description = "the number of manifests of a collection loaded at the same time. Default: 2")
+    private int manifestThreads = 2;
+
+    @Option(names = { "--batch_summary", "-bs" }, description = "file to write the per-manifest summary of a batch or collection to. Default: stdout")
+    private String batchSummaryFile;
+
+    @Option(names = { "--output", "-o" },
+            description = "write all files into one archive instead of single files: a file name ending in .tar or .zip, or \"-\" for a TAR archive on stdout. The destination folders become folders in the archive and are optional for --manifest and --collection.")
+    private String output;
+
     @Option(names = { "--include_structure", "-is" },
-            description = "structure to include - example: \"Strukturtyp::Abbildung\". The option is repeatable.")
+            description = "structures to include, as a filter expression - example: \"Strukturtyp::Abbildung\" or \"(Strukturtyp::Kapitel OR Strukturtyp::Abbildung) AND NOT Titel^=Vorwort\". The option is repeatable.")
     private List<String> includeStructures;
 
     @Option(names = { "--exclude_structure", "-es" },
-            description = "structure to exclude - example: \"Strukturtyp::Abbildung\". The option is repeatable.")
+            description = "structures to exclude, as a filter expression - example: \"Strukturtyp::Abbildung\". The option is repeatable.")
     private List<String> excludeStructures;
 
     @Option(names = { "--structure_mode", "-sm" }, description = "structure mode. Possible values: \"firstpage\" and \"all\"")
@@ -74,9 +85,152 @@ public class IIIFDownloaderMain implements Callable<Integer> {
     @Option(names = { "-ri", "--random_images" }, description = "select random images")
     private boolean selectRandomImages;
 
+    @Option(names = { "-seed", "--seed" }, description = "seed for the random selection of images. The same seed selects the same images again.")
+    private Long seed;
+
+    @Option(names = { "-ps", "--pages_per_structure" },
+            description = "the maximum number of images to download from each included structure, e.g. a few pages of every chapter")
+    private Integer pagesPerStructure;
+
     @Option(names = { "-da", "--download_alto" }, description = "download alto (if present)")
     private boolean downloadAlto;
 
+    @Option(names = { "-at", "--alto_text" }, split = ",",
+            description = "extract the text of ALTO files while they are downloaded: \"txt\" for plain text, \"words\" for a tab-separated file with the coordinates of every word, or both separated by a comma")
+    private List<String> altoText;
+
+    @Option(names = { "-nx", "--no_alto_xml" }, description = "do not keep the ALTO files, only the text extracted with --alto_text")
+    private boolean noAltoXml;
+
+    @Option(names = { "-t", "--threads" }, description = "the number of parallel downloads. Default: 1")
+    private int threads = 1;
+
+    @Option(names = { "-hc", "--host_connections" },
+            description = "the maximum number of parallel downloads from a single host. Fewer are used while the server is overloaded. Default: 4")
+    private int hostConnections = 4;
+
+    @Option(names = { "-rs", "--retries" }, description = "how often a download is retried after a temporary error. Default: 3")
+    private int retries = 3;
+
+    @Option(names = { "-hg", "--hedge" },
+            description = "send a second request for an image that has not been answered within this percentile (e.g. 95) of the response times of earlier images from the same host, and use the first response")
+    private Double hedgePercentile;
+
+    @Option(names = { "-hb", "--hedge_budget" },
+            description = "the maximum number of second requests sent by --hedge, in percent of all image requests to a host. Default: 5")
+    private double hedgeBudget = 5;
+
+    @Option(names = { "-bw", "--max_bandwidth" }, description = "the maximum total download bandwidth in KB/s")
+    private long maxBandwidth;
+
+    @Option(names = { "-tl", "--tiled" },
+            description = "download images as tiles described by the info.json of their image service and stitch them together. For servers that limit or render full-size images slowly.")
+    private boolean tiled;
+
+    @Option(names = { "-sz", "--size" },
+            description = "the size of the images in IIIF syntax: \"max\", \"pct:n\", \"w,\", \",h\", \"w,h\" or \"!w,h\" (fit into w x h). Images are never scaled up. Default: max")
+    private String size;
+
+    @Option(names = { "-mp", "--max_pixels" }, description = "scale images down to at most this number of pixels")
+    private long maxPixels;
+
+    @Option(names = { "-q", "--quality" }, description = "the image quality, e.g. \"gray\" or \"bitonal\". Default: default")
+    private String quality;
+
+    @Option(names = { "-f", "--format" }, description = "the image format, e.g. \"png\" or \"webp\". Default: jpg")
+    private String format;
+
+    @Option(names = { "-cv", "--convert" },
+            description = "write a copy of every image in this format next to it, e.g. \"png\" or \"tif\" (TIFF needs Java 9 or newer). Images are converted on all CPUs while the download continues.")
+    private String convertFormat;
+
+    @Option(names = { "-th", "--thumbnails" }, description = "write a JPEG thumbnail of at most this width and height of every image to a \"thumbs\" folder")
+    private Integer thumbnailSize;
+
+    @Option(names = { "-s", "--streaming" },
+            description = "start downloading while the manifest is still being received.")
+    private boolean streaming;
+
+    @Option(names = { "-r", "--resume" },
+            description = "skip files that were downloaded completely before and continue partially downloaded files. Progress is recorded in a journal in the destination folder.")
+    private boolean resume;
+
+    @Option(names = { "-sha", "--checksums" },
+            description = "calculate SHA-256 checksums while downloading and write them to a BagIt style manifest-sha256.txt in each destination folder")
+    private boolean checksums;
+
+    @Option(names = { "-dd", "--dedup" },
+            description = "replace files with the same content as another file in the destination folder by hard links. Implies --checksums.")
+    private boolean dedup;
+
+    @Option(names = { "-c", "--cache" }, description = "folder for a download cache shared between runs")
+    private String cacheFolder;
+
+    @Option(names = { "-cs", "--cache_size" }, description = "the maximum size of the download cache in MB. Default: 10240")
+    private long cacheSizeMb = 10240;
+
+    @Option(names = { "-ct", "--connect_timeout" }, description = "timeout for connecting to a server in seconds. Default: 30")
+    private int connectTimeout = 30;
+
+    @Option(names = { "-rt", "--read_timeout" }, description = "timeout for receiving data from a server in seconds. Default: 300")
+    private int readTimeout = 300;
+
+    @Option(names = { "-rp", "--report" },
+            description = "file to write a JSON report with timings, latency histograms, bytes, retries and errors per host to")
+    private String reportFile;
+
+    @Option(names = { "-pl", "--plan" },
+            description = "do not download, but write the selected files of the manifests to this tab-separated plan file, which can be downloaded later with --execute")
+    private String planFile;
+
+    @Option(names = { "-hs", "--plan_sizes" }, description = "ask the server for the size of every file of the --plan with a HEAD request")
+    private boolean planSizes;
+
+    @Option(names = { "-ex", "--execute" }, description = "download the files of a plan written with --plan. Replaces --manifest and --destination.")
+    private String executeFile;
+
+    @Option(names = { "-sh", "--shard" },
+            description = "with --execute, only download one part of the plan: \"i/n\" splits the plan into n disjoint parts and downloads the i-th one (from 1 to n)")
+    private String shard;
+
+    @Option(names = { "-srv", "--server" },
+            description = "keep running and accept jobs on this local port: POST /jobs with {\"args\": [...], \"priority\": n}, GET /jobs and GET /jobs/<id> for their status, POST /shutdown to finish. Requests need the header \"Authorization: Bearer <token>\" with the token from --token_file.")
+    private Integer serverPort;
+
+    @Option(names = { "-tf", "--token_file" },
+            description = "with --server, write the access token to this file, which only the owner can read. Default: ${DEFAULT-VALUE}")
+    private String tokenFile = "iiif-downloader.token";
+
+    @Option(names = { "-sp", "--spool" },
+            description = "keep running and read jobs from *.job files in this folder. The status of a finished job is written to a .status file.")
+    private String spoolFolder;
+
+    @Option(names = { "-sr", "--server_root" }, description = "with --server or --spool, only accept jobs whose --destination is inside this folder")
+    private String serverRoot;
+
+    /** the options a job submitted to the server may contain, everything else is set for the whole server */
+    private static final List<String> JOB_OPTIONS = Arrays.asList("--manifest", "--destination", "--include_structure", "--exclude_structure",
+            "--structure_mode", "--maximum_images", "--random_images", "--seed", "--pages_per_structure", "--download_alto", "--alto_text",
+            "--no_alto_xml", "--streaming", "--resume", "--checksums", "--dedup");
+    private static final List<String> SINGLE_RUN_OPTIONS = Arrays.asList("--batch", "--collection", "--output", "--plan", "--execute");
+    /** the options that are resolved into a plan */
+    private static final List<String> SELECTION_OPTIONS = Arrays.asList("--include_structure", "--exclude_structure", "--structure_mode",
+            "--maximum_images", "--random_images", "--seed", "--pages_per_structure", "--download_alto", "--streaming");
+
+    private ProgressReporter progress;
+    private HttpDownloadClient client;
+    private DownloadScheduler scheduler;
+    private HttpCache cache;
+    private OutputSink sink;
+    private RunMetrics metrics = new RunMetrics();
+    // the job that is being queued by this thread
+    private final ThreadLocal<DownloadJob> currentJob = new ThreadLocal<>();
+    // compiled from the include and exclude options by validateSelection()
+    private StructureFilter structureFilter;
+    // the selected files are written to a plan instead of being downloaded
+    private boolean planning;
+    private ImageRequest imageRequest;
+
     public static void main(String[] args) {
         if (args.length == 0) {
             CommandLine cl = new CommandLine(new IIIFDownloaderMain());
@@ -97,121 +251,665 @@ public class IIIFDownloaderMain implements Callable<Integer> {
 
     @Override
     public Integer call() throws Exception {
-        Path dest = Paths.get(destinationFolder);
-        if (!Files.exists(dest)) {
-            Files.createDirectories(dest);
+        boolean serverMode = serverPort != null || spoolFolder != null;
+        if (serverMode) {
+            for (OptionSpec option : spec.commandLine().getParseResult().matchedOptions()) {
+                if (JOB_OPTIONS.contains(option.longestName()) || SINGLE_RUN_OPTIONS.contains(option.longestName())) {
+                    throw new ParameterException(spec.commandLine(),
+                            String.format("%s cannot be used with --server or --spool, the manifest and selection options are given per job",
+                                    option.longestName()));
+                }
+            }
+        } else if (executeFile != null) {
+            for (OptionSpec option : spec.commandLine().getParseResult().matchedOptions()) {
+                if (SELECTION_OPTIONS.contains(option.longestName())) {
+                    throw new ParameterException(spec.commandLine(),
+                            String.format("%s cannot be used with --execute, the files were selected when the plan was written", option.longestName()));
+                }
+            }
+            if (manifestUrl != null || collectionUrl != null || batchFile != null || planFile != null) {
+                throw new ParameterException(spec.commandLine(), "--execute cannot be combined with --manifest, --collection, --batch or --plan");
+            }
+        } else if (batchFile == null && ((manifestUrl == null && collectionUrl == null) || (destinationFolder == null && output == null))) {
+            throw new ParameterException(spec.commandLine(),
+                    "Missing required options: '--manifest' (or '--collection') and '--destination', or '--batch'");
         }
-        Optional<JsonNode> optManifest = getManifest(manifestUrl);
-        if (!optManifest.isPresent()) {
-            System.err.println(String.format("could not load manifest from '%s'", manifestUrl));
-            return 1;
+        if (serverRoot != null && !serverMode) {
+            throw new ParameterException(spec.commandLine(), "--server_root needs --server or --spool");
+        }
+        if (serverRoot != null && !Files.isDirectory(Paths.get(serverRoot))) {
+            throw new ParameterException(spec.commandLine(), String.format("--server_root %s is not a folder", serverRoot));
+        }
+        if (manifestThreads < 1) {
+            throw new ParameterException(spec.commandLine(), "--manifest_threads must be at least 1");
+        }
+        try {
+            imageRequest = new ImageRequest(size, maxPixels, quality, format);
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException(spec.commandLine(), e.getMessage());
+        }
+        if (tiled && (quality != null || format != null)) {
+            throw new ParameterException(spec.commandLine(), "--tiled always writes JPEG images in default quality and cannot be combined with --quality or --format");
         }
-        JsonNode manifest = optManifest.get();
+        if (executeFile != null) {
+            adoptPlannedImages();
+        }
+        validateSelection();
+        if (hedgePercentile != null && (hedgePercentile < 50 || hedgePercentile >= 100)) {
+            throw new ParameterException(spec.commandLine(), "--hedge must be a percentile from 50 to below 100");
+        }
+        if (hedgeBudget <= 0 || hedgeBudget > 100) {
+            throw new ParameterException(spec.commandLine(), "--hedge_budget must be more than 0 and at most 100");
+        }
+        if (output != null && (resume || cacheFolder != null || dedup)) {
+            throw new ParameterException(spec.commandLine(), "--output cannot be combined with --resume, --cache or --dedup");
+        }
+        List<PostProcessor> processors = postProcessors();
+        if (planFile != null && (output != null || resume || checksums || dedup || altoText != null || !processors.isEmpty())) {
+            throw new ParameterException(spec.commandLine(),
+                    "--plan only selects files and cannot be combined with --output, --resume, --checksums, --dedup, --alto_text, --convert or --thumbnails");
+        }
+        if (planSizes && planFile == null) {
+            throw new ParameterException(spec.commandLine(), "--plan_sizes needs --plan");
+        }
+        int[] shardOfPlan = parseShard();
+        if ("-".equals(output)) {
+            // stdout belongs to the archive, all messages go to stderr
+            System.setOut(System.err);
+        }
+        if (selectRandomImages && seed == null) {
+            seed = new Random().nextLong();
+            System.out.println(String.format("Random seed: %d (use --seed to select the same images again)", seed));
+        }
+        if (cacheFolder != null) {
+            this.cache = new HttpCache(Paths.get(cacheFolder), cacheSizeMb * 1024 * 1024);
+        }
+        // one more connection than workers, so that the next manifest of a batch can be loaded while all workers are busy
+        int connections = threads + 1 + (tiled ? hostConnections : 0) + (collectionUrl != null || serverMode ? manifestThreads : 0);
+        // hedges are not limited by the host connections, so the pool needs room for them
+        int hedgesPerHost = hedgePercentile != null ? Math.max(1, hostConnections / 4) : 0;
+        // shared by the scheduler and the tiles, which are limited and retried one by one
+        HostLimits hostLimits = new HostLimits(hostConnections, retries, metrics);
+        int exitCode;
+        try (ProgressReporter progressReporter = ProgressReporter.forStdout();
+                HttpDownloadClient httpClient = new HttpDownloadClient(connections + hedgesPerHost, hostConnections + 1 + hedgesPerHost,
+                        connectTimeout * 1000, readTimeout * 1000, maxBandwidth > 0 ? new BandwidthLimiter(maxBandwidth * 1024) : null, metrics);
+                RequestHedger hedger = hedgePercentile != null
+                        ? new RequestHedger(httpClient, hedgePercentile, hedgeBudget, hedgesPerHost, metrics) : null;
+                TiledImageDownloader tiledDownloader = tiled
+                        ? new TiledImageDownloader(httpClient, progressReporter, hostConnections, hostLimits) : null;
+                OutputSink sink = output != null ? openSink() : null;
+                DownloadPlan.Writer planWriter = planFile != null ? new DownloadPlan.Writer(Paths.get(planFile), new DownloadPlan.ImageOptions(imageRequest, tiled)) : null;
+                // closed after the scheduler, when all downloaded files are handed over
+                PostProcessingStage postProcessing = processors.isEmpty() ? null
+                        : new PostProcessingStage(processors, Runtime.getRuntime().availableProcessors(),
+                                2 * Runtime.getRuntime().availableProcessors(), metrics);
+                DownloadScheduler downloadScheduler = new DownloadScheduler(planWriter != null
+                        ? new DownloadPlanner(planWriter, httpClient, new ImageServiceCache(httpClient), imageRequest, planSizes)
+                        : new FileDownloader(httpClient, cache, progressReporter, new ImageServiceCache(httpClient), imageRequest, tiledDownloader,
+                                sink, hedger),
+                        progressReporter, threads, hostLimits, retries, metrics, postProcessing)) {
+            this.sink = sink;
+            this.progress = progressReporter;
+            this.client = httpClient;
+            this.scheduler = downloadScheduler;
+            this.planning = planWriter != null;
+            if (serverMode) {
+                exitCode = runServer();
+            } else if (executeFile != null) {
+                exitCode = runPlan(shardOfPlan[0], shardOfPlan[1]);
+            } else if (batchFile != null) {
+                exitCode = runBatch();
+            } else if (collectionUrl != null) {
+                exitCode = runCollection();
+            } else {
+                exitCode = runSingle();
+            }
+        }
+        if (cache != null) {
+            System.out.println(String.format("Cache: %d hit(s), %d miss(es).", cache.getHits(), cache.getMisses()));
+        }
+        if (reportFile != null) {
+            try {
+                metrics.writeReport(Paths.get(reportFile), settings(), progress);
+            } catch (IOException e) {
+                System.err.println(String.format("could not write report to '%s': %s", reportFile, e));
+                exitCode = 1;
+            }
+        }
+        return exitCode;
+    }
+
+    /**
+     * @return the index (from 0) and the number of shards
+     */
+    private int[] parseShard() {
+        if (shard == null) {
+            return new int[] { 0, 1 };
+        }
+        if (executeFile == null) {
+            throw new ParameterException(spec.commandLine(), "--shard needs --execute");
+        }
+        String[] parts = shard.split("/");
+        try {
+            if (parts.length == 2) {
+                int index = Integer.parseInt(parts[0].trim());
+                int count = Integer.parseInt(parts[1].trim());
+                if (count >= 1 && index >= 1 && index <= count) {
+                    return new int[] { index - 1, count };
+                }
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new ParameterException(spec.commandLine(), "--shard must be \"i/n\" with 1 <= i <= n, e.g. \"2/4\"");
+    }
+
+    /**
+     * Checks the options that select the pages of a manifest
+     */
+    private void validateSelection() {
+        try {
+            structureFilter = StructureFilter.compile(includeStructures, excludeStructures);
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException(spec.commandLine(), e.getMessage());
+        }
+        if (maximumImages != null && maximumImages < 0) {
+            throw new ParameterException(spec.commandLine(), "--maximum_images must not be negative");
+        }
+        if (pagesPerStructure != null && (includeStructures == null || pagesPerStructure < 1)) {
+            throw new ParameterException(spec.commandLine(), "--pages_per_structure must be at least 1 and needs --include_structure");
+        }
+        if (altoText != null && (!downloadAlto || !Arrays.asList("txt", "words").containsAll(altoText))) {
+            throw new ParameterException(spec.commandLine(), "--alto_text needs --download_alto and takes \"txt\", \"words\" or both");
+        }
+        if (noAltoXml && altoText == null) {
+            throw new ParameterException(spec.commandLine(), "--no_alto_xml needs --alto_text");
+        }
+    }
+
+    /**
+     * @return the processors for downloaded images, in the order they are run
+     */
+    private List<PostProcessor> postProcessors() {
+        List<PostProcessor> processors = new ArrayList<>();
+        if ((convertFormat != null || thumbnailSize != null) && output != null) {
+            throw new ParameterException(spec.commandLine(), "--convert and --thumbnails cannot be combined with --output");
+        }
+        try {
+            if (convertFormat != null) {
+                processors.add(new ImageConverter(convertFormat));
+            }
+            if (thumbnailSize != null) {
+                processors.add(new ThumbnailGenerator(thumbnailSize));
+            }
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException(spec.commandLine(), e.getMessage());
+        }
+        return processors;
+    }
+
+    /**
+     * @return the options that affect performance, for the report
+     */
+    private Map<String, Object> settings() {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("threads", threads);
+        settings.put("hostConnections", hostConnections);
+        settings.put("manifestThreads", manifestThreads);
+        settings.put("retries", retries);
+        settings.put("hedge", hedgePercentile);
+        settings.put("hedgeBudget", hedgeBudget);
+        settings.put("maxBandwidthKBs", maxBandwidth);
+        settings.put("streaming", streaming);
+        settings.put("tiled", tiled);
+        settings.put("imageRequest", imageRequest.isDefault() ? "default" : imageRequest.toString());
+        settings.put("cache", cacheFolder != null);
+        settings.put("output", output);
+        settings.put("convert", convertFormat);
+        settings.put("thumbnails", thumbnailSize);
+        return settings;
+    }
+
+    private OutputSink openSink() throws IOException {
+        try {
+            return OutputSink.open(output);
+        } catch (IllegalArgumentException e) {
+            throw new ParameterException(spec.commandLine(), e.getMessage());
+        }
+    }
+
+    /**
+     * @return the destination folder, or the root of the archive if there is none
+     */
+    private Path destination() {
+        return destinationFolder == null ? Paths.get("") : Paths.get(destinationFolder);
+    }
 
+    private int runSingle() {
+        DownloadJob job = new DownloadJob(manifestUrl, destination(), this::finishJob);
         try {
-            downloadPages(manifest);
+            boolean loaded;
+            try {
+                loaded = queueJob(job);
+            } finally {
+                job.queueingFinished();
+                scheduler.awaitCompletion();
+            }
+            if (!loaded) {
+                System.err.println(String.format("could not load manifest from '%s'", manifestUrl));
+                return 1;
+            }
         } catch (IOException e) {
             System.err.println("error downloading images/alto");
             return 1;
         }
+        if (job.getSkipped() > 0) {
+            System.out.println(String.format("Skipped %d file(s) that were already downloaded.", job.getSkipped()));
+        }
+        List<DownloadFailure> failures = job.getFailures();
+        if (!failures.isEmpty()) {
+            System.err.println(String.format("%d download(s) failed:", failures.size()));
+            for (DownloadFailure failure : failures) {
+                System.err.println(String.format("  %s -> %s: %s", failure.getItem().getUrl(), failure.getItem().getTarget(),
+                        failure.getMessage()));
+            }
+            return 1;
+        }
+        return 0;
+    }
 
+    /**
+     * Takes the size, quality and format of the images and --tiled from the plan to execute, because images requested from their image
+     * service are only resolved to a URL now
+     *
+     * @throws ParameterException if the plan cannot be read or this run asks for different images
+     */
+    private void adoptPlannedImages() {
+        DownloadPlan.ImageOptions planned;
+        try {
+            planned = DownloadPlan.readImageOptions(Paths.get(executeFile));
+        } catch (IOException e) {
+            throw new ParameterException(spec.commandLine(), String.format("could not read plan '%s': %s", executeFile, e.getMessage()));
+        }
+        if (planned == null) {
+            // written by an earlier version, the options of this run apply
+            return;
+        }
+        ParseResult parsed = spec.commandLine().getParseResult();
+        boolean given = Stream.of("--size", "--max_pixels", "--quality", "--format", "--tiled").anyMatch(parsed::hasMatchedOption);
+        if (given && !planned.equals(new DownloadPlan.ImageOptions(imageRequest, tiled))) {
+            throw new ParameterException(spec.commandLine(), String.format(
+                    "the plan was written for images with %s; leave out --size, --max_pixels, --quality, --format and --tiled or write a new plan",
+                    planned));
+        }
+        imageRequest = planned.getRequest();
+        tiled = planned.isTiled();
+    }
+
+    /**
+     * Downloads the files of one shard of a plan. Each destination folder of the plan gets its own job, so journal and checksums are kept
+     * per folder as in a normal run.
+     */
+    private int runPlan(int shardIndex, int shardCount) throws IOException {
+        Map<Path, DownloadJob> jobs = new LinkedHashMap<>();
+        long[] plannedBytes = new long[1];
+        int total;
+        try {
+            total = DownloadPlan.read(Paths.get(executeFile), shardIndex, shardCount, entry -> {
+                DownloadJob job = jobs.get(entry.getDestination());
+                if (job == null) {
+                    job = new DownloadJob(entry.getManifestUrl(), entry.getDestination(), this::finishJob);
+                    prepareJob(job);
+                    jobs.put(entry.getDestination(), job);
+                }
+                Path target = entry.getDestination().resolve(entry.getTarget());
+                if (entry.getKind() == DownloadItem.Kind.ALTO && job.getAltoText() != null) {
+                    target = job.getAltoText().primaryFile(target);
+                }
+                plannedBytes[0] += Math.max(0, entry.getSize());
+                submit(new DownloadItem(entry.getUrl(), target, entry.getKind(), job));
+            });
+        } finally {
+            jobs.values().forEach(DownloadJob::queueingFinished);
+            scheduler.awaitCompletion();
+        }
+        int queued = 0;
+        List<DownloadFailure> failures = new ArrayList<>();
+        for (DownloadJob job : jobs.values()) {
+            queued += job.getQueued();
+            failures.addAll(job.getFailures());
+        }
+        System.out.println(String.format("Shard %d/%d: %d of %d file(s) in the plan (%.1f MB planned).", shardIndex + 1, shardCount, queued,
+                total, plannedBytes[0] / 1048576.0));
+        if (!failures.isEmpty()) {
+            System.err.println(String.format("%d download(s) failed:", failures.size()));
+            for (DownloadFailure failure : failures) {
+                System.err.println(String.format("  %s -> %s: %s", failure.getItem().getUrl(), failure.getItem().getTarget(),
+                        failure.getMessage()));
+            }
+            return 1;
+        }
         return 0;
     }
 
-    private void downloadPages(JsonNode manifest)
-            throws MalformedURLException, IOException {
+    /**
+     * Queues the manifests of the batch file one after the other. Downloads of all manifests share the worker pool, so the next manifest is
+     * already loaded while the last files of the previous one are still downloading.
+     */
+    private int runBatch() throws IOException {
+        try (BufferedReader reader = "-".equals(batchFile) ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(batchFile), StandardCharsets.UTF_8);
+                BatchSummary summary = batchSummaryFile == null ? new BatchSummary(System.out) : new BatchSummary(Paths.get(batchSummaryFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+", 2);
+                if (fields.length < 2) {
+                    System.err.println(String.format("line %d of the batch file needs a manifest URL and a destination folder", lineNumber));
+                    summary.lineSkipped();
+                    continue;
+                }
+                queueSummarizedJob(fields[0], Paths.get(fields[1]), summary);
+            }
+            scheduler.awaitCompletion();
+            return summary.getFailedJobs() > 0 ? 1 : 0;
+        }
+    }
 
-        if (includeStructures != null || excludeStructures != null) {
-            downloadStructures(maximumImages, downloadAlto, includeStructures, excludeStructures, selectRandomImages,
-                    "firstpage".equals(structureMode), manifest);
-        } else {
-            JsonNode seq = manifest.get("sequences").get(0);
-            JsonNode canvases = seq.get("canvases");
-            if (!canvases.isArray()) {
-                //error - do something
-            }
-            ArrayNode lstCanvases = (ArrayNode) canvases;
-            if (selectRandomImages && maximumImages != null && maximumImages < lstCanvases.size()) {
-                downloadRandom(maximumImages, downloadAlto, lstCanvases);
-            } else {
-                downloadSequential(maximumImages, downloadAlto, lstCanvases);
+    /**
+     * Downloads all manifests of a collection, each into its own sub-folder of the destination folder. Several manifests are loaded at
+     * the same time while their files are downloaded by the shared worker pool.
+     */
+    private int runCollection() throws IOException, InterruptedException {
+        Path destination = destination();
+        UrlSet folderNames = new UrlSet();
+        try (BatchSummary summary = batchSummaryFile == null ? new BatchSummary(System.out) : new BatchSummary(Paths.get(batchSummaryFile))) {
+            CollectionCrawler crawler = new CollectionCrawler(client, manifestThreads, url -> {
+                String folder = folderName(url);
+                if (!folderNames.add(folder)) {
+                    // another manifest with the same name, e.g. from a different server
+                    folder = folder + "_" + Long.toHexString(UrlSet.fingerprint(url));
+                }
+                queueSummarizedJob(url, destination.resolve(folder), summary);
+            });
+            crawler.crawl(collectionUrl);
+            scheduler.awaitCompletion();
+            System.out.println(String.format("Found %d manifest(s).", crawler.getManifests()));
+            return summary.getFailedJobs() > 0 || crawler.getCollectionErrors() > 0 ? 1 : 0;
+        }
+    }
+
+    /**
+     * Accepts jobs until the server is shut down. All jobs share the worker pool, connections and the cache, and are kept in one warm JVM.
+     */
+    private int runServer() throws IOException, InterruptedException {
+        try (DownloadServer server = new DownloadServer(this::parseJob, manifestThreads)) {
+            if (serverPort != null) {
+                server.startHttp(serverPort, Paths.get(tokenFile));
+            }
+            if (spoolFolder != null) {
+                server.watchSpool(Paths.get(spoolFolder));
+            }
+            server.awaitShutdown();
+            scheduler.awaitCompletion();
+        }
+        return 0;
+    }
+
+    /**
+     * Reads the command line arguments of a job submitted to the server. The job gets its own options for the manifest and the selection
+     * of pages and shares everything else with the server.
+     *
+     * @throws IllegalArgumentException if the arguments are invalid or contain options of the server
+     */
+    private ServerJob parseJob(String id, List<String> args, int priority) {
+        IIIFDownloaderMain options = new IIIFDownloaderMain();
+        try {
+            ParseResult result = new CommandLine(options).parseArgs(args.toArray(new String[0]));
+            for (OptionSpec option : result.matchedOptions()) {
+                if (!JOB_OPTIONS.contains(option.longestName())) {
+                    throw new IllegalArgumentException(
+                            String.format("%s is set for the whole server and cannot be given per job", option.longestName()));
+                }
+            }
+            if (options.manifestUrl == null || options.destinationFolder == null) {
+                throw new IllegalArgumentException("a job needs --manifest and --destination");
+            }
+            if (serverRoot != null && !isInside(Paths.get(options.destinationFolder), Paths.get(serverRoot))) {
+                throw new IllegalArgumentException(String.format("the destination must be inside %s", serverRoot));
             }
+            options.validateSelection();
+        } catch (ParameterException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
         }
+        if (options.selectRandomImages && options.seed == null) {
+            options.seed = new Random().nextLong();
+        }
+        options.progress = progress;
+        options.client = client;
+        options.scheduler = scheduler;
+        options.cache = cache;
+        options.metrics = metrics;
+        options.imageRequest = imageRequest;
+        options.tiled = tiled;
+        return new ServerJob(id, options.manifestUrl, Paths.get(options.destinationFolder), priority, options.seed, new ServerJob.Loader() {
+            @Override
+            public boolean load(DownloadJob job) throws IOException {
+                return options.queueJob(job);
+            }
 
+            @Override
+            public void finish(DownloadJob job) {
+                options.finishJob(job);
+            }
+        });
     }
 
-    private void downloadStructures(Integer maximumImages, boolean downloadAlto, List<String> includeStructureStrings,
-            List<String> excludeStructureStrings, boolean selectRandomImages, boolean filterStructsFirstPage, JsonNode manifest)
-            throws JsonParseException, JsonMappingException, MalformedURLException, IOException {
-        List<LabelValuePair> includeStructures = includeStructureStrings == null ? new ArrayList<>() : includeStructureStrings.stream()
-                .map(s -> s.split("::"))
-                .map(sArr -> new LabelValuePair(sArr[0], sArr[1]))
-                .collect(Collectors.toList());
-        List<LabelValuePair> excludeStructures = excludeStructureStrings == null ? new ArrayList<>() : excludeStructureStrings.stream()
-                .map(s -> s.split("::"))
-                .map(sArr -> new LabelValuePair(sArr[0], sArr[1]))
-                .collect(Collectors.toList());
-        List<JsonNode> canvases;
-        if (!includeStructures.isEmpty()) {
-            // search for includeStructures in manifest and filter excludeStructures
-            // first, get all included structures
-            List<JsonNode> filteredStructures = ManifestQuery.streamJsonNodeAsArray(manifest.get("structures"))
-                    .filter(struct -> ManifestQuery.filterIncludeStructure(struct, includeStructures))
-                    .collect(Collectors.toList());
-            // now get all canvases and filter out the ones that should be excluded
-            Stream<JsonNode> canvasStream;
-            if (filterStructsFirstPage) {
-                canvasStream = filteredStructures.stream()
-                        .map(struct -> struct.get("canvases").get(0));
-            } else {
-                canvasStream = filteredStructures.stream()
-                        .flatMap(struct -> ManifestQuery.streamJsonNodeAsArray(struct.get("canvases")));
-            }
-            canvases = canvasStream
-                    .filter(canvas -> ManifestQuery.filterExcludeCanvas(canvas, excludeStructures, filterStructsFirstPage, manifest))
-                    .map(canvas -> ManifestQuery.canvasToFullCanvas(canvas, manifest))
-                    .filter(Optional::isPresent)
-                    .map(Optional::get)
-                    .collect(Collectors.toList());
-        } else {
-            // take random or all pages and check if they are excluded, then skip them
-            canvases = ManifestQuery.streamJsonNodeAsArray(manifest.get("sequences"))
-                    .flatMap(seq -> ManifestQuery.streamJsonNodeAsArray(seq.get("canvases")))
-                    .filter(canvas -> ManifestQuery.filterExcludeCanvas(canvas, excludeStructures, filterStructsFirstPage, manifest))
-                    .collect(Collectors.toList());
+    /**
+     * @return true if the folder is the root or inside it, also after following symbolic links of the parts that exist already
+     */
+    static boolean isInside(Path folder, Path root) {
+        try {
+            Path realRoot = root.toRealPath();
+            Path absolute = folder.toAbsolutePath().normalize();
+            // the destination is usually created by the job, so resolve the part that exists
+            Path existing = absolute;
+            while (existing != null && !Files.exists(existing)) {
+                existing = existing.getParent();
+            }
+            Path real = existing == null ? absolute : existing.toRealPath().resolve(existing.relativize(absolute));
+            return real.startsWith(realRoot);
+        } catch (IOException e) {
+            return false;
         }
-        if (selectRandomImages) {
-            Collections.shuffle(canvases);
+    }
+
+    /**
+     * @return a folder name for a manifest: the last part of its URL that is not "manifest"
+     */
+    static String folderName(String manifestUrl) {
+        String[] parts = manifestUrl.replaceFirst("^[a-zA-Z]+://[^/]*", "").split("[/?#]");
+        for (int i = parts.length - 1; i >= 0; i--) {
+            String part = parts[i].replaceFirst("(?i)\\.json$", "");
+            if (!part.isEmpty() && !part.equalsIgnoreCase("manifest")) {
+                return part.replaceAll("[^A-Za-z0-9._-]", "_");
+            }
         }
-        if (maximumImages != null) {
-            canvases = canvases.subList(0, maximumImages);
+        return "manifest";
+    }
+
+    /**
+     * Queues a manifest of a batch or collection. Errors are not thrown but reported in the summary.
+     */
+    private void queueSummarizedJob(String manifestUrl, Path destination, BatchSummary summary) {
+        DownloadJob job = new DownloadJob(manifestUrl, destination, j -> {
+            finishJob(j);
+            summary.jobCompleted(j);
+        });
+        try {
+            if (!queueJob(job)) {
+                job.setManifestError("could not load manifest");
+            }
+        } catch (IOException e) {
+            job.setManifestError(e.toString());
+        } finally {
+            job.queueingFinished();
         }
-        // now that everything is filtered, the remaining canvases can be downloaded...
-        for (JsonNode c : canvases) {
-            downloadImageAndAlto(c, downloadAlto);
+    }
+
+    /**
+     * Loads the manifest of the job and queues its selected images and ALTO files for download
+     *
+     * @return false if the manifest could not be loaded
+     * @throws IOException
+     */
+    private boolean queueJob(DownloadJob job) throws IOException {
+        if (!planning) {
+            prepareJob(job);
+        }
+        currentJob.set(job);
+        try {
+            boolean filterStructures = includeStructures != null || excludeStructures != null;
+            if (streaming && !filterStructures) {
+                if (selectRandomImages && maximumImages != null) {
+                    // only the sampled canvases are kept while the manifest is parsed
+                    CanvasSampler.Reservoir<CanvasRecord> reservoir = newSampler().reservoir(maximumImages);
+                    if (!readManifest(job.getManifestUrl(), in -> StreamingManifestParser.parse(in, canvas -> {
+                        reservoir.add(canvas);
+                        return true;
+                    })).isPresent()) {
+                        return false;
+                    }
+                    downloadSequential(null, reservoir.getSample());
+                    return true;
+                }
+                // canvases are queued for download as soon as they are parsed
+                SequentialHandler handler = new SequentialHandler();
+                return readManifest(job.getManifestUrl(), in -> StreamingManifestParser.parse(in, handler)).isPresent();
+            }
+            Optional<CompactManifest> optManifest = readManifest(job.getManifestUrl(), CompactManifest::read);
+            if (!optManifest.isPresent()) {
+                return false;
+            }
+            downloadPages(optManifest.get());
+            return true;
+        } finally {
+            currentJob.remove();
         }
     }
 
-    private void downloadRandom(Integer maximumImages, boolean downloadAlto, ArrayNode canvases) throws JsonParseException, JsonMappingException,
-            MalformedURLException, IOException {
-        Random random = new Random();
-        boolean hasAlto = downloadAlto;
-        Set<Integer> downloaded = new HashSet<>();
-        while (downloaded.size() < maximumImages) {
-            int idx = random.nextInt(canvases.size());
-            if (downloaded.contains(idx)) {
-                continue;
+    /**
+     * Creates the destination folder of a job and sets up what is recorded while its files are downloaded
+     */
+    private void prepareJob(DownloadJob job) throws IOException {
+        if (sink == null) {
+            Files.createDirectories(job.getDestination());
+        }
+        if (resume) {
+            job.setJournal(DownloadJournal.open(job.getDestination()));
+        }
+        if (checksums || dedup) {
+            job.setChecksums(new ChecksumManifest(job.getDestination(), dedup));
+        }
+        if (altoText != null) {
+            job.setAltoText(new AltoTextExtractor(altoText.contains("txt"), altoText.contains("words"), !noAltoXml));
+        }
+    }
+
+    /**
+     * Closes the journal and writes the checksums of a job when all of its files are done
+     */
+    private void finishJob(DownloadJob job) {
+        if (job.getJournal() != null) {
+            try {
+                job.getJournal().close();
+            } catch (IOException e) {
+                System.err.println(String.format("could not write download journal in '%s': %s", job.getDestination(), e));
+            }
+        }
+        if (job.getChecksums() != null && job.getManifestError() == null && job.getQueued() > 0) {
+            try {
+                if (sink != null) {
+                    byte[] manifest = job.getChecksums().toBytes();
+                    sink.write(FileDownloader.entryName(job.getDestination().resolve(ChecksumManifest.FILE_NAME)), manifest, manifest.length);
+                } else {
+                    job.getChecksums().write();
+                }
+            } catch (IOException e) {
+                System.err.println(String.format("could not write checksums in '%s': %s", job.getDestination(), e));
+            }
+        }
+    }
+
+    private void downloadPages(CompactManifest manifest) throws IOException {
+        if (includeStructures != null || excludeStructures != null) {
+            boolean firstPageOnly = "firstpage".equals(structureMode);
+            long start = System.nanoTime();
+            CanvasSampler sampler = newSampler();
+            int[] selected = pagesPerStructure != null
+                    ? sampler.sample(manifest.selectCanvasesByStructure(structureFilter, firstPageOnly), pagesPerStructure, selectRandomImages)
+                    : manifest.selectCanvases(structureFilter, firstPageOnly);
+            if (maximumImages != null && maximumImages < selected.length) {
+                selected = selectRandomImages ? sampler.sample(selected, maximumImages) : Arrays.copyOf(selected, maximumImages);
+            }
+            metrics.phase("selection", currentJob.get().getManifestUrl(), System.nanoTime() - start);
+            downloadSelection(manifest.getCanvases(selected));
+        } else if (selectRandomImages && maximumImages != null && maximumImages < manifest.size()) {
+            downloadSequential(null, manifest.getCanvases(newSampler().sample(manifest.size(), maximumImages)));
+        } else {
+            downloadSequential(maximumImages, manifest.getCanvases());
+        }
+    }
+
+    /**
+     * @return a sampler for the canvases of one manifest. Every manifest gets a new one, so the selection does not depend on the other
+     *         manifests of a batch.
+     */
+    private CanvasSampler newSampler() {
+        return new CanvasSampler(seed != null ? seed : 0);
+    }
+
+    /**
+     * Queues streamed canvases in manifest order until the maximum number of images is reached
+     */
+    private class SequentialHandler implements StreamingManifestParser.Handler {
+        private boolean hasAlto = downloadAlto;
+        private int downloadCount = 0;
+
+        @Override
+        public boolean onCanvas(CanvasRecord canvas) throws IOException {
+            if (maximumImages != null && downloadCount >= maximumImages.intValue()) {
+                return false;
             }
-            hasAlto = downloadImageAndAlto(canvases.get(idx), hasAlto);
-            downloaded.add(idx);
+            hasAlto = downloadImageAndAlto(canvas, hasAlto);
+            downloadCount++;
+            return maximumImages == null || downloadCount < maximumImages.intValue();
         }
     }
 
-    public void downloadSequential(Integer maximumImages, boolean downloadAlto, ArrayNode lstCanvases) throws IOException,
-            JsonParseException, JsonMappingException, MalformedURLException {
+    /**
+     * Downloads a list of filtered canvases
+     */
+    private void downloadSelection(List<CanvasRecord> canvases) throws IOException {
+        for (CanvasRecord c : canvases) {
+            downloadImageAndAlto(c, downloadAlto);
+        }
+    }
+
+    /**
+     * Downloads canvases in order until the maximum number of images is reached. After the first canvas without ALTO, no more ALTO files
+     * are requested.
+     */
+    private void downloadSequential(Integer maximumImages, List<CanvasRecord> lstCanvases) throws IOException {
         boolean hasAlto = downloadAlto;
         int downloadCount = 0;
-        for (JsonNode canvas : lstCanvases) {
+        for (CanvasRecord canvas : lstCanvases) {
             if (maximumImages != null && downloadCount == maximumImages.intValue()) {
                 break;
             }
@@ -220,144 +918,85 @@ public class IIIFDownloaderMain implements Callable<Integer> {
         }
     }
 
-    private Pattern p = Pattern.compile("(.*?/.*)/.*?/(.*?)/.*?/default.jpg$");
-
-    private boolean downloadImageAndAlto(JsonNode canvas, boolean downloadAlto)
-            throws JsonParseException, JsonMappingException, MalformedURLException,
-            IOException {
-        JsonNode image = canvas.get("images").get(0);
-        //this is the base uri of the image
-
-        String imageUri = image.get("resource").get("@id").asText();
-        String basename = imageUri.substring(imageUri.lastIndexOf('/') + 1);
-        int dotIdx = basename.lastIndexOf('.');
-        if (dotIdx > 0) {
-            basename = basename.substring(0, dotIdx);
-        }
-        String fullImageUri = imageUri + "/full/full/0/default.jpg";
-        Matcher matcher = p.matcher(imageUri);
-        if (matcher.matches()) {
-            if (!matcher.group(2).equals("max")) {
-                fullImageUri = matcher.group(1) + "/full/max/0/default.jpg";
-            } else {
-                fullImageUri = imageUri;
-            }
-            String group = matcher.group(1);
-            basename = group.substring(group.lastIndexOf('/') + 1);
-            System.out.println("new basename: " + basename);
-            basename = basename.substring(basename.lastIndexOf('/') + 1);
-        }
-        //now try to get the ALTO url
+    private boolean downloadImageAndAlto(CanvasRecord canvas, boolean downloadAlto) throws IOException {
         Optional<URI> altoUri = Optional.empty();
-        boolean hasAlto = downloadAlto;
-        if (downloadAlto) {
-            altoUri = getAltoUrl(canvas);
-            if (!altoUri.isPresent()) {
-                hasAlto = false;
+        if (downloadAlto && canvas.getAltoUri() != null) {
+            try {
+                altoUri = Optional.of(new URI(canvas.getAltoUri()));
+            } catch (URISyntaxException e) {
+                // handled like a canvas without ALTO
             }
         }
-        //
-        Path destFile = Paths.get(destinationFolder, basename + ".jpg");
-        URLConnection conn = new URL(fullImageUri).openConnection();
-        try {
-            downloadWithProgress(destFile, conn);
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw e;
-        }
+        return downloadImageAndAlto(canvas.getImageUri(), altoUri, downloadAlto);
+    }
 
+    private boolean downloadImageAndAlto(String imageUri, Optional<URI> altoUri, boolean downloadAlto) throws IOException {
+        ImageUri image = ImageUri.resolve(imageUri);
+        String basename = image.getBasename();
+        DownloadJob job = currentJob.get();
+        boolean hasAlto = downloadAlto && altoUri.isPresent();
+        // image and ALTO are fetched as independent tasks, so a failing image does not prevent the ALTO download and vice versa
+        if (tiled) {
+            submit(new DownloadItem(image.getServiceId(), job.getDestination().resolve(basename + ".jpg"),
+                    DownloadItem.Kind.TILED_IMAGE, job));
+        } else if (!imageRequest.isDefault()) {
+            // the cheapest request for the wanted size depends on the info.json of the service
+            submit(new DownloadItem(image.getServiceId(), job.getDestination().resolve(basename + "." + imageRequest.getFormat()),
+                    DownloadItem.Kind.SERVICE_IMAGE, job));
+        } else {
+            submit(new DownloadItem(image.getFullImageUri(), job.getDestination().resolve(basename + ".jpg"),
+                    DownloadItem.Kind.IMAGE, job));
+        }
         if (altoUri.isPresent()) {
-            URLConnection altoConn = altoUri.get().toURL().openConnection();
-            downloadWithProgress(Paths.get(destinationFolder, basename + ".xml"), altoConn);
+            Path target = job.getDestination().resolve(basename + ".xml");
+            if (job.getAltoText() != null) {
+                // without the ALTO file, the download is recorded under the extracted text
+                target = job.getAltoText().primaryFile(target);
+            }
+            submit(new DownloadItem(altoUri.get().toString(), target, DownloadItem.Kind.ALTO, job));
         }
         return hasAlto;
     }
 
-    public void downloadWithProgress(Path destFile, URLConnection conn) throws IOException {
-        System.out.println(String.format("Downloading %s to %s:", conn.getURL().toString(), destFile.toString()));
-        byte[] buffer = new byte[8192];
-        int written = 0;
-        int totalWritten = 0;
-        StatusRunnable run = new StatusRunnable(totalWritten + " bytes downloaded.");
-        Thread statusThread = new Thread(run);
-        statusThread.start();
-        try (InputStream in = conn.getInputStream(); OutputStream out = Files.newOutputStream(destFile, StandardOpenOption.TRUNCATE_EXISTING,
-                StandardOpenOption.CREATE)) {
-            while ((written = in.read(buffer)) != -1) {
-                out.write(buffer, 0, written);
-                totalWritten += written;
-                run.setMessage(totalWritten + " bytes downloaded.");
-            }
-        }
-        run.setMessage(totalWritten + " bytes downloaded.");
-        run.setShouldStop();
+    private void submit(DownloadItem item) throws InterruptedIOException {
         try {
-            statusThread.join(1000);
+            scheduler.submit(item);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while queueing " + item.getUrl());
         }
     }
 
-    public Optional<URI> getAltoUrl(JsonNode canvas) throws IOException, JsonParseException, JsonMappingException,
-            MalformedURLException {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        mapper.configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true);
-        Stream<JsonNode> nodes;
-        JsonNode seeAlsoNode = canvas.get("seeAlso");
-        if (seeAlsoNode.isArray()) {
-            ArrayNode lstSeeAlso = (ArrayNode) seeAlsoNode;
-            nodes = IntStream.range(0, lstSeeAlso.size()).mapToObj(lstSeeAlso::get);
-        } else {
-            nodes = Collections.singletonList((seeAlsoNode)).stream();
-        }
-        Optional<JsonNode> optALTOSeeAlso = nodes
-                .filter(a -> a.get("label") != null)
-                .filter(a -> "ALTO".equals(a.get("label").get(0).get("@value").textValue()))
-                .findFirst();
-        if (!optALTOSeeAlso.isPresent()) {
-            return Optional.empty();
-        }
-        JsonNode altoAnnotation = optALTOSeeAlso.get();
-        try {
-            return Optional.of(new URI(altoAnnotation.get("@id").textValue()));
-        } catch (URISyntaxException e) {
-            return Optional.empty();
-        }
+    /**
+     * Reads the manifest from the response stream, without buffering the whole response first
+     */
+    @FunctionalInterface
+    private interface ManifestReader<T> {
+        T read(InputStream in) throws IOException;
     }
 
-    private Optional<JsonNode> getManifest(String manifest) throws MalformedURLException, IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
-        mapper.configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true);
-        JsonNode iiifMani = null;
-
-        StatusRunnable run = new StatusRunnable("Receiving IIIF manifest...");
-        Thread statusThread = new Thread(run);
-        statusThread.start();
-        HttpResponse hr = Request.Get(manifest)
-                .execute()
-                .returnResponse();
-        if (hr.getStatusLine().getStatusCode() >= 400) {
-            String response;
-            try (InputStream inputStream = hr.getEntity().getContent()) {
-                response = new BufferedReader(new InputStreamReader(inputStream))
-                        .lines()
-                        .collect(Collectors.joining("\n"));
-            }
-            //hr.getEntity().getContent();
-            System.err.println(String.format("Could not retrieve Manifest. The server responded with status code %d and message:\n%s",
-                    hr.getStatusLine().getStatusCode(), response));
-            return Optional.empty();
-        }
-        try (InputStream in = hr.getEntity().getContent()) {
-            iiifMani = mapper.readTree(in);
-        }
-        run.setMessage("Received IIIF manifest.    ");
-        run.setShouldStop();
-        try {
-            statusThread.join(1000);
-        } catch (InterruptedException e) {
+    private <T> Optional<T> readManifest(String manifest, ManifestReader<T> reader) throws MalformedURLException, IOException {
+        progress.setMessage("Receiving IIIF manifest...");
+        long start = System.nanoTime();
+        try (HttpDownloadClient.Response hr = client.get(manifest, null, true)) {
+            if (hr.getStatusCode() >= 400) {
+                String response;
+                try (InputStream inputStream = hr.getBody()) {
+                    response = new BufferedReader(new InputStreamReader(inputStream))
+                            .lines()
+                            .collect(Collectors.joining("\n"));
+                }
+                System.err.println(String.format("Could not retrieve Manifest. The server responded with status code %d and message:\n%s",
+                        hr.getStatusCode(), response));
+                return Optional.empty();
+            }
+            try (InputStream in = hr.getBody()) {
+                return Optional.ofNullable(reader.read(in));
+            }
+        } finally {
+            // includes parsing, and with --streaming also queueing the downloads
+            metrics.phase("manifest", manifest, System.nanoTime() - start);
+            progress.setMessage("");
         }
-        return Optional.ofNullable(iiifMani);
     }
 }
@@ -0,0 +1,74 @@
+package de.intranda.iiif.downloader;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes a copy of every downloaded image in another format, e.g. TIFF, next to the image. The image is decoded completely, so each
+ * conversion needs memory for one uncompressed image.
+ *
+ */
+public class ImageConverter implements PostProcessor {
+    private final String format;
+
+    /**
+     * @param format the format name, which is also the file extension, e.g. "png" or "tif". Java 8 has no TIFF writer, it needs Java 9 or
+     *            newer (or an ImageIO plugin).
+     * @throws IllegalArgumentException if the Java runtime cannot write the format
+     */
+    public ImageConverter(String format) {
+        this.format = format.toLowerCase(Locale.ROOT);
+        if (!ImageIO.getImageWritersBySuffix(this.format).hasNext()) {
+            boolean tiff = "tif".equals(this.format) || "tiff".equals(this.format);
+            throw new IllegalArgumentException(String.format("this Java runtime cannot write \"%s\" images%s", format,
+                    tiff ? ", TIFF needs Java 9 or newer" : ""));
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "convert";
+    }
+
+    @Override
+    public void process(Path image) throws IOException {
+        Path target = derivative(image);
+        if (target.equals(image) || PostProcessingStage.isUpToDate(target, image)) {
+            return;
+        }
+        BufferedImage decoded = ImageIO.read(image.toFile());
+        if (decoded == null) {
+            throw new IOException("cannot read image " + image);
+        }
+        ImageWriter writer = ImageIO.getImageWritersBySuffix(format).next();
+        Path partFile = FileDownloader.partFile(target);
+        try {
+            Files.deleteIfExists(partFile);
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(partFile.toFile())) {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(decoded, null, null), writer.getDefaultWriteParam());
+            }
+            FileDownloader.moveToTarget(partFile, target);
+        } finally {
+            writer.dispose();
+            Files.deleteIfExists(partFile);
+        }
+    }
+
+    /**
+     * @return the converted file for an image
+     */
+    Path derivative(Path image) {
+        String name = image.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return image.resolveSibling((dot > 0 ? name.substring(0, dot) : name) + "." + format);
+    }
+}
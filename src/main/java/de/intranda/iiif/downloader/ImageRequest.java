@@ -0,0 +1,211 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.Data;
+
+/**
+ * The size, quality and format of the images to download. Against the info.json of an image service, this resolves to the cheapest
+ * image request the service supports: the image is never scaled up, and it is scaled down to the pixel limit of the user and to the
+ * limits of the server.
+ *
+ */
+@Data
+public class ImageRequest {
+    private static final Pattern SIZE = Pattern.compile("(max|full)|pct:(\\d+(?:\\.\\d+)?)|(!)?(\\d+)?,(\\d+)?");
+
+    /** the size in IIIF syntax: "max", "pct:n", "w,", ",h", "w,h" or "!w,h" */
+    String size;
+    /** the maximum number of pixels of an image, 0 for no limit */
+    long maxPixels;
+    String quality;
+    String format;
+
+    /**
+     * @param size the size in IIIF syntax, null for the full size
+     * @param maxPixels the maximum number of pixels, 0 for no limit
+     * @param quality the quality, null for "default"
+     * @param format the format, null for "jpg"
+     * @throws IllegalArgumentException if the size is not valid
+     */
+    public ImageRequest(String size, long maxPixels, String quality, String format) {
+        this.size = size == null ? "max" : size;
+        Matcher matcher = SIZE.matcher(this.size);
+        if (!matcher.matches() || (matcher.group(2) == null && matcher.group(1) == null && matcher.group(4) == null && matcher.group(5) == null)
+                || (matcher.group(3) != null && (matcher.group(4) == null || matcher.group(5) == null))) {
+            throw new IllegalArgumentException("invalid size: " + size);
+        }
+        if (maxPixels < 0) {
+            throw new IllegalArgumentException("invalid maximum number of pixels: " + maxPixels);
+        }
+        this.maxPixels = maxPixels;
+        this.quality = quality == null ? "default" : quality;
+        this.format = format == null ? "jpg" : format;
+    }
+
+    /**
+     * @return true if this requests full-size default JPEGs, which do not need a look at the info.json
+     */
+    public boolean isDefault() {
+        return ("max".equals(size) || "full".equals(size)) && maxPixels == 0 && "default".equals(quality) && "jpg".equals(format);
+    }
+
+    /**
+     * @param serviceId the ID of the image service
+     * @param tiled true if the image is assembled from tiles
+     * @return the image request as asked for, before it is fitted to the service. It identifies the file in the journal without a look at
+     *         the info.json.
+     */
+    public String requestedUrl(String serviceId, boolean tiled) {
+        String url = String.format("%s/full/%s/0/%s.%s", ImageServiceInfo.stripTrailingSlash(serviceId), size, quality, format);
+        if (maxPixels > 0) {
+            url += "#max_pixels=" + maxPixels;
+        }
+        return tiled ? url + (maxPixels > 0 ? "&" : "#") + "tiled" : url;
+    }
+
+    /**
+     * Computes the size of the image to request
+     *
+     * @param info
+     * @return width and height
+     */
+    public int[] targetSize(ImageServiceInfo info) {
+        double width = info.getWidth();
+        double height = info.getHeight();
+        Matcher matcher = SIZE.matcher(size);
+        matcher.matches();
+        if (matcher.group(2) != null) {
+            double scale = Math.min(1, Double.parseDouble(matcher.group(2)) / 100);
+            width *= scale;
+            height *= scale;
+        } else if (matcher.group(1) == null) {
+            double w = matcher.group(4) == null ? Double.MAX_VALUE : Integer.parseInt(matcher.group(4));
+            double h = matcher.group(5) == null ? Double.MAX_VALUE : Integer.parseInt(matcher.group(5));
+            if (matcher.group(3) != null || matcher.group(4) == null || matcher.group(5) == null) {
+                // keep the aspect ratio
+                double scale = Math.min(1, Math.min(w / width, h / height));
+                width *= scale;
+                height *= scale;
+            } else {
+                width = Math.min(width, w);
+                height = Math.min(height, h);
+            }
+        }
+        double scale = 1;
+        if (maxPixels > 0) {
+            scale = Math.min(scale, Math.sqrt(maxPixels / (width * height)));
+        }
+        if (info.getMaxArea() > 0) {
+            scale = Math.min(scale, Math.sqrt(info.getMaxArea() / (width * height)));
+        }
+        if (info.getMaxWidth() > 0) {
+            scale = Math.min(scale, info.getMaxWidth() / width);
+        }
+        if (info.getMaxHeight() > 0) {
+            scale = Math.min(scale, info.getMaxHeight() / height);
+        }
+        // round down, so that the limits are kept
+        return new int[] { Math.max(1, (int) (width * scale)), Math.max(1, (int) (height * scale)) };
+    }
+
+    /**
+     * Builds the URL of the image request for a service
+     *
+     * @param info
+     * @return the URL
+     * @throws IOException if the service does not support the quality or format
+     */
+    public String buildUrl(ImageServiceInfo info) throws IOException {
+        checkSupported(info, info.getId());
+        return String.format("%s/full/%s/0/%s.%s", info.getId(), sizeParameter(info), quality, format);
+    }
+
+    /**
+     * Builds the URL of the image request for a service from the info.json of another image on the same server. This only works for sizes
+     * the server computes itself without scaling the image up: the full size, a percentage, or a confining box in Image API 3.
+     *
+     * @param serviceId the ID of the image service
+     * @param profile the info.json of another service of the same server
+     * @return the URL, or null if the request needs the width and height of this image
+     * @throws IOException if the server does not support the quality or format
+     */
+    public String buildUrl(String serviceId, ImageServiceInfo profile) throws IOException {
+        if (maxPixels > 0) {
+            return null;
+        }
+        Matcher matcher = SIZE.matcher(size);
+        matcher.matches();
+        String parameter;
+        if (matcher.group(1) != null) {
+            // the largest size the server delivers, within its limits
+            parameter = "max";
+        } else if (profile.isLevel0() || profile.hasLimits()) {
+            return null;
+        } else if (matcher.group(2) != null && Double.parseDouble(matcher.group(2)) <= 100 && profile.supports("sizeByPct")) {
+            parameter = size;
+        } else if (matcher.group(3) != null && profile.isVersion3() && profile.supports("sizeByConfinedWh")) {
+            // without "^", Image API 3 never scales up
+            parameter = size;
+        } else {
+            return null;
+        }
+        String id = ImageServiceInfo.stripTrailingSlash(serviceId);
+        checkSupported(profile, id);
+        return String.format("%s/full/%s/0/%s.%s", id, parameter, quality, format);
+    }
+
+    private void checkSupported(ImageServiceInfo info, String id) throws IOException {
+        if (!"default".equals(quality) && !info.getQualities().contains(quality)) {
+            throw new IOException(String.format("quality \"%s\" is not supported by %s", quality, id));
+        }
+        if (!"jpg".equals(format) && !info.getFormats().contains(format)) {
+            throw new IOException(String.format("format \"%s\" is not supported by %s", format, id));
+        }
+    }
+
+    private String sizeParameter(ImageServiceInfo info) {
+        int[] target = targetSize(info);
+        if (target[0] >= info.getWidth() && target[1] >= info.getHeight()) {
+            return "max";
+        }
+        if (info.isLevel0()) {
+            // only the listed sizes are available: take the smallest one that is large enough, or else the largest one
+            int[] best = null;
+            for (int[] available : info.getSizes()) {
+                boolean large = available[0] >= target[0] && available[1] >= target[1];
+                boolean bestLarge = best != null && best[0] >= target[0] && best[1] >= target[1];
+                if (best == null || (large && (!bestLarge || available[0] < best[0])) || (!large && !bestLarge && available[0] > best[0])) {
+                    best = available;
+                }
+            }
+            if (best == null) {
+                return "max";
+            }
+            target = best;
+        }
+        // Image API 2 level 1 only supports the width, Image API 3 only width and height
+        boolean keepsAspect = Math.abs((double) target[0] / target[1] - (double) info.getWidth() / info.getHeight()) < 0.01;
+        return info.isVersion3() || !keepsAspect ? target[0] + "," + target[1] : target[0] + ",";
+    }
+
+    /**
+     * Selects the tile scale factor for the target size: the largest one that still gives an image at least as large as the target
+     *
+     * @param info
+     * @return
+     */
+    public int scaleFactor(ImageServiceInfo info) {
+        int[] target = targetSize(info);
+        int best = 0;
+        for (int factor : info.getScaleFactors()) {
+            boolean largeEnough = (info.getWidth() + factor - 1) / factor >= target[0] && (info.getHeight() + factor - 1) / factor >= target[1];
+            if (largeEnough && factor > best) {
+                best = factor;
+            }
+        }
+        return best > 0 ? best : info.getScaleFactors().stream().min(Integer::compare).orElse(1);
+    }
+}
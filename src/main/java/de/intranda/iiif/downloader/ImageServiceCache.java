@@ -0,0 +1,106 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Loads the info.json of image services. Every image has its own service, but the services of one server share their profile: compliance
+ * level, limits, qualities and formats. The first info.json of a server is kept as its profile, so image requests that do not depend on
+ * the size of the image are built without another request. Several workers that ask for a new server at the same time wait for one
+ * request.
+ *
+ */
+public class ImageServiceCache {
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    /** the number of servers whose profile is kept */
+    private static final int MAX_PROFILES = 64;
+
+    private final HttpDownloadClient client;
+    // access ordered, so the profile of the least recently used server is dropped first
+    private final Map<String, ImageServiceInfo> profiles = new LinkedHashMap<String, ImageServiceInfo>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ImageServiceInfo> eldest) {
+            return size() > MAX_PROFILES;
+        }
+    };
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    public ImageServiceCache(HttpDownloadClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Resolves an image request against an image service. The info.json of the service is only loaded if the request needs the size of
+     * the image, or if no other service of the same server was loaded before.
+     *
+     * @param serviceId the ID of the image service, without "/info.json"
+     * @param request
+     * @return the URL of the image
+     * @throws IOException if the info.json could not be loaded, or the service does not support the request
+     */
+    public String getImageUrl(String serviceId, ImageRequest request) throws IOException {
+        String server = server(serviceId);
+        ImageServiceInfo profile = getProfile(server);
+        if (profile == null) {
+            Object lock = locks.computeIfAbsent(server, k -> new Object());
+            synchronized (lock) {
+                try {
+                    profile = getProfile(server);
+                    if (profile == null) {
+                        return request.buildUrl(getInfo(serviceId));
+                    }
+                } finally {
+                    locks.remove(server, lock);
+                }
+            }
+        }
+        String url = request.buildUrl(serviceId, profile);
+        return url != null ? url : request.buildUrl(getInfo(serviceId));
+    }
+
+    /**
+     * @param serviceId the ID of the image service, without "/info.json"
+     * @return the parsed info.json, which also becomes the profile of its server
+     * @throws IOException if the info.json could not be loaded
+     */
+    public ImageServiceInfo getInfo(String serviceId) throws IOException {
+        ImageServiceInfo info = load(serviceId);
+        synchronized (profiles) {
+            profiles.put(server(serviceId), info);
+        }
+        return info;
+    }
+
+    private ImageServiceInfo getProfile(String server) {
+        synchronized (profiles) {
+            return profiles.get(server);
+        }
+    }
+
+    /**
+     * @return the URL of the image server, i.e. the service ID without the identifier of the image
+     */
+    static String server(String serviceId) {
+        String id = ImageServiceInfo.stripTrailingSlash(serviceId);
+        return id.substring(0, id.lastIndexOf('/') + 1);
+    }
+
+    private ImageServiceInfo load(String serviceId) throws IOException {
+        try (HttpDownloadClient.Response response = client.get(serviceId + "/info.json", null, true)) {
+            if (response.getStatusCode() != 200) {
+                throw new HttpStatusException(response.getStatusCode(), response.getUrl(), response.getHeader("Retry-After"));
+            }
+            try (InputStream in = response.getBody()) {
+                return ImageServiceInfo.parse(MAPPER.readTree(in), serviceId);
+            }
+        }
+    }
+}
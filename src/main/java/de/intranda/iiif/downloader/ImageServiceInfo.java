@@ -0,0 +1,157 @@
+package de.intranda.iiif.downloader;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import lombok.Data;
+
+/**
+ * The parts of an image service's info.json needed to build image requests: size, tiling and the limits of the server. Image API 2 and
+ * 3 are supported.
+ *
+ */
+@Data
+public class ImageServiceInfo {
+    private static final Pattern LEVEL = Pattern.compile("(?:^|[/#])level([0-2])(?:\\.json)?$");
+
+    String id;
+    boolean version3;
+    boolean level0;
+    // the compliance level, -1 if the profile does not name one
+    int level = -1;
+    int width;
+    int height;
+    int tileWidth;
+    int tileHeight;
+    List<Integer> scaleFactors = new ArrayList<>();
+    // 0 if the server has no limit
+    int maxWidth;
+    int maxHeight;
+    long maxArea;
+    // the sizes the server offers, as width and height
+    List<int[]> sizes = new ArrayList<>();
+    // the formats and qualities the server supports besides "jpg" and "default"
+    Set<String> formats = new HashSet<>();
+    Set<String> qualities = new HashSet<>();
+    // the features the server supports beyond its compliance level
+    Set<String> features = new HashSet<>();
+
+    /**
+     * @param info the info.json
+     * @param serviceId the service ID the info.json was requested for, used if it has no ID itself
+     * @return
+     */
+    public static ImageServiceInfo parse(JsonNode info, String serviceId) {
+        ImageServiceInfo result = new ImageServiceInfo();
+        String id = info.hasNonNull("id") ? info.get("id").asText() : info.path("@id").asText(null);
+        result.id = stripTrailingSlash(id != null ? id : serviceId);
+        result.version3 = info.has("id") || info.path("@context").toString().contains("/image/3/");
+        result.width = info.path("width").asInt();
+        result.height = info.path("height").asInt();
+        JsonNode tiles = info.path("tiles");
+        if (tiles.size() > 0) {
+            JsonNode tile = tiles.get(0);
+            result.tileWidth = tile.path("width").asInt();
+            result.tileHeight = tile.path("height").asInt(result.tileWidth);
+            for (JsonNode factor : tile.path("scaleFactors")) {
+                result.scaleFactors.add(factor.asInt());
+            }
+        }
+        for (JsonNode size : info.path("sizes")) {
+            result.sizes.add(new int[] { size.path("width").asInt(), size.path("height").asInt() });
+        }
+        // Image API 3 has the limits and extra features at the top level, Image API 2 in the profile description
+        readLimits(info, result);
+        readTexts(info.path("extraFormats"), result.formats);
+        readTexts(info.path("extraQualities"), result.qualities);
+        readTexts(info.path("extraFeatures"), result.features);
+        JsonNode profiles = info.path("profile");
+        if (!profiles.isArray()) {
+            readLevel(profiles.asText(), result);
+        }
+        for (JsonNode profile : profiles) {
+            if (profile.isObject()) {
+                readLimits(profile, result);
+                readTexts(profile.path("formats"), result.formats);
+                readTexts(profile.path("qualities"), result.qualities);
+                readTexts(profile.path("supports"), result.features);
+            } else {
+                readLevel(profile.asText(), result);
+            }
+        }
+        return result;
+    }
+
+    private static void readLevel(String profile, ImageServiceInfo result) {
+        Matcher matcher = LEVEL.matcher(profile);
+        if (matcher.find()) {
+            int level = Integer.parseInt(matcher.group(1));
+            result.level = Math.max(result.level, level);
+            result.level0 |= level == 0;
+        }
+    }
+
+    private static void readTexts(JsonNode arr, Set<String> texts) {
+        for (JsonNode text : arr) {
+            texts.add(text.asText());
+        }
+    }
+
+    private static void readLimits(JsonNode node, ImageServiceInfo result) {
+        if (node.has("maxWidth")) {
+            result.maxWidth = node.get("maxWidth").asInt();
+            // maxHeight defaults to maxWidth
+            result.maxHeight = node.path("maxHeight").asInt(result.maxWidth);
+        }
+        if (node.has("maxArea")) {
+            result.maxArea = node.get("maxArea").asLong();
+        }
+    }
+
+    static String stripTrailingSlash(String id) {
+        return id.endsWith("/") ? id.substring(0, id.length() - 1) : id;
+    }
+
+    public boolean isTiled() {
+        return tileWidth > 0 && width > 0 && height > 0;
+    }
+
+    /**
+     * @return true if the server limits the width, height or area of the images it delivers
+     */
+    public boolean hasLimits() {
+        return maxWidth > 0 || maxHeight > 0 || maxArea > 0;
+    }
+
+    /**
+     * @param feature the name of a feature of the Image API, e.g. "sizeByPct"
+     * @return true if the server supports the feature by its compliance level or lists it as an extra feature
+     */
+    public boolean supports(String feature) {
+        if (features.contains(feature)) {
+            return true;
+        }
+        switch (feature) {
+            case "sizeByPct":
+                // level 1 of Image API 2, level 2 of Image API 3
+                return level >= (version3 ? 2 : 1);
+            case "sizeByConfinedWh":
+                return level >= 2;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return true if the server delivers an image of this size in a single request
+     */
+    public boolean allowsSize(int w, int h) {
+        return (maxWidth == 0 || w <= maxWidth) && (maxHeight == 0 || h <= maxHeight) && (maxArea == 0 || (long) w * h <= maxArea);
+    }
+}
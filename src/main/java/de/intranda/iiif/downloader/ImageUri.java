@@ -0,0 +1,50 @@
+package de.intranda.iiif.downloader;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * URL of the full-size image and of the image service for the image resource of a canvas, and the base name of the downloaded file
+ *
+ */
+@Data
+@AllArgsConstructor
+public class ImageUri {
+    private static final Pattern IMAGE_REQUEST = Pattern.compile("(.*?/.*)/.*?/(.*?)/.*?/default.jpg$");
+
+    String fullImageUri;
+    String serviceId;
+    String basename;
+
+    /**
+     * Rewrites an image resource URL to the full-size image. Image API requests are changed to size "max", other URLs are treated as
+     * the ID of an image service.
+     *
+     * @param imageUri the @id of the image resource
+     * @return
+     */
+    public static ImageUri resolve(String imageUri) {
+        String basename = imageUri.substring(imageUri.lastIndexOf('/') + 1);
+        int dotIdx = basename.lastIndexOf('.');
+        if (dotIdx > 0) {
+            basename = basename.substring(0, dotIdx);
+        }
+        String fullImageUri = imageUri + "/full/full/0/default.jpg";
+        String serviceId = imageUri;
+        Matcher matcher = IMAGE_REQUEST.matcher(imageUri);
+        if (matcher.matches()) {
+            if (!matcher.group(2).equals("max")) {
+                fullImageUri = matcher.group(1) + "/full/max/0/default.jpg";
+            } else {
+                fullImageUri = imageUri;
+            }
+            String group = matcher.group(1);
+            serviceId = group;
+            basename = group.substring(group.lastIndexOf('/') + 1);
+        }
+        return new ImageUri(fullImageUri, serviceId, basename);
+    }
+}
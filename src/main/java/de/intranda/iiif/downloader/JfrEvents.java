@@ -0,0 +1,75 @@
+package de.intranda.iiif.downloader;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Custom Java Flight Recorder events. This class is only loaded by {@link RunMetrics} if the JVM supports JFR, and it is left out of the
+ * build on JDKs before 11, which may not include the jdk.jfr API (see the "without-jfr" profile in the pom).
+ *
+ */
+final class JfrEvents implements RunMetrics.EventRecorder {
+
+    @Name("de.intranda.iiif.Request")
+    @Label("IIIF Request")
+    @Category("IIIF Downloader")
+    static class RequestEvent extends Event {
+        @Label("URL")
+        String url;
+        @Label("Status")
+        int status;
+        @Label("Time to First Byte")
+        @Timespan(Timespan.NANOSECONDS)
+        long ttfb;
+        @Label("Total Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long total;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("de.intranda.iiif.Phase")
+    @Label("IIIF Manifest Phase")
+    @Category("IIIF Downloader")
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Manifest")
+        String manifest;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    JfrEvents() {
+    }
+
+    @Override
+    public void request(String url, int status, long ttfbNanos, long totalNanos, long bytes) {
+        RequestEvent event = new RequestEvent();
+        if (event.shouldCommit()) {
+            event.url = url;
+            event.status = status;
+            event.ttfb = ttfbNanos;
+            event.total = totalNanos;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void phase(String phase, String manifest, long nanos) {
+        PhaseEvent event = new PhaseEvent();
+        if (event.shouldCommit()) {
+            event.phase = phase;
+            event.manifest = manifest;
+            event.time = nanos;
+            event.commit();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package de.intranda.iiif.downloader;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 
 /**
  * Data class to hold label-value pairs for querying manifests
@@ -14,6 +15,13 @@ import lombok.Data;
 public class LabelValuePair {
     String label;
     String value;
+    /** the language of the label (or value) in a multilingual manifest, null if unknown. Not compared by {@link #equals(Object)}. */
+    @EqualsAndHashCode.Exclude
+    String language;
+
+    public LabelValuePair(String label, String value) {
+        this(label, value, null);
+    }
 
     public boolean equals(String label, String value) {
         if (label == null || value == null) {
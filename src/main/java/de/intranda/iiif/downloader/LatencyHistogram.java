@@ -0,0 +1,92 @@
+package de.intranda.iiif.downloader;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations with logarithmic buckets: four buckets per power of two, from 1 µs up to about 18 minutes. Percentiles
+ * are reported as the upper bound of their bucket, so they are at most 19 % too high.
+ *
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS_PER_DOUBLING = 4;
+    private static final int BUCKETS = 30 * BUCKETS_PER_DOUBLING;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    static int bucket(long nanos) {
+        double micros = nanos / 1000.0;
+        if (micros <= 1) {
+            return 0;
+        }
+        // the upper bound belongs to the bucket
+        int bucket = (int) Math.ceil(Math.log(micros) / Math.log(2) * BUCKETS_PER_DOUBLING) - 1;
+        return Math.min(BUCKETS - 1, bucket);
+    }
+
+    /**
+     * @param bucket
+     * @return the largest duration in the bucket in milliseconds
+     */
+    static double upperBoundMs(int bucket) {
+        return Math.pow(2, (bucket + 1) / (double) BUCKETS_PER_DOUBLING) / 1000;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMs() {
+        long n = count.get();
+        return n == 0 ? 0 : sumNanos.get() / 1e6 / n;
+    }
+
+    public double getMaxMs() {
+        return maxNanos.get() / 1e6;
+    }
+
+    public long getSumNanos() {
+        return sumNanos.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the duration in milliseconds that the given percentage of all recorded durations does not exceed, 0 if nothing was recorded
+     */
+    public double getPercentileMs(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundMs(i), getMaxMs());
+            }
+        }
+        return getMaxMs();
+    }
+
+    /**
+     * @return the number of durations per bucket
+     */
+    long[] getCounts() {
+        long[] result = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            result[i] = counts.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,119 @@
+package de.intranda.iiif.downloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Lookup tables for a IIIF manifest, built in a single pass over sequences and structures. Canvas IDs are normalized so that IDs with and
+ * without a trailing slash are treated as the same canvas.
+ *
+ * @deprecated the downloader reads manifests into a {@link CompactManifest} and selects canvases with
+ *             {@link CompactManifest#selectCanvases(StructureFilter, boolean)}. Only kept for code that queries manifest trees with
+ *             {@link ManifestQuery}.
+ */
+@Deprecated
+public class ManifestIndex {
+    private static final List<JsonNode> NO_STRUCTURES = Collections.emptyList();
+
+    private final Map<String, JsonNode> canvasesById = new HashMap<>();
+    private final Map<String, List<JsonNode>> structuresByCanvas = new HashMap<>();
+    private final Map<String, List<JsonNode>> structuresByFirstPage = new HashMap<>();
+
+    public ManifestIndex(JsonNode manifest) {
+        JsonNode sequences = manifest.get("sequences");
+        if (sequences != null && sequences.size() > 0) {
+            ManifestQuery.streamJsonNodeAsArray(sequences.get(0).get("canvases"))
+                    .forEach(canvas -> {
+                        String id = canvasId(canvas);
+                        if (id != null) {
+                            canvasesById.putIfAbsent(id, canvas);
+                        }
+                    });
+        }
+        ManifestQuery.streamJsonNodeAsArray(manifest.get("structures"))
+                .filter(struct -> struct != null && struct.get("canvases") != null && struct.get("canvases").isArray())
+                .forEach(this::addStructure);
+    }
+
+    private void addStructure(JsonNode struct) {
+        JsonNode canvases = struct.get("canvases");
+        for (int i = 0; i < canvases.size(); i++) {
+            String id = canvasId(canvases.get(i));
+            if (id == null) {
+                continue;
+            }
+            List<JsonNode> structs = structuresByCanvas.computeIfAbsent(id, k -> new ArrayList<>(2));
+            // a structure listing the same canvas twice must only be returned once
+            if (structs.isEmpty() || structs.get(structs.size() - 1) != struct) {
+                structs.add(struct);
+            }
+            if (i == 0) {
+                structuresByFirstPage.computeIfAbsent(id, k -> new ArrayList<>(1)).add(struct);
+            }
+        }
+    }
+
+    /**
+     * Returns the canvas from the first sequence of the manifest with the same ID as the given canvas
+     *
+     * @param canvas a full canvas or a canvas ID
+     * @return
+     */
+    public Optional<JsonNode> getFullCanvas(JsonNode canvas) {
+        String id = canvasId(canvas);
+        if (id == null) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(canvasesById.get(id));
+    }
+
+    /**
+     * Returns all structures containing the given canvas
+     *
+     * @param canvas a full canvas or a canvas ID
+     * @param firstPageOnly only return structures starting with the canvas
+     * @return
+     */
+    public List<JsonNode> getStructures(JsonNode canvas, boolean firstPageOnly) {
+        String id = canvasId(canvas);
+        if (id == null) {
+            return NO_STRUCTURES;
+        }
+        Map<String, List<JsonNode>> map = firstPageOnly ? structuresByFirstPage : structuresByCanvas;
+        return map.getOrDefault(id, NO_STRUCTURES);
+    }
+
+    /**
+     * Returns the normalized ID of a canvas that is either given as full canvas or as ID only
+     *
+     * @param canvas
+     * @return the normalized ID or null if the canvas has no ID
+     */
+    public static String canvasId(JsonNode canvas) {
+        if (canvas == null) {
+            return null;
+        }
+        if (canvas.isTextual()) {
+            return normalizeId(canvas.asText());
+        }
+        JsonNode id = canvas.get("@id");
+        if (id == null) {
+            return null;
+        }
+        return normalizeId(id.asText());
+    }
+
+    /**
+     * @deprecated use {@link StreamingManifestParser#normalizeId(String)}
+     */
+    @Deprecated
+    public static String normalizeId(String id) {
+        return StreamingManifestParser.normalizeId(id);
+    }
+}
@@ -2,7 +2,6 @@ package de.intranda.iiif.downloader;
 
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -14,14 +13,22 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
  * 
  * @author Oliver Paetzel
  *
+ * @deprecated the downloader no longer keeps manifests as JSON trees. It reads them into a {@link CompactManifest} and selects canvases
+ *             with {@link CompactManifest#selectCanvases(StructureFilter, boolean)} and a {@link StructureFilter}.
  */
+@Deprecated
 public class ManifestQuery {
 
+    /**
+     * Indexes the manifest for this call only. To query many canvases, build a {@link ManifestIndex} once and use
+     * {@link #canvasToFullCanvas(JsonNode, ManifestIndex)}.
+     */
     public static Optional<JsonNode> canvasToFullCanvas(JsonNode canvas, JsonNode manifest) {
-        return streamJsonNodeAsArray(manifest.get("sequences").get(0).get("canvases"))
-                .filter(c -> idsEqual(c.isTextual() ? c.asText() : c.get("@id").asText(),
-                        canvas.isTextual() ? canvas.asText() : canvas.get("@id").asText()))
-                .findFirst();
+        return canvasToFullCanvas(canvas, new ManifestIndex(manifest));
+    }
+
+    public static Optional<JsonNode> canvasToFullCanvas(JsonNode canvas, ManifestIndex index) {
+        return index.getFullCanvas(canvas);
     }
 
     public static Stream<JsonNode> streamJsonNodeAsArray(JsonNode arr) {
@@ -32,27 +39,36 @@ public class ManifestQuery {
                 .mapToObj(arr::get);
     }
 
+    /**
+     * Indexes the manifest for this call only. To query many canvases, build a {@link ManifestIndex} once and use
+     * {@link #streamAllCanvasStructures(JsonNode, boolean, ManifestIndex)}.
+     */
     public static Stream<JsonNode> streamAllCanvasStructures(JsonNode canvas, boolean firstPageOnly, JsonNode manifest) {
-        Stream<JsonNode> structStream = streamJsonNodeAsArray(manifest.get("structures"));
-        if (firstPageOnly) {
-            return structStream
-                    .filter(struct -> struct.get("canvases") != null && struct.get("canvases").isArray()
-                            && idsEqual(struct.get("canvases").get(0).asText(), (canvas.get("@id").asText())));
-        }
-        return structStream
-                .filter(s -> s != null)
-                .filter(struct -> struct.get("canvases") != null &&
-                        streamJsonNodeAsArray(struct.get("canvases"))
-                                .anyMatch(c -> idsEqual(c.asText(), canvas.get("@id").asText())));
+        return streamAllCanvasStructures(canvas, firstPageOnly, new ManifestIndex(manifest));
+    }
+
+    public static Stream<JsonNode> streamAllCanvasStructures(JsonNode canvas, boolean firstPageOnly, ManifestIndex index) {
+        return index.getStructures(canvas, firstPageOnly).stream();
     }
 
+    /**
+     * Indexes the manifest for this call only. To query many canvases, build a {@link ManifestIndex} once and use
+     * {@link #filterExcludeCanvas(JsonNode, List, boolean, ManifestIndex)}.
+     */
     public static boolean filterExcludeCanvas(JsonNode canvas, List<LabelValuePair> exclude, boolean filterStructsFirstPage, JsonNode manifest) {
         if (exclude.isEmpty()) {
             return true;
         }
+        return filterExcludeCanvas(canvas, exclude, filterStructsFirstPage, new ManifestIndex(manifest));
+    }
+
+    public static boolean filterExcludeCanvas(JsonNode canvas, List<LabelValuePair> exclude, boolean filterStructsFirstPage,
+            ManifestIndex index) {
+        if (exclude.isEmpty()) {
+            return true;
+        }
         // get all structures pointing at this canvas, then check that none of these have any value in exclude
-        List<JsonNode> structs = streamAllCanvasStructures(canvas, filterStructsFirstPage, manifest).collect(Collectors.toList());
-        return streamAllCanvasStructures(canvas, filterStructsFirstPage, manifest)
+        return streamAllCanvasStructures(canvas, filterStructsFirstPage, index)
                 .flatMap(struct -> streamJsonNodeAsArray(struct.get("metadata")))
                 .noneMatch(meta -> metaContainsAnyLabelValuePair(meta, exclude));
     }
@@ -105,19 +121,4 @@ public class ManifestQuery {
         }
         return false;
     }
-
-    private static boolean idsEqual(final String id1, final String id2) {
-        if (id1 == null || id2 == null) {
-            return false;
-        }
-        String cmp1 = id1;
-        String cmp2 = id2;
-        if (!cmp1.endsWith("/")) {
-            cmp1 += "/";
-        }
-        if (!cmp2.endsWith("/")) {
-            cmp2 += cmp2;
-        }
-        return cmp1.equals(cmp2);
-    }
 }
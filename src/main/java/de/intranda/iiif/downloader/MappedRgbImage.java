@@ -0,0 +1,128 @@
+package de.intranda.iiif.downloader;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * RGB image whose pixels are kept in a memory-mapped temporary file instead of the heap, so that images of any size can be assembled
+ * from tiles. The file is split into mappings of whole rows, because a single mapping is limited to 2 GB.
+ *
+ */
+public class MappedRgbImage implements Closeable {
+    private static final int MAX_MAPPING = Integer.MAX_VALUE - 8;
+    /** a DataBuffer is indexed with int, so an image can have at most this many pixels (about 715 million) */
+    public static final long MAX_PIXELS = Integer.MAX_VALUE / 3;
+
+    private final int width;
+    private final int height;
+    private final int rowsPerMapping;
+    private final MappedByteBuffer[] mappings;
+    private final Path file;
+
+    /**
+     * @param width
+     * @param height
+     * @param folder folder for the temporary file
+     * @throws IOException
+     */
+    public MappedRgbImage(int width, int height, Path folder) throws IOException {
+        if ((long) width * height > MAX_PIXELS) {
+            throw new IllegalArgumentException(String.format("image of %dx%d pixels is too large to be assembled from tiles", width, height));
+        }
+        this.width = width;
+        this.height = height;
+        this.rowsPerMapping = Math.max(1, MAX_MAPPING / (width * 3));
+        this.file = Files.createTempFile(folder, ".tiles", ".rgb");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            mappings = new MappedByteBuffer[(height + rowsPerMapping - 1) / rowsPerMapping];
+            for (int i = 0; i < mappings.length; i++) {
+                int rows = Math.min(rowsPerMapping, height - i * rowsPerMapping);
+                mappings[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * rowsPerMapping * width * 3, (long) rows * width * 3);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Copies the pixels of an image into this image. The image is clipped at the borders. Different threads may write different
+     * regions at the same time.
+     *
+     * @param image
+     * @param x
+     * @param y
+     */
+    public void draw(BufferedImage image, int x, int y) {
+        int w = Math.min(image.getWidth(), width - x);
+        int h = Math.min(image.getHeight(), height - y);
+        if (w <= 0 || h <= 0) {
+            return;
+        }
+        int[] rgb = new int[w];
+        for (int row = 0; row < h; row++) {
+            image.getRGB(0, row, w, 1, rgb, 0, w);
+            int index = ((y + row) % rowsPerMapping * width + x) * 3;
+            MappedByteBuffer mapping = mappings[(y + row) / rowsPerMapping];
+            for (int i = 0; i < w; i++, index += 3) {
+                int pixel = rgb[i];
+                mapping.put(index, (byte) (pixel >> 16));
+                mapping.put(index + 1, (byte) (pixel >> 8));
+                mapping.put(index + 2, (byte) pixel);
+            }
+        }
+    }
+
+    /**
+     * @return a view of the pixels, e.g. for writing them with ImageIO
+     */
+    public BufferedImage asBufferedImage() {
+        // cannot overflow, the constructor rejects images with more than MAX_PIXELS
+        DataBuffer buffer = new DataBuffer(DataBuffer.TYPE_BYTE, width * height * 3) {
+            @Override
+            public int getElem(int bank, int i) {
+                return mappings[i / 3 / width / rowsPerMapping].get(i % (rowsPerMapping * width * 3)) & 0xff;
+            }
+
+            @Override
+            public void setElem(int bank, int i, int val) {
+                mappings[i / 3 / width / rowsPerMapping].put(i % (rowsPerMapping * width * 3), (byte) val);
+            }
+        };
+        WritableRaster raster = Raster.createWritableRaster(
+                new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, height, 3, width * 3, new int[] { 0, 1, 2 }), buffer, null);
+        ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE,
+                DataBuffer.TYPE_BYTE);
+        return new BufferedImage(colorModel, raster, false, null);
+    }
+
+    /**
+     * Deletes the temporary file. The mapping itself is released by the garbage collector.
+     */
+    @Override
+    public void close() throws IOException {
+        Files.deleteIfExists(file);
+    }
+}
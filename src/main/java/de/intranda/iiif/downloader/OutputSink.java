@@ -0,0 +1,236 @@
+package de.intranda.iiif.downloader;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Writes all downloaded files into a single archive, one entry after the other. Entries are only added when a file is complete, so the
+ * archive is written sequentially even if many files are downloaded at the same time.
+ * <p>
+ * The last entry of every archive is an index ("index.tsv") with the name, the offset of the data in the archive, the size and the CRC-32
+ * of every entry, so single files can be read from the archive without scanning it.
+ *
+ */
+public abstract class OutputSink implements Closeable {
+    static final String INDEX_NAME = "index.tsv";
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final CountingOutputStream out;
+    private final Path target;
+    private final Path indexFile;
+    private final BufferedWriter index;
+    private IOException failure;
+
+    /**
+     * @param out the stream to write the archive to
+     * @param target the archive file, which is written as a ".part" file until the sink is closed. Null if the archive is written to stdout.
+     * @throws IOException
+     */
+    protected OutputSink(OutputStream out, Path target) throws IOException {
+        this.out = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        this.target = target;
+        // the index may get large for big batches, so it is not kept in memory
+        this.indexFile = Files.createTempFile("iiif-downloader-index", ".tsv");
+        this.index = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8);
+        index.write("name\toffset\tsize\tcrc32\n");
+    }
+
+    /**
+     * Opens a sink for the --output option
+     *
+     * @param output a file name ending in ".tar" or ".zip", or "-" for a TAR archive on stdout
+     * @return
+     * @throws IOException
+     */
+    public static OutputSink open(String output) throws IOException {
+        if ("-".equals(output)) {
+            return new TarSink(new FileOutputStream(FileDescriptor.out), null);
+        }
+        Path target = Paths.get(output);
+        String name = target.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".tar")) {
+            return new TarSink(Files.newOutputStream(FileDownloader.partFile(target)), target);
+        } else if (name.endsWith(".zip")) {
+            return new ZipSink(Files.newOutputStream(FileDownloader.partFile(target)), target);
+        }
+        throw new IllegalArgumentException("unknown archive format of '" + output + "', use a name ending in .tar or .zip, or - for stdout");
+    }
+
+    /**
+     * Adds an entry from memory
+     *
+     * @param name
+     * @param data
+     * @param length
+     * @throws IOException
+     */
+    public synchronized void write(String name, byte[] data, int length) throws IOException {
+        checkWritable();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        try {
+            OutputStream entry = beginEntry(name, length, crc.getValue());
+            long offset = out.getCount();
+            entry.write(data, 0, length);
+            endEntry(length);
+            index(name, offset, length, crc.getValue());
+        } catch (FileSystemException e) {
+            throw e;
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * Adds an entry from a file
+     *
+     * @param name
+     * @param file
+     * @throws IOException
+     */
+    public synchronized void write(String name, Path file) throws IOException {
+        checkWritable();
+        write(name, file, true);
+    }
+
+    private void write(String name, Path file, boolean indexed) throws IOException {
+        long size = Files.size(file);
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        try {
+            OutputStream entry = beginEntry(name, size, crc.getValue());
+            long offset = out.getCount();
+            Files.copy(file, entry);
+            endEntry(size);
+            if (indexed) {
+                index(name, offset, size, crc.getValue());
+            }
+        } catch (FileSystemException e) {
+            throw e;
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * Marks the archive as broken: after a failed write, it may end in the middle of an entry. Such errors are thrown as
+     * {@link FileSystemException}, so the download is not retried.
+     */
+    private FileSystemException failed(IOException e) {
+        failure = e;
+        return broken();
+    }
+
+    private void checkWritable() throws FileSystemException {
+        if (failure != null) {
+            throw broken();
+        }
+    }
+
+    private FileSystemException broken() {
+        FileSystemException e = new FileSystemException(target == null ? "stdout" : target.toString(), null,
+                "the archive cannot be written: " + failure);
+        e.initCause(failure);
+        return e;
+    }
+
+    private void index(String name, long offset, long size, long crc) throws IOException {
+        index.write(String.format("%s\t%d\t%d\t%08x\n", name, offset, size, crc));
+    }
+
+    /**
+     * @return the stream the archive is written to. Counts the bytes written, so the offsets of the entries are known.
+     */
+    protected OutputStream getOut() {
+        return out;
+    }
+
+    /**
+     * Writes the header of an entry
+     *
+     * @param name
+     * @param size
+     * @param crc
+     * @return the stream to write the data of the entry to
+     * @throws IOException
+     */
+    protected abstract OutputStream beginEntry(String name, long size, long crc) throws IOException;
+
+    protected abstract void endEntry(long size) throws IOException;
+
+    /**
+     * Writes the end of the archive
+     */
+    protected abstract void finish() throws IOException;
+
+    /**
+     * Adds the index and completes the archive, unless writing it failed before
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            index.close();
+            if (failure != null) {
+                // the ".part" file is left as it is
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // already reported with the failed downloads
+                }
+                return;
+            }
+            write(INDEX_NAME, indexFile, false);
+            finish();
+            out.close();
+            if (target != null) {
+                FileDownloader.moveToTarget(FileDownloader.partFile(target), target);
+            }
+        } finally {
+            Files.deleteIfExists(indexFile);
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
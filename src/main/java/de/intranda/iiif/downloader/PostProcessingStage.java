@@ -0,0 +1,113 @@
+package de.intranda.iiif.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs {@link PostProcessor}s on downloaded images on a pool with one thread per CPU, so that images are converted while the next ones are
+ * downloaded. The queue of waiting images is bounded: when the network is faster than the processors, handing over an image blocks the
+ * download worker, which in turn stops taking new downloads.
+ *
+ */
+public class PostProcessingStage implements Closeable {
+    private final List<PostProcessor> processors;
+    private final RunMetrics metrics;
+    private final ExecutorService pool;
+    private final Semaphore slots;
+
+    /**
+     * @param processors run in this order on every image
+     * @param threads
+     * @param queueSize the number of images that may wait for a thread
+     * @param metrics records the time spent in each processor, may be null
+     */
+    public PostProcessingStage(List<PostProcessor> processors, int threads, int queueSize, RunMetrics metrics) {
+        this.processors = processors;
+        this.metrics = metrics;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "postprocessing");
+            t.setDaemon(true);
+            return t;
+        });
+        this.slots = new Semaphore(threads + queueSize);
+    }
+
+    /**
+     * @param item
+     * @return true if the downloaded file of the item is processed
+     */
+    public boolean accepts(DownloadItem item) {
+        return item.getKind() != DownloadItem.Kind.ALTO;
+    }
+
+    /**
+     * Queues a downloaded image. Blocks while the queue is full.
+     *
+     * @param item
+     * @param done called when all processors are finished, with the failure or null
+     * @throws InterruptedException
+     */
+    public void submit(DownloadItem item, Consumer<DownloadFailure> done) throws InterruptedException {
+        slots.acquire();
+        try {
+            pool.execute(() -> {
+                try {
+                    done.accept(process(item));
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    private DownloadFailure process(DownloadItem item) {
+        for (PostProcessor processor : processors) {
+            long start = System.nanoTime();
+            try {
+                processor.process(item.getTarget());
+            } catch (IOException | RuntimeException e) {
+                return new DownloadFailure(item, processor.getName() + " failed: " + e);
+            } finally {
+                if (metrics != null) {
+                    metrics.phase(processor.getName(), item.getUrl(), System.nanoTime() - start);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param derivative
+     * @param image
+     * @return true if the derivative was created from the current image in an earlier run
+     */
+    static boolean isUpToDate(Path derivative, Path image) throws IOException {
+        return Files.exists(derivative) && Files.getLastModifiedTime(derivative).compareTo(Files.getLastModifiedTime(image)) >= 0;
+    }
+
+    /**
+     * Waits for the queued images to be processed
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
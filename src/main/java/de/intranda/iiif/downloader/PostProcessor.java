@@ -0,0 +1,25 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Creates a derivative of a downloaded image, e.g. in another format or size. Processors are run by the {@link PostProcessingStage}, on
+ * several files at the same time.
+ *
+ */
+public interface PostProcessor {
+
+    /**
+     * @return a short name for progress and timing reports
+     */
+    String getName();
+
+    /**
+     * Processes a downloaded image. The image itself must not be changed.
+     *
+     * @param image
+     * @throws IOException
+     */
+    void process(Path image) throws IOException;
+}
@@ -0,0 +1,46 @@
+package de.intranda.iiif.downloader;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Task for a pool created with {@link #newPool(int)}. Tasks with a higher priority run first, tasks with the same priority in the order they
+ * were queued.
+ *
+ */
+class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final int priority;
+    private final long sequence = SEQUENCE.getAndIncrement();
+    private final Runnable task;
+
+    PrioritizedTask(int priority, Runnable task) {
+        this.priority = priority;
+        this.task = task;
+    }
+
+    @Override
+    public void run() {
+        task.run();
+    }
+
+    @Override
+    public int compareTo(PrioritizedTask other) {
+        if (priority != other.priority) {
+            return Integer.compare(other.priority, priority);
+        }
+        return Long.compare(sequence, other.sequence);
+    }
+
+    /**
+     * @param threads
+     * @return a fixed pool that only accepts {@link PrioritizedTask}s
+     */
+    static ExecutorService newPool(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+    }
+}
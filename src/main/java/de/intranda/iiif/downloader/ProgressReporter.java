@@ -0,0 +1,172 @@
+package de.intranda.iiif.downloader;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Aggregates the progress of all downloads and reports it from a single thread at a fixed rate. On a terminal, one status line is
+ * updated in place; otherwise (e.g. when the output is captured in a log) a plain line is printed every few seconds.
+ *
+ */
+public class ProgressReporter implements Closeable {
+    private static final long INTERACTIVE_INTERVAL_MS = 250;
+    private static final long LOG_INTERVAL_MS = 10000;
+    private static final String[] rotateArr = new String[] { "|", "/", "-", "\\" };
+
+    private final PrintStream out;
+    private final boolean interactive;
+    private final long startTime = System.nanoTime();
+    private final ScheduledExecutorService timer;
+
+    private final AtomicInteger filesQueued = new AtomicInteger();
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile String message = "";
+
+    // only accessed from the timer thread
+    private long lastBytes;
+    private long lastTime = startTime;
+    private double bytesPerSecond;
+    private int count;
+    private int lastLineLength;
+
+    /**
+     * @param out
+     * @param interactive update a single line in place instead of printing log lines
+     */
+    public ProgressReporter(PrintStream out, boolean interactive) {
+        this.out = out;
+        this.interactive = interactive;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "progress");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval = interactive ? INTERACTIVE_INTERVAL_MS : LOG_INTERVAL_MS;
+        timer.scheduleAtFixedRate(this::report, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a reporter for stdout, interactive if stdout is a terminal
+     *
+     * @return
+     */
+    public static ProgressReporter forStdout() {
+        return new ProgressReporter(System.out, System.console() != null);
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public void fileQueued() {
+        filesQueued.incrementAndGet();
+    }
+
+    public void fileDone() {
+        filesDone.incrementAndGet();
+    }
+
+    public void fileFailed() {
+        filesDone.incrementAndGet();
+        filesFailed.incrementAndGet();
+    }
+
+    public void bytesTransferred(long count) {
+        bytes.addAndGet(count);
+    }
+
+    public int getFilesQueued() {
+        return filesQueued.get();
+    }
+
+    public int getFilesDone() {
+        return filesDone.get();
+    }
+
+    public int getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    private synchronized void report() {
+        long now = System.nanoTime();
+        long currentBytes = bytes.get();
+        double seconds = (now - lastTime) / 1e9;
+        if (seconds > 0) {
+            double current = (currentBytes - lastBytes) / seconds;
+            // smooth the rate, so the display does not jump with every file
+            bytesPerSecond = bytesPerSecond == 0 ? current : 0.7 * bytesPerSecond + 0.3 * current;
+        }
+        lastBytes = currentBytes;
+        lastTime = now;
+        String status = status(now);
+        if (interactive) {
+            String line = rotateArr[count] + " " + status;
+            count = (count + 1) % 4;
+            out.print("\r" + pad(line));
+            out.flush();
+        } else {
+            out.println(status);
+        }
+    }
+
+    private String status(long now) {
+        int queued = filesQueued.get();
+        int done = filesDone.get();
+        int failed = filesFailed.get();
+        StringBuilder sb = new StringBuilder();
+        if (!message.isEmpty()) {
+            sb.append(message).append(" ");
+        }
+        sb.append(String.format("%d/%d files", done, queued));
+        if (failed > 0) {
+            sb.append(String.format(" (%d failed)", failed));
+        }
+        sb.append(String.format(", %.1f MB, %.2f MB/s", bytes.get() / 1048576.0, bytesPerSecond / 1048576.0));
+        double elapsed = (now - startTime) / 1e9;
+        if (done > 0 && queued > done) {
+            long eta = Math.round(elapsed / done * (queued - done));
+            sb.append(String.format(", ETA %d:%02d:%02d", eta / 3600, eta / 60 % 60, eta % 60));
+        }
+        return sb.toString();
+    }
+
+    private String pad(String line) {
+        // overwrite the rest of a longer previous line
+        StringBuilder sb = new StringBuilder(line);
+        for (int i = line.length(); i < lastLineLength; i++) {
+            sb.append(' ');
+        }
+        lastLineLength = line.length();
+        return sb.toString();
+    }
+
+    /**
+     * Stops reporting and prints a final summary line
+     */
+    @Override
+    public synchronized void close() {
+        timer.shutdownNow();
+        long now = System.nanoTime();
+        double elapsed = (now - startTime) / 1e9;
+        message = "";
+        String summary = String.format("%s in %.1f s (%.2f MB/s on average)", status(now), elapsed,
+                elapsed > 0 ? bytes.get() / 1048576.0 / elapsed : 0);
+        if (interactive) {
+            out.println("\r" + pad("✓ " + summary));
+        } else {
+            out.println(summary);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,246 @@
+package de.intranda.iiif.downloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a second request for an image if the first one did not receive its response headers within a percentile of the time to first
+ * byte of earlier images from the same host. Whichever response arrives first is used, and the other request is aborted. This cuts the
+ * wait for single images that a slow backend node renders much slower than the rest.
+ * <p>
+ * Hedges put extra load on the server, so they are capped per host: at most a given percentage of all image requests, and only a few at
+ * the same time. They are not limited by the {@link HostLimiter}.
+ *
+ */
+public class RequestHedger implements Closeable {
+    /** the percentile is not meaningful before a host has answered this many requests */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * Image requests to one host
+     */
+    static class Host {
+        final LatencyHistogram ttfb = new LatencyHistogram();
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong hedges = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    private final HttpDownloadClient client;
+    private final double percentile;
+    private final double budget;
+    private final int maxInFlight;
+    private final RunMetrics metrics;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer;
+    private final ExecutorService hedgePool;
+
+    /**
+     * @param client
+     * @param percentile the percentile of the time to first byte after which a request is hedged, e.g. 95
+     * @param budgetPercent the maximum number of hedges as a percentage of all image requests to a host
+     * @param maxInFlight the maximum number of hedges per host at the same time
+     * @param metrics counts the hedges, may be null
+     */
+    public RequestHedger(HttpDownloadClient client, double percentile, double budgetPercent, int maxInFlight, RunMetrics metrics) {
+        this.client = client;
+        this.percentile = percentile;
+        this.budget = budgetPercent / 100;
+        this.maxInFlight = maxInFlight;
+        this.metrics = metrics;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hedge-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        this.hedgePool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "hedge");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Sends a GET request, and a second one if the first takes too long
+     *
+     * @param url
+     * @param headers additional request headers, may be null
+     * @param compressed ask the server for a gzip-compressed response
+     * @return the first response, which must be closed by the caller
+     * @throws IOException if all requests failed
+     */
+    public HttpDownloadClient.Response get(String url, Map<String, String> headers, boolean compressed) throws IOException {
+        Host host = hosts.computeIfAbsent(DownloadScheduler.hostKey(url), h -> new Host());
+        host.requests.incrementAndGet();
+        HttpDownloadClient.Request primary = client.newGet(url, headers, compressed);
+        if (host.ttfb.getCount() < MIN_SAMPLES) {
+            return execute(host, primary);
+        }
+        long delayNanos = (long) (host.ttfb.getPercentileMs(percentile) * 1e6);
+        Race race = new Race(primary);
+        ScheduledFuture<?> hedge = timer.schedule(() -> hedge(host, race, url, headers, compressed), delayNanos, TimeUnit.NANOSECONDS);
+        try {
+            race.completed(primary, execute(host, primary));
+        } catch (IOException e) {
+            race.failed(e);
+        } finally {
+            hedge.cancel(false);
+        }
+        return race.await();
+    }
+
+    private void hedge(Host host, Race race, String url, Map<String, String> headers, boolean compressed) {
+        if (!admitHedge(host)) {
+            return;
+        }
+        HttpDownloadClient.Request second;
+        try {
+            second = client.newGet(url, headers, compressed);
+        } catch (IOException e) {
+            host.inFlight.decrementAndGet();
+            return;
+        }
+        if (!race.startHedge(second)) {
+            host.inFlight.decrementAndGet();
+            return;
+        }
+        host.hedges.incrementAndGet();
+        if (metrics != null) {
+            metrics.hedged(url);
+        }
+        hedgePool.execute(() -> {
+            try {
+                HttpDownloadClient.Response response = execute(host, second);
+                if (race.completed(second, response) && metrics != null) {
+                    metrics.hedgeWon(url);
+                }
+            } catch (IOException e) {
+                race.failed(e);
+            } finally {
+                host.inFlight.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @return true if the host has room for another hedge within the budget and the number in flight. The hedge then counts as in flight.
+     */
+    boolean admitHedge(Host host) {
+        if (host.hedges.get() + 1 > budget * host.requests.get()) {
+            return false;
+        }
+        if (host.inFlight.incrementAndGet() > maxInFlight) {
+            host.inFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private static HttpDownloadClient.Response execute(Host host, HttpDownloadClient.Request request) throws IOException {
+        HttpDownloadClient.Response response = request.execute();
+        host.ttfb.record(response.getTtfbNanos());
+        return response;
+    }
+
+    /**
+     * The requests for one image. The first response wins.
+     */
+    private static class Race {
+        private final HttpDownloadClient.Request primary;
+        private HttpDownloadClient.Request hedge;
+        private int running = 1;
+        private HttpDownloadClient.Response winner;
+        private IOException failure;
+
+        Race(HttpDownloadClient.Request primary) {
+            this.primary = primary;
+        }
+
+        /**
+         * @return false if the race is already decided
+         */
+        synchronized boolean startHedge(HttpDownloadClient.Request request) {
+            if (winner != null || running == 0) {
+                return false;
+            }
+            hedge = request;
+            running++;
+            return true;
+        }
+
+        /**
+         * @return true if the response won
+         */
+        boolean completed(HttpDownloadClient.Request request, HttpDownloadClient.Response response) {
+            HttpDownloadClient.Request loser = null;
+            boolean won;
+            synchronized (this) {
+                running--;
+                won = winner == null;
+                if (won) {
+                    winner = response;
+                    loser = request == primary ? hedge : primary;
+                    notifyAll();
+                }
+            }
+            if (!won) {
+                // the other request was faster
+                response.abort();
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    // the response is not used
+                }
+                return false;
+            }
+            if (loser != null) {
+                loser.abort();
+            }
+            return true;
+        }
+
+        synchronized void failed(IOException e) {
+            running--;
+            if (failure == null) {
+                failure = e;
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits for the first response, or for all requests to fail
+         */
+        synchronized HttpDownloadClient.Response await() throws IOException {
+            boolean interrupted = false;
+            while (winner == null && running > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (winner != null) {
+                return winner;
+            }
+            throw failure;
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        hedgePool.shutdownNow();
+    }
+}
@@ -0,0 +1,229 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Collects timings of a run: the phases of loading manifests, and latency (time to first byte and total), bytes, retries and errors of all
+ * HTTP requests per host. They are written as a JSON report at the end of the run.
+ * <p>
+ * If the JVM supports Java Flight Recorder, every request and phase is also emitted as a JFR event, which is recorded when the JVM runs
+ * with a flight recording (e.g. -XX:StartFlightRecording).
+ *
+ */
+public class RunMetrics {
+    private static final EventRecorder EVENTS = loadEvents();
+
+    /**
+     * Emits requests and phases as events. Implemented by {@link JfrEvents}, which is only built on JDKs that include JFR.
+     */
+    interface EventRecorder {
+        void request(String url, int status, long ttfbNanos, long totalNanos, long bytes);
+
+        void phase(String phase, String manifest, long nanos);
+    }
+
+    /**
+     * Time spent in one phase of the run
+     */
+    private static class Phase {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+    }
+
+    /**
+     * Requests to one host
+     */
+    private static class Host {
+        final LatencyHistogram ttfb = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong failedDownloads = new AtomicLong();
+        final AtomicLong hedges = new AtomicLong();
+        final AtomicLong hedgesWon = new AtomicLong();
+        final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+        void error(String kind) {
+            errors.computeIfAbsent(kind, k -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    private final Instant started = Instant.now();
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Phase> phases = new ConcurrentHashMap<>();
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * @return the JFR events, or null if the JVM does not support JFR or the downloader was built without them
+     */
+    private static EventRecorder loadEvents() {
+        try {
+            // JFR is missing in older Java 8 releases, the event classes must not be loaded there
+            Class.forName("jdk.jfr.Event");
+            return (EventRecorder) Class.forName(RunMetrics.class.getPackage().getName() + ".JfrEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private Host host(String url) {
+        return hosts.computeIfAbsent(DownloadScheduler.hostKey(url), h -> new Host());
+    }
+
+    /**
+     * Records the time spent in a phase, e.g. loading a manifest
+     *
+     * @param name
+     * @param url the manifest the phase belongs to
+     * @param nanos
+     */
+    public void phase(String name, String url, long nanos) {
+        Phase phase = phases.computeIfAbsent(name, n -> new Phase());
+        phase.count.incrementAndGet();
+        phase.totalNanos.addAndGet(nanos);
+        phase.maxNanos.accumulateAndGet(nanos, Math::max);
+        if (EVENTS != null) {
+            EVENTS.phase(name, url, nanos);
+        }
+    }
+
+    /**
+     * Records a request that received a response. Error status codes are counted as errors.
+     *
+     * @param url
+     * @param status
+     * @param ttfbNanos time until the response headers were received
+     * @param totalNanos time until the response was closed
+     * @param bytes bytes of the body that were read
+     */
+    public void requestCompleted(String url, int status, long ttfbNanos, long totalNanos, long bytes) {
+        Host host = host(url);
+        host.ttfb.record(ttfbNanos);
+        host.total.record(totalNanos);
+        host.bytes.addAndGet(bytes);
+        if (status >= 400) {
+            host.error(Integer.toString(status));
+        }
+        if (EVENTS != null) {
+            EVENTS.request(url, status, ttfbNanos, totalNanos, bytes);
+        }
+    }
+
+    /**
+     * Records a request that failed without a response, e.g. because of a timeout
+     */
+    public void requestFailed(String url, IOException e) {
+        host(url).error(e.getClass().getSimpleName());
+    }
+
+    public void retried(String url) {
+        host(url).retries.incrementAndGet();
+    }
+
+    /**
+     * Records a second request that was sent because the first one was slow
+     */
+    public void hedged(String url) {
+        host(url).hedges.incrementAndGet();
+    }
+
+    /**
+     * Records a second request that was answered before the first one
+     */
+    public void hedgeWon(String url) {
+        host(url).hedgesWon.incrementAndGet();
+    }
+
+    /**
+     * Records a download that failed after all retries
+     */
+    public void downloadFailed(String url) {
+        host(url).failedDownloads.incrementAndGet();
+    }
+
+    /**
+     * Writes the report
+     *
+     * @param file
+     * @param settings options of the run, so that reports of different runs can be compared
+     * @param progress the file counts of the run
+     * @throws IOException
+     */
+    public void writeReport(Path file, Map<String, Object> settings, ProgressReporter progress) throws IOException {
+        ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        ObjectNode report = mapper.createObjectNode();
+        report.put("started", started.toString());
+        report.put("durationSeconds", round(seconds));
+        report.set("settings", mapper.valueToTree(settings));
+        ObjectNode files = report.putObject("files");
+        files.put("queued", progress.getFilesQueued());
+        files.put("done", progress.getFilesDone());
+        files.put("failed", progress.getFilesFailed());
+        files.put("bytes", progress.getBytes());
+        files.put("bytesPerSecond", round(seconds > 0 ? progress.getBytes() / seconds : 0));
+        ObjectNode phaseNodes = report.putObject("phases");
+        for (Map.Entry<String, Phase> e : new TreeMap<>(phases).entrySet()) {
+            ObjectNode node = phaseNodes.putObject(e.getKey());
+            node.put("count", e.getValue().count.get());
+            node.put("totalMs", round(e.getValue().totalNanos.get() / 1e6));
+            node.put("maxMs", round(e.getValue().maxNanos.get() / 1e6));
+        }
+        ObjectNode hostNodes = report.putObject("hosts");
+        for (Map.Entry<String, Host> e : new TreeMap<>(hosts).entrySet()) {
+            Host host = e.getValue();
+            ObjectNode node = hostNodes.putObject(e.getKey());
+            node.put("requests", host.total.getCount());
+            node.put("bytes", host.bytes.get());
+            // throughput of a single connection while a request is open
+            long transferNanos = host.total.getSumNanos();
+            node.put("bytesPerSecondPerConnection", round(transferNanos > 0 ? host.bytes.get() / (transferNanos / 1e9) : 0));
+            node.put("retries", host.retries.get());
+            node.put("failedDownloads", host.failedDownloads.get());
+            node.put("hedges", host.hedges.get());
+            node.put("hedgesWon", host.hedgesWon.get());
+            ObjectNode errors = node.putObject("errors");
+            new TreeMap<>(host.errors).forEach((kind, count) -> errors.put(kind, count.get()));
+            node.set("ttfbMs", histogram(mapper, host.ttfb));
+            node.set("totalMs", histogram(mapper, host.total));
+        }
+        Path partFile = FileDownloader.partFile(file);
+        mapper.writeValue(partFile.toFile(), report);
+        FileDownloader.moveToTarget(partFile, file);
+    }
+
+    private static ObjectNode histogram(ObjectMapper mapper, LatencyHistogram histogram) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("mean", round(histogram.getMeanMs()));
+        node.put("p50", round(histogram.getPercentileMs(50)));
+        node.put("p90", round(histogram.getPercentileMs(90)));
+        node.put("p99", round(histogram.getPercentileMs(99)));
+        node.put("max", round(histogram.getMaxMs()));
+        // non-empty buckets as [upper bound in ms, count]
+        ArrayNode buckets = node.putArray("buckets");
+        long[] counts = histogram.getCounts();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                buckets.addArray().add(round(LatencyHistogram.upperBoundMs(i))).add(counts[i]);
+            }
+        }
+        return node;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+}
@@ -0,0 +1,169 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import lombok.Getter;
+
+/**
+ * A job submitted to the {@link DownloadServer}: a manifest with its own selection options, downloaded by the shared worker pool
+ *
+ */
+public class ServerJob {
+
+    public enum State {
+        QUEUED,
+        LOADING,
+        DOWNLOADING,
+        DONE,
+        FAILED
+    }
+
+    /**
+     * Loads the manifest of a job and queues its files, with the options the job was submitted with
+     */
+    public interface Loader {
+        /**
+         * @return false if the manifest could not be loaded
+         */
+        boolean load(DownloadJob job) throws IOException;
+
+        /**
+         * Called once when all files of the job are done
+         */
+        void finish(DownloadJob job);
+    }
+
+    /** the number of failed files listed in the status */
+    private static final int MAX_LISTED_FAILURES = 100;
+
+    @Getter
+    private final String id;
+    @Getter
+    private final DownloadJob downloadJob;
+    /** the seed of a random selection, or null */
+    private final Long seed;
+    private final Loader loader;
+    private final Instant submitted = Instant.now();
+    private Instant started;
+    private Instant finished;
+    private State state = State.QUEUED;
+    private Runnable onFinished;
+
+    /**
+     * @param id
+     * @param manifestUrl
+     * @param destination
+     * @param priority jobs with a higher priority are loaded and downloaded first
+     * @param seed the seed of a random selection, or null
+     * @param loader
+     */
+    public ServerJob(String id, String manifestUrl, Path destination, int priority, Long seed, Loader loader) {
+        this.id = id;
+        this.seed = seed;
+        this.loader = loader;
+        this.downloadJob = new DownloadJob(manifestUrl, destination, this::completed);
+        downloadJob.setPriority(priority);
+    }
+
+    public int getPriority() {
+        return downloadJob.getPriority();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @param onFinished called once when the job is done or failed
+     */
+    synchronized void setOnFinished(Runnable onFinished) {
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Loads the manifest and queues the files for download. Returns when all files are queued, not when they are downloaded.
+     */
+    void run() {
+        synchronized (this) {
+            state = State.LOADING;
+            started = Instant.now();
+        }
+        try {
+            if (!loader.load(downloadJob)) {
+                downloadJob.setManifestError("could not load manifest");
+            }
+        } catch (IOException | RuntimeException e) {
+            downloadJob.setManifestError(e.toString());
+        } finally {
+            synchronized (this) {
+                if (state == State.LOADING) {
+                    state = State.DOWNLOADING;
+                }
+            }
+            downloadJob.queueingFinished();
+        }
+    }
+
+    private void completed(DownloadJob job) {
+        loader.finish(job);
+        Runnable callback;
+        synchronized (this) {
+            state = job.getManifestError() == null && job.getFailures().isEmpty() ? State.DONE : State.FAILED;
+            finished = Instant.now();
+            callback = onFinished;
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    /**
+     * @param mapper
+     * @return the state and progress of the job as JSON
+     */
+    public synchronized ObjectNode toJson(ObjectMapper mapper) {
+        ObjectNode node = mapper.createObjectNode();
+        node.put("id", id);
+        node.put("state", state.name().toLowerCase());
+        node.put("priority", downloadJob.getPriority());
+        node.put("manifest", downloadJob.getManifestUrl());
+        node.put("destination", downloadJob.getDestination().toString());
+        if (seed != null) {
+            node.put("seed", seed);
+        }
+        node.put("submitted", submitted.toString());
+        if (started != null) {
+            node.put("started", started.toString());
+        }
+        if (finished != null) {
+            node.put("finished", finished.toString());
+            node.put("durationSeconds", (finished.toEpochMilli() - started.toEpochMilli()) / 1000.0);
+        }
+        List<DownloadFailure> failures = downloadJob.getFailures();
+        ObjectNode files = node.putObject("files");
+        files.put("queued", downloadJob.getQueued());
+        files.put("done", downloadJob.getFinished() - failures.size());
+        files.put("failed", failures.size());
+        files.put("skipped", downloadJob.getSkipped());
+        if (downloadJob.getManifestError() != null) {
+            node.put("error", downloadJob.getManifestError());
+        }
+        if (!failures.isEmpty()) {
+            ArrayNode failureNodes = node.putArray("failures");
+            for (DownloadFailure failure : failures.subList(0, Math.min(MAX_LISTED_FAILURES, failures.size()))) {
+                failureNodes.addObject()
+                        .put("url", failure.getItem().getUrl())
+                        .put("target", failure.getItem().getTarget().toString())
+                        .put("message", failure.getMessage());
+            }
+        }
+        return node;
+    }
+}
@@ -0,0 +1,382 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Parses a IIIF manifest token by token without building a tree. Only the parts needed for downloading are extracted: the canvases of the
+ * first sequence (ID, label, image and ALTO URL) and the structures (metadata and canvas IDs). Everything else is skipped.
+ *
+ */
+public class StreamingManifestParser {
+
+    /**
+     * Receives canvases and structures in the order they appear in the manifest
+     */
+    public interface Handler {
+        /**
+         * @param canvas
+         * @return false to stop parsing
+         */
+        boolean onCanvas(CanvasRecord canvas) throws IOException;
+
+        default void onStructure(StructureRecord structure) {
+        }
+    }
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    private final JsonParser parser;
+    private final Handler handler;
+    private boolean stopped;
+    // the "@language" of the last value object read by readText()
+    private String lastLanguage;
+
+    private StreamingManifestParser(JsonParser parser, Handler handler) {
+        this.parser = parser;
+        this.handler = handler;
+    }
+
+    /**
+     * Parses the manifest from the stream and hands canvases to the handler as soon as each one is complete
+     *
+     * @param in
+     * @param handler
+     * @return false if the handler stopped parsing before the end of the manifest
+     * @throws IOException
+     */
+    public static boolean parse(InputStream in, Handler handler) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            StreamingManifestParser p = new StreamingManifestParser(parser, handler);
+            p.parseManifest();
+            return !p.stopped;
+        }
+    }
+
+    /**
+     * Normalizes an ID so that IDs with and without a trailing slash are treated as the same canvas, manifest or collection
+     *
+     * @param id
+     * @return the ID with a trailing slash, or null
+     */
+    public static String normalizeId(String id) {
+        if (id == null) {
+            return null;
+        }
+        return id.endsWith("/") ? id : id + "/";
+    }
+
+    private void parseManifest() throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "a IIIF manifest must be a JSON object");
+        }
+        while (!stopped && parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            JsonToken token = parser.nextToken();
+            if ("sequences".equals(field)) {
+                parseSequences(token);
+            } else if ("structures".equals(field) && token == JsonToken.START_ARRAY) {
+                while (!stopped && parser.nextToken() != JsonToken.END_ARRAY) {
+                    parseStructure();
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void parseSequences(JsonToken token) throws IOException {
+        if (token == JsonToken.START_OBJECT) {
+            parseSequence();
+            return;
+        }
+        if (token != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        boolean first = true;
+        while (!stopped && parser.nextToken() != JsonToken.END_ARRAY) {
+            // like the tree based download, only the first sequence is used
+            if (first && parser.currentToken() == JsonToken.START_OBJECT) {
+                parseSequence();
+                first = false;
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void parseSequence() throws IOException {
+        while (!stopped && parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            JsonToken token = parser.nextToken();
+            if ("canvases".equals(field) && token == JsonToken.START_ARRAY) {
+                while (!stopped && parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (parser.currentToken() == JsonToken.START_OBJECT) {
+                        parseCanvas();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void parseCanvas() throws IOException {
+        String id = null;
+        String label = null;
+        String imageUri = null;
+        String altoUri = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            parser.nextToken();
+            switch (field) {
+                case "@id":
+                    id = readText();
+                    break;
+                case "label":
+                    label = readText();
+                    break;
+                case "images":
+                    imageUri = readFirstImageUri();
+                    break;
+                case "seeAlso":
+                    altoUri = readAltoUri();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if (id != null && imageUri != null && !handler.onCanvas(new CanvasRecord(normalizeId(id), label, imageUri, altoUri))) {
+            stopped = true;
+        }
+    }
+
+    private String readFirstImageUri() throws IOException {
+        if (parser.currentToken() == JsonToken.START_OBJECT) {
+            return readImageAnnotation();
+        }
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        String uri = null;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (uri == null && parser.currentToken() == JsonToken.START_OBJECT) {
+                uri = readImageAnnotation();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return uri;
+    }
+
+    private String readImageAnnotation() throws IOException {
+        String uri = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            parser.nextToken();
+            if ("resource".equals(field) && parser.currentToken() == JsonToken.START_OBJECT) {
+                uri = readId();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return uri;
+    }
+
+    private String readId() throws IOException {
+        String id = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            parser.nextToken();
+            if ("@id".equals(field)) {
+                id = readText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return id;
+    }
+
+    private String readAltoUri() throws IOException {
+        if (parser.currentToken() == JsonToken.START_OBJECT) {
+            return readAltoSeeAlso();
+        }
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        String uri = null;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() == JsonToken.START_OBJECT) {
+                String candidate = readAltoSeeAlso();
+                if (uri == null) {
+                    uri = candidate;
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return uri;
+    }
+
+    private String readAltoSeeAlso() throws IOException {
+        String id = null;
+        String label = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            parser.nextToken();
+            if ("@id".equals(field)) {
+                id = readText();
+            } else if ("label".equals(field)) {
+                label = readText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return "ALTO".equals(label) ? id : null;
+    }
+
+    private void parseStructure() throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        String id = null;
+        List<LabelValuePair> metadata = Collections.emptyList();
+        List<String> canvasIds = Collections.emptyList();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            JsonToken token = parser.nextToken();
+            if ("@id".equals(field)) {
+                id = readText();
+            } else if ("metadata".equals(field) && token == JsonToken.START_ARRAY) {
+                metadata = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    readMetadataEntry(metadata);
+                }
+            } else if ("canvases".equals(field) && token == JsonToken.START_ARRAY) {
+                canvasIds = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    String canvasId = parser.currentToken() == JsonToken.START_OBJECT ? readId() : readText();
+                    if (canvasId != null) {
+                        canvasIds.add(normalizeId(canvasId));
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        handler.onStructure(new StructureRecord(id, metadata, canvasIds));
+    }
+
+    /**
+     * Reads a metadata entry and adds one label-value pair per label language, the same way
+     * {@link ManifestQuery#filterIncludeStructure(com.fasterxml.jackson.databind.JsonNode, List)} matches them
+     */
+    private void readMetadataEntry(List<LabelValuePair> metadata) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        List<String> labels = Collections.emptyList();
+        List<String> values = Collections.emptyList();
+        List<String> labelLanguages = new ArrayList<>(2);
+        List<String> valueLanguages = new ArrayList<>(2);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            parser.nextToken();
+            if ("label".equals(field)) {
+                labels = readTexts(labelLanguages);
+            } else if ("value".equals(field)) {
+                values = readTexts(valueLanguages);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        for (int i = 0; i < labels.size(); i++) {
+            String value = values.size() == 1 ? values.get(0) : (i < values.size() ? values.get(i) : null);
+            if (labels.get(i) != null && value != null) {
+                String language = labelLanguages.get(i);
+                if (language == null) {
+                    language = valueLanguages.size() == 1 ? valueLanguages.get(0) : (i < valueLanguages.size() ? valueLanguages.get(i) : null);
+                }
+                metadata.add(new LabelValuePair(labels.get(i), value, language));
+            }
+        }
+    }
+
+    /**
+     * Reads a plain string, a value object or the first entry of an array of these
+     */
+    private String readText() throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getText();
+            case START_OBJECT:
+                return readValueObject();
+            case START_ARRAY:
+                String text = null;
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    if (text == null) {
+                        text = readText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                return text;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Reads a plain string, a value object or all entries of an array of these
+     *
+     * @param languages receives the "@language" of each text, or null
+     */
+    private List<String> readTexts(List<String> languages) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            lastLanguage = null;
+            String text = readText();
+            languages.add(lastLanguage);
+            return Collections.singletonList(text);
+        }
+        List<String> texts = new ArrayList<>(2);
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            lastLanguage = null;
+            texts.add(readText());
+            languages.add(lastLanguage);
+        }
+        return texts;
+    }
+
+    private String readValueObject() throws IOException {
+        String value = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            parser.nextToken();
+            if ("@value".equals(field)) {
+                value = readText();
+            } else if ("@language".equals(field) && parser.currentToken() == JsonToken.VALUE_STRING) {
+                lastLanguage = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return value;
+    }
+}
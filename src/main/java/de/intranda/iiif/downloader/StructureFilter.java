@@ -0,0 +1,465 @@
+package de.intranda.iiif.downloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Selects structures by their metadata with filter expressions, e.g.
+ *
+ * <pre>
+ * (Strukturtyp::Kapitel OR Strukturtyp::Abbildung) AND NOT Titel^=Vorwort
+ * "Structure type"@en::"Title page"
+ * Datierung~=^18[0-9]{2}$
+ * </pre>
+ *
+ * A term compares the metadata entries of a structure with the same label: {@code ::} for an exact value, {@code ^=} for a prefix and
+ * {@code ~=} for a regular expression that has to be found in the value. {@code @lang} after the label only takes entries in this
+ * language. Terms are combined with {@code AND}, {@code OR}, {@code NOT} and parentheses; texts with spaces, parentheses or operators can be
+ * quoted with double quotes.
+ * <p>
+ * A plain {@code label::value} is split at the {@code ::} without trimming, as in earlier versions, so labels and values may contain
+ * {@code @}, spaces, parentheses and keywords, like {@code Titel (de)::Kapitel 1)} or {@code Titel::Krieg AND Frieden}. An expression
+ * is read this way if it is a single term: one {@code ::}, no other operator or quote, no opening parenthesis or {@code NOT} before the
+ * label and no keyword at the end. It is split right away if it has no parentheses or keywords at all, and otherwise only if it is not a
+ * valid expression. Any other invalid expression is an error.
+ * <p>
+ * The include and exclude expressions are compiled together: exact terms go into one hash table, and prefixes and patterns are grouped
+ * by label, so the metadata of a structure is read once to decide both.
+ *
+ */
+public class StructureFilter {
+    /** the structure matches one of the include expressions */
+    public static final int INCLUDE = 1;
+    /** the structure matches one of the exclude expressions */
+    public static final int EXCLUDE = 2;
+
+    private static final StructureFilter NONE = new StructureFilter(Collections.emptyList(), Collections.emptyList());
+    private static final String LEGACY_SEPARATOR = "::";
+    private static final Pattern KEYWORD = Pattern.compile("(^|\\s)(AND|OR|NOT)(\\s|$)");
+    private static final Pattern LEADING_GROUP = Pattern.compile("^\\s*(\\(|NOT(\\s|\\(|$))");
+    private static final Pattern TRAILING_KEYWORD = Pattern.compile("(^|\\s)(AND|OR|NOT)\\s*$");
+
+    /**
+     * A boolean expression over the terms
+     */
+    private interface Node {
+        boolean eval(boolean[] terms);
+    }
+
+    private enum Operator {
+        EXACT("::"),
+        PREFIX("^="),
+        REGEX("~=");
+
+        final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+    }
+
+    /**
+     * A single comparison, identified by its index in the table of terms
+     */
+    private static class Term implements Node {
+        final int index;
+        final String label;
+        final String language;
+        final Operator operator;
+        final String value;
+        final Pattern pattern;
+
+        Term(int index, String label, String language, Operator operator, String value) {
+            this.index = index;
+            this.label = label;
+            this.language = language;
+            this.operator = operator;
+            this.value = value;
+            this.pattern = operator == Operator.REGEX ? Pattern.compile(value) : null;
+        }
+
+        boolean matches(LabelValuePair pair) {
+            if (language != null && !language.equalsIgnoreCase(pair.getLanguage())) {
+                return false;
+            }
+            switch (operator) {
+                case EXACT:
+                    return value.equals(pair.getValue());
+                case PREFIX:
+                    return pair.getValue().startsWith(value);
+                default:
+                    return pattern.matcher(pair.getValue()).find();
+            }
+        }
+
+        @Override
+        public boolean eval(boolean[] terms) {
+            return terms[index];
+        }
+    }
+
+    private final List<Node> include;
+    private final List<Node> exclude;
+    private final List<Term> terms = new ArrayList<>();
+    private final Map<String, List<Term>> exactTerms = new HashMap<>();
+    private final Map<String, List<Term>> otherTerms = new HashMap<>();
+
+    private StructureFilter(List<Node> include, List<Node> exclude) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    /**
+     * Compiles the filter expressions
+     *
+     * @param include expressions that select structures, may be null
+     * @param exclude expressions for structures whose canvases are dropped, may be null
+     * @return the compiled filter
+     * @throws IllegalArgumentException if an expression is invalid
+     */
+    public static StructureFilter compile(List<String> include, List<String> exclude) {
+        StructureFilter filter = new StructureFilter(new ArrayList<>(), new ArrayList<>());
+        if (include != null) {
+            for (String expression : include) {
+                filter.include.add(filter.compile(expression));
+            }
+        }
+        if (exclude != null) {
+            for (String expression : exclude) {
+                filter.exclude.add(filter.compile(expression));
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Compiles one expression, or splits a plain {@code label::value} like earlier versions did
+     */
+    private Node compile(String expression) {
+        boolean legacy = isLegacyTerm(expression);
+        if (legacy && expression.indexOf('(') < 0 && expression.indexOf(')') < 0 && !KEYWORD.matcher(expression).find()) {
+            return legacyTerm(expression);
+        }
+        int size = terms.size();
+        try {
+            return new Parser(this, expression).parse();
+        } catch (IllegalArgumentException e) {
+            if (!legacy) {
+                throw e;
+            }
+            removeTermsFrom(size);
+            return legacyTerm(expression);
+        }
+    }
+
+    /**
+     * @return true if the expression can only be meant as a single {@code label::value}
+     */
+    private static boolean isLegacyTerm(String expression) {
+        int separator = expression.indexOf(LEGACY_SEPARATOR);
+        if (separator < 0 || expression.indexOf(LEGACY_SEPARATOR, separator + LEGACY_SEPARATOR.length()) >= 0 || expression.indexOf('"') >= 0) {
+            return false;
+        }
+        for (Operator operator : Operator.values()) {
+            if (operator != Operator.EXACT && expression.contains(operator.symbol)) {
+                return false;
+            }
+        }
+        return !LEADING_GROUP.matcher(expression.substring(0, separator)).find()
+                && !TRAILING_KEYWORD.matcher(expression.substring(separator + LEGACY_SEPARATOR.length())).find();
+    }
+
+    private Term legacyTerm(String expression) {
+        String[] parts = expression.split(LEGACY_SEPARATOR, 2);
+        return addTerm(parts[0], null, Operator.EXACT, parts[1]);
+    }
+
+    /**
+     * @param include exact label-value pairs that select structures
+     * @param exclude exact label-value pairs for structures whose canvases are dropped
+     * @return a filter that matches the pairs like the expressions {@code label::value}
+     */
+    public static StructureFilter of(List<LabelValuePair> include, List<LabelValuePair> exclude) {
+        if (include.isEmpty() && exclude.isEmpty()) {
+            return NONE;
+        }
+        StructureFilter filter = new StructureFilter(new ArrayList<>(), new ArrayList<>());
+        for (LabelValuePair pair : include) {
+            filter.include.add(filter.addTerm(pair.getLabel(), null, Operator.EXACT, pair.getValue()));
+        }
+        for (LabelValuePair pair : exclude) {
+            filter.exclude.add(filter.addTerm(pair.getLabel(), null, Operator.EXACT, pair.getValue()));
+        }
+        return filter;
+    }
+
+    public boolean hasInclude() {
+        return !include.isEmpty();
+    }
+
+    public boolean hasExclude() {
+        return !exclude.isEmpty();
+    }
+
+    private Term addTerm(String label, String language, Operator operator, String value) {
+        Term term = new Term(terms.size(), label, language, operator, value);
+        terms.add(term);
+        if (operator == Operator.EXACT) {
+            exactTerms.computeIfAbsent(key(label, value), k -> new ArrayList<>(1)).add(term);
+        } else {
+            otherTerms.computeIfAbsent(label, k -> new ArrayList<>(1)).add(term);
+        }
+        return term;
+    }
+
+    /**
+     * Drops the terms of an expression that could not be parsed
+     */
+    private void removeTermsFrom(int size) {
+        while (terms.size() > size) {
+            Term term = terms.remove(terms.size() - 1);
+            Map<String, List<Term>> table = term.operator == Operator.EXACT ? exactTerms : otherTerms;
+            String key = term.operator == Operator.EXACT ? key(term.label, term.value) : term.label;
+            List<Term> list = table.get(key);
+            list.remove(term);
+            if (list.isEmpty()) {
+                table.remove(key);
+            }
+        }
+    }
+
+    private static String key(String label, String value) {
+        return label + '\u0000' + value;
+    }
+
+    /**
+     * Decides include and exclude for a structure in one pass over its metadata
+     *
+     * @param metadata
+     * @return {@link #INCLUDE} and/or {@link #EXCLUDE}, or 0
+     */
+    public int match(LabelValuePair[] metadata) {
+        if (terms.isEmpty()) {
+            return 0;
+        }
+        boolean[] matched = new boolean[terms.size()];
+        for (LabelValuePair pair : metadata) {
+            if (pair.getLabel() == null || pair.getValue() == null) {
+                continue;
+            }
+            List<Term> exact = exactTerms.get(key(pair.getLabel(), pair.getValue()));
+            if (exact != null) {
+                for (Term term : exact) {
+                    matched[term.index] |= term.matches(pair);
+                }
+            }
+            List<Term> other = otherTerms.get(pair.getLabel());
+            if (other != null) {
+                for (Term term : other) {
+                    if (!matched[term.index]) {
+                        matched[term.index] = term.matches(pair);
+                    }
+                }
+            }
+        }
+        return (anyMatches(include, matched) ? INCLUDE : 0) | (anyMatches(exclude, matched) ? EXCLUDE : 0);
+    }
+
+    private static boolean anyMatches(List<Node> expressions, boolean[] matched) {
+        for (Node expression : expressions) {
+            if (expression.eval(matched)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recursive descent parser for one expression. NOT binds stronger than AND, and AND stronger than OR.
+     */
+    private static class Parser {
+        private final StructureFilter filter;
+        private final String expression;
+        private int pos;
+
+        Parser(StructureFilter filter, String expression) {
+            this.filter = filter;
+            this.expression = expression;
+        }
+
+        Node parse() {
+            Node node = parseOr();
+            skipWhitespace();
+            if (pos < expression.length()) {
+                throw error("unexpected '" + expression.charAt(pos) + "'");
+            }
+            return node;
+        }
+
+        private Node parseOr() {
+            Node left = parseAnd();
+            while (keyword("OR")) {
+                Node a = left;
+                Node b = parseAnd();
+                left = terms -> a.eval(terms) || b.eval(terms);
+            }
+            return left;
+        }
+
+        private Node parseAnd() {
+            Node left = parseNot();
+            while (keyword("AND")) {
+                Node a = left;
+                Node b = parseNot();
+                left = terms -> a.eval(terms) && b.eval(terms);
+            }
+            return left;
+        }
+
+        private Node parseNot() {
+            if (keyword("NOT")) {
+                Node operand = parseNot();
+                return terms -> !operand.eval(terms);
+            }
+            skipWhitespace();
+            if (pos < expression.length() && expression.charAt(pos) == '(') {
+                pos++;
+                Node node = parseOr();
+                skipWhitespace();
+                if (pos >= expression.length() || expression.charAt(pos) != ')') {
+                    throw error("missing ')'");
+                }
+                pos++;
+                return node;
+            }
+            return parseTerm();
+        }
+
+        private Node parseTerm() {
+            String label = text(true);
+            if (label.isEmpty()) {
+                throw error("missing label");
+            }
+            String language = null;
+            if (pos < expression.length() && expression.charAt(pos) == '@') {
+                int start = ++pos;
+                while (pos < expression.length() && (Character.isLetterOrDigit(expression.charAt(pos)) || expression.charAt(pos) == '-')) {
+                    pos++;
+                }
+                language = expression.substring(start, pos);
+                if (language.isEmpty()) {
+                    throw error("missing language after '@'");
+                }
+            }
+            Operator operator = operator();
+            if (operator == null) {
+                throw error("expected '::', '^=' or '~=' after the label");
+            }
+            pos += operator.symbol.length();
+            String value = text(false);
+            try {
+                return filter.addTerm(label, language, operator, value);
+            } catch (PatternSyntaxException e) {
+                throw error("invalid regular expression '" + value + "': " + e.getDescription());
+            }
+        }
+
+        /**
+         * Reads a quoted or plain text. A plain label ends before an operator or '@'; a plain value ends before a closing parenthesis
+         * without an opening one, or before whitespace and a keyword.
+         */
+        private String text(boolean label) {
+            skipWhitespace();
+            if (pos < expression.length() && expression.charAt(pos) == '"') {
+                return quoted();
+            }
+            int start = pos;
+            int depth = 0;
+            while (pos < expression.length()) {
+                char c = expression.charAt(pos);
+                if (label && (c == '@' || c == '(' || c == ')' || operator() != null)) {
+                    break;
+                }
+                if (!label && c == '(') {
+                    depth++;
+                } else if (!label && c == ')' && depth-- == 0) {
+                    break;
+                } else if (Character.isWhitespace(c) && atKeyword(pos)) {
+                    break;
+                }
+                pos++;
+            }
+            return expression.substring(start, pos).trim();
+        }
+
+        private String quoted() {
+            StringBuilder text = new StringBuilder();
+            pos++;
+            while (pos < expression.length()) {
+                char c = expression.charAt(pos++);
+                if (c == '"') {
+                    return text.toString();
+                }
+                if (c == '\\' && pos < expression.length()) {
+                    c = expression.charAt(pos++);
+                }
+                text.append(c);
+            }
+            throw error("missing closing '\"'");
+        }
+
+        private Operator operator() {
+            for (Operator operator : Operator.values()) {
+                if (expression.startsWith(operator.symbol, pos)) {
+                    return operator;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return true if the whitespace at this position is followed by AND, OR or NOT
+         */
+        private boolean atKeyword(int at) {
+            while (at < expression.length() && Character.isWhitespace(expression.charAt(at))) {
+                at++;
+            }
+            for (String keyword : new String[] { "AND", "OR", "NOT" }) {
+                if (isKeyword(at, keyword)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isKeyword(int at, String keyword) {
+            int end = at + keyword.length();
+            return expression.startsWith(keyword, at)
+                    && (end == expression.length() || Character.isWhitespace(expression.charAt(end)) || expression.charAt(end) == '(');
+        }
+
+        private boolean keyword(String keyword) {
+            skipWhitespace();
+            if (isKeyword(pos, keyword)) {
+                pos += keyword.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (pos < expression.length() && Character.isWhitespace(expression.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format("invalid structure filter \"%s\" at position %d: %s", expression, pos + 1, message));
+        }
+    }
+}
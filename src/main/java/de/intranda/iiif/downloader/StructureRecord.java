@@ -0,0 +1,18 @@
+package de.intranda.iiif.downloader;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Data class holding the metadata and the (normalized) canvas IDs of a structure
+ *
+ */
+@Data
+@AllArgsConstructor
+public class StructureRecord {
+    String id;
+    List<LabelValuePair> metadata;
+    List<String> canvasIds;
+}
@@ -0,0 +1,133 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Writes a TAR archive in ustar format. Names that do not fit into the ustar header are written as GNU long name entries.
+ *
+ */
+public class TarSink extends OutputSink {
+    private static final int BLOCK_SIZE = 512;
+    private static final int NAME_LENGTH = 100;
+    private static final int PREFIX_LENGTH = 155;
+    private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+    public TarSink(OutputStream out, Path target) throws IOException {
+        super(out, target);
+    }
+
+    @Override
+    protected OutputStream beginEntry(String name, long size, long crc) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] header;
+        if (nameBytes.length <= NAME_LENGTH) {
+            header = header(nameBytes, new byte[0], size, '0');
+        } else {
+            int split = prefixSplit(nameBytes);
+            if (split > 0) {
+                byte[] prefix = new byte[split];
+                byte[] rest = new byte[nameBytes.length - split - 1];
+                System.arraycopy(nameBytes, 0, prefix, 0, prefix.length);
+                System.arraycopy(nameBytes, split + 1, rest, 0, rest.length);
+                header = header(rest, prefix, size, '0');
+            } else {
+                writeLongName(nameBytes);
+                header = header(truncate(nameBytes), new byte[0], size, '0');
+            }
+        }
+        getOut().write(header);
+        return getOut();
+    }
+
+    @Override
+    protected void endEntry(long size) throws IOException {
+        pad(size);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        getOut().write(new byte[2 * BLOCK_SIZE]);
+    }
+
+    /**
+     * @return the position of a slash that splits the name into an ustar prefix and name, or -1 if there is none
+     */
+    private static int prefixSplit(byte[] name) {
+        for (int i = Math.min(PREFIX_LENGTH, name.length - 1); i > 0; i--) {
+            if (name[i] == '/' && name.length - i - 1 <= NAME_LENGTH && name.length - i - 1 > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void writeLongName(byte[] name) throws IOException {
+        byte[] data = new byte[name.length + 1];
+        System.arraycopy(name, 0, data, 0, name.length);
+        getOut().write(header("././@LongLink".getBytes(StandardCharsets.US_ASCII), new byte[0], data.length, 'L'));
+        getOut().write(data);
+        pad(data.length);
+    }
+
+    private void pad(long size) throws IOException {
+        int rest = (int) (size % BLOCK_SIZE);
+        if (rest > 0) {
+            getOut().write(new byte[BLOCK_SIZE - rest]);
+        }
+    }
+
+    private static byte[] truncate(byte[] name) {
+        byte[] truncated = new byte[NAME_LENGTH];
+        System.arraycopy(name, 0, truncated, 0, NAME_LENGTH);
+        return truncated;
+    }
+
+    private static byte[] header(byte[] name, byte[] prefix, long size, char type) {
+        byte[] header = new byte[BLOCK_SIZE];
+        System.arraycopy(name, 0, header, 0, name.length);
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        if (size <= MAX_OCTAL_SIZE) {
+            octal(header, 124, 12, size);
+        } else {
+            // GNU base-256 encoding for entries of 8 GB and more
+            header[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++) {
+                header[135 - i] = (byte) (size >>> (8 * i));
+            }
+        }
+        octal(header, 136, 12, System.currentTimeMillis() / 1000);
+        header[156] = (byte) type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        System.arraycopy(prefix, 0, header, 345, prefix.length);
+        // the checksum is calculated with spaces in the checksum field
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Writes a zero-padded octal number followed by a NUL byte
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int start = offset + length - 1 - digits.length();
+        for (int i = offset; i < start; i++) {
+            header[i] = '0';
+        }
+        for (int i = 0; i < digits.length(); i++) {
+            header[start + i] = (byte) digits.charAt(i);
+        }
+        header[offset + length - 1] = 0;
+    }
+}
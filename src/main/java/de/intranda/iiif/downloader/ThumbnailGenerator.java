@@ -0,0 +1,129 @@
+package de.intranda.iiif.downloader;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes a scaled-down JPEG copy of every downloaded image to the "thumbs" folder next to the image. The image is decoded with
+ * subsampling, so large images do not have to be held in memory in full resolution.
+ *
+ */
+public class ThumbnailGenerator implements PostProcessor {
+    public static final String FOLDER = "thumbs";
+    private static final float JPEG_QUALITY = 0.85f;
+
+    private final int size;
+
+    /**
+     * @param size the maximum width and height of the thumbnails
+     */
+    public ThumbnailGenerator(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("the thumbnail size must be at least 1");
+        }
+        this.size = size;
+    }
+
+    @Override
+    public String getName() {
+        return "thumbnail";
+    }
+
+    @Override
+    public void process(Path image) throws IOException {
+        Path target = derivative(image);
+        if (PostProcessingStage.isUpToDate(target, image)) {
+            return;
+        }
+        BufferedImage thumbnail = scale(read(image));
+        Files.createDirectories(target.getParent());
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+        Path partFile = FileDownloader.partFile(target);
+        try {
+            Files.deleteIfExists(partFile);
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(partFile.toFile())) {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(thumbnail, null, null), param);
+            }
+            FileDownloader.moveToTarget(partFile, target);
+        } finally {
+            writer.dispose();
+            Files.deleteIfExists(partFile);
+        }
+    }
+
+    /**
+     * Decodes only every n-th pixel, keeping at least twice the thumbnail size for a smooth scaling
+     */
+    private BufferedImage read(Path image) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(image.toFile())) {
+            Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("cannot read image " + image);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int longestSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                int subsampling = Math.max(1, longestSide / (2 * size));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private BufferedImage scale(BufferedImage image) {
+        double factor = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+        // bilinear scaling by more than half skips pixels, so larger images are halved first
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = draw(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        return draw(current, width, height);
+    }
+
+    private static BufferedImage draw(BufferedImage image, int width, int height) {
+        // JPEG has no alpha channel, and gray or bitonal images are scaled better in RGB
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * @return the thumbnail file for an image
+     */
+    Path derivative(Path image) {
+        String name = image.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return image.resolveSibling(FOLDER).resolve((dot > 0 ? name.substring(0, dot) : name) + ".jpg");
+    }
+}
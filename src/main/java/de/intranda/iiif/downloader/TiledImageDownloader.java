@@ -0,0 +1,178 @@
+package de.intranda.iiif.downloader;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Downloads an image as tiles of its image service and stitches them together. The tiles of one row band are fetched in parallel and
+ * copied into a {@link MappedRgbImage}, so only the tiles currently being decoded are held in memory.
+ * <p>
+ * Every tile is requested within the {@link HostLimits} of its host and retried on its own, so a single failing tile does not make the
+ * whole image start over.
+ *
+ */
+public class TiledImageDownloader implements Closeable {
+    private static final float JPEG_QUALITY = 0.95f;
+
+    private final HttpDownloadClient client;
+    private final ProgressReporter progress;
+    private final HostLimits hostLimits;
+    private final ExecutorService tilePool;
+
+    /**
+     * @param client
+     * @param progress
+     * @param parallelTiles the maximum number of tiles fetched at the same time
+     * @param hostLimits the limits, backoff and retries for the tile requests
+     */
+    public TiledImageDownloader(HttpDownloadClient client, ProgressReporter progress, int parallelTiles, HostLimits hostLimits) {
+        this.client = client;
+        this.progress = progress;
+        this.hostLimits = hostLimits;
+        this.tilePool = Executors.newFixedThreadPool(parallelTiles, r -> {
+            Thread t = new Thread(r, "tiles");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Downloads the image of a service from its tiles
+     *
+     * @param info the image service
+     * @param scaleFactor one of the scale factors of the tiles, 1 for full resolution
+     * @param target the JPEG file to write
+     * @throws IOException
+     * @throws IllegalArgumentException if the image is too large to be assembled, see {@link MappedRgbImage#MAX_PIXELS}
+     */
+    public void download(ImageServiceInfo info, int scaleFactor, Path target) throws IOException {
+        int regionWidth = info.getTileWidth() * scaleFactor;
+        int regionHeight = info.getTileHeight() * scaleFactor;
+        int outWidth = ceilDiv(info.getWidth(), scaleFactor);
+        int outHeight = ceilDiv(info.getHeight(), scaleFactor);
+        if ((long) outWidth * outHeight > MappedRgbImage.MAX_PIXELS) {
+            // not an IOException, so the download is not retried
+            throw new IllegalArgumentException(String.format(
+                    "image of %dx%d pixels is too large to be assembled from tiles (at most %d pixels), use --size or --max_pixels",
+                    outWidth, outHeight, MappedRgbImage.MAX_PIXELS));
+        }
+        try (MappedRgbImage image = new MappedRgbImage(outWidth, outHeight, target.toAbsolutePath().getParent())) {
+            for (int y = 0; y < info.getHeight(); y += regionHeight) {
+                List<Future<?>> band = new ArrayList<>();
+                for (int x = 0; x < info.getWidth(); x += regionWidth) {
+                    String url = tileUrl(info, x, y, Math.min(regionWidth, info.getWidth() - x), Math.min(regionHeight, info.getHeight() - y),
+                            scaleFactor);
+                    int outX = x / scaleFactor;
+                    int outY = y / scaleFactor;
+                    band.add(tilePool.submit(() -> {
+                        image.draw(hostLimits.call(url, () -> fetchTile(url)), outX, outY);
+                        return null;
+                    }));
+                }
+                awaitBand(band);
+            }
+            Path partFile = FileDownloader.partFile(target);
+            writeJpeg(image.asBufferedImage(), partFile);
+            FileDownloader.moveToTarget(partFile, target);
+        }
+    }
+
+    static String tileUrl(ImageServiceInfo info, int x, int y, int w, int h, int scaleFactor) {
+        int sw = ceilDiv(w, scaleFactor);
+        // Image API 2 servers only have to support the "w," syntax for tiles, Image API 3 servers only "w,h"
+        String size = info.isVersion3() ? sw + "," + ceilDiv(h, scaleFactor) : sw + ",";
+        return String.format("%s/%d,%d,%d,%d/%s/0/default.jpg", info.getId(), x, y, w, h, size);
+    }
+
+    private BufferedImage fetchTile(String url) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (HttpDownloadClient.Response response = client.get(url, null, false)) {
+            if (response.getStatusCode() != 200) {
+                throw new HttpStatusException(response.getStatusCode(), response.getUrl(), response.getHeader("Retry-After"));
+            }
+            byte[] buffer = new byte[8192];
+            int read;
+            try (InputStream in = response.getBody()) {
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                    progress.bytesTransferred(read);
+                }
+            }
+        }
+        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(bytes.toByteArray()));
+        if (tile == null) {
+            throw new IOException("could not decode tile " + url);
+        }
+        return tile;
+    }
+
+    /**
+     * @return the limits the tiles are requested with
+     */
+    public HostLimits getHostLimits() {
+        return hostLimits;
+    }
+
+    private static void awaitBand(List<Future<?>> band) throws IOException {
+        try {
+            for (Future<?> tile : band) {
+                tile.get();
+            }
+        } catch (InterruptedException e) {
+            band.forEach(tile -> tile.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while fetching tiles");
+        } catch (ExecutionException e) {
+            band.forEach(tile -> tile.cancel(true));
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static void writeJpeg(BufferedImage image, Path file) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(JPEG_QUALITY);
+        Files.deleteIfExists(file);
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file.toFile())) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    @Override
+    public void close() {
+        tilePool.shutdownNow();
+    }
+}
@@ -0,0 +1,73 @@
+package de.intranda.iiif.downloader;
+
+/**
+ * Set of URLs that only stores a 64-bit fingerprint of each URL, so that millions of URLs fit into a few MB. Two different URLs are
+ * practically never taken for the same.
+ *
+ */
+public class UrlSet {
+    private long[] table = new long[1024];
+    private int size;
+
+    /**
+     * @param url
+     * @return true if the URL was not in the set before
+     */
+    public synchronized boolean add(String url) {
+        long fingerprint = fingerprint(url);
+        if (size * 2 >= table.length) {
+            grow();
+        }
+        if (!insert(table, fingerprint)) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private static boolean insert(long[] table, long fingerprint) {
+        int mask = table.length - 1;
+        int i = (int) mix(fingerprint) & mask;
+        while (table[i] != 0) {
+            if (table[i] == fingerprint) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = fingerprint;
+        return true;
+    }
+
+    private void grow() {
+        long[] grown = new long[table.length * 2];
+        for (long fingerprint : table) {
+            if (fingerprint != 0) {
+                insert(grown, fingerprint);
+            }
+        }
+        table = grown;
+    }
+
+    /**
+     * 64-bit FNV-1a hash; 0 marks empty slots and is not used
+     */
+    static long fingerprint(String url) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++) {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+}
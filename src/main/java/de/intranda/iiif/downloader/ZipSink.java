@@ -0,0 +1,51 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a ZIP archive. Entries are stored without compression: images are already compressed, and stored entries can be read directly
+ * at the offset given in the index.
+ *
+ */
+public class ZipSink extends OutputSink {
+    private final ZipOutputStream zip;
+
+    public ZipSink(OutputStream out, Path target) throws IOException {
+        super(out, target);
+        zip = new ZipOutputStream(getOut());
+        zip.setMethod(ZipOutputStream.STORED);
+    }
+
+    @Override
+    protected OutputStream beginEntry(String name, long size, long crc) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(crc);
+        entry.setTime(System.currentTimeMillis());
+        try {
+            zip.putNextEntry(entry);
+        } catch (ZipException e) {
+            // not worth a retry, the entry would still be a duplicate
+            throw new FileAlreadyExistsException(name, null, e.getMessage());
+        }
+        return zip;
+    }
+
+    @Override
+    protected void endEntry(long size) throws IOException {
+        zip.closeEntry();
+    }
+
+    @Override
+    protected void finish() throws IOException {
+        zip.finish();
+    }
+}
@@ -0,0 +1,70 @@
+package de.intranda.iiif.downloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the streaming ALTO text extraction
+ */
+public class AltoTextExtractorTest
+        extends TestCase {
+
+    private static final String ALTO = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<alto xmlns=\"http://www.loc.gov/standards/alto/ns-v4#\"><Layout><Page><PrintSpace>"
+            + "<TextBlock><TextLine><String CONTENT=\"Über\" HPOS=\"10\" VPOS=\"20\" WIDTH=\"30\" HEIGHT=\"12\"/><SP/>"
+            + "<String CONTENT=\"Zei-\" SUBS_TYPE=\"HypPart1\" SUBS_CONTENT=\"Zeilen\" HPOS=\"50\" VPOS=\"20\" WIDTH=\"30\" HEIGHT=\"12\"/>"
+            + "<HYP CONTENT=\"-\"/></TextLine>"
+            + "<TextLine><String CONTENT=\"len\" SUBS_TYPE=\"HypPart2\" SUBS_CONTENT=\"Zeilen\" HPOS=\"10\" VPOS=\"40\" WIDTH=\"20\" HEIGHT=\"12\"/>"
+            + "<SP/><String CONTENT=\"hin\" HPOS=\"40\" VPOS=\"40\" WIDTH=\"20\" HEIGHT=\"12\"/><HYP CONTENT=\"¬\"/></TextLine></TextBlock>"
+            + "<TextBlock><TextLine><String CONTENT=\"&amp;c.\" HPOS=\"10\" VPOS=\"80\" WIDTH=\"20\" HEIGHT=\"12\"/></TextLine></TextBlock>"
+            + "</PrintSpace></Page></Layout></alto>\n";
+
+    public AltoTextExtractorTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AltoTextExtractorTest.class);
+    }
+
+    public void testTextAndWords() throws IOException {
+        StringWriter text = new StringWriter();
+        StringWriter words = new StringWriter();
+        AltoTextExtractor.extract(new ByteArrayInputStream(ALTO.getBytes(StandardCharsets.UTF_8)), text, words);
+        assertEquals("Über Zeilen\nhin¬\n\n&c.\n", text.toString());
+        assertEquals("line\thpos\tvpos\twidth\theight\tcontent\n"
+                + "1\t10\t20\t30\t12\tÜber\n"
+                + "1\t50\t20\t30\t12\tZei-\n"
+                + "2\t10\t40\t20\t12\tlen\n"
+                + "2\t40\t40\t20\t12\thin\n"
+                + "3\t10\t80\t20\t12\t&c.\n", words.toString());
+    }
+
+    public void testStreamIsLeftOpen() throws IOException {
+        boolean[] closed = new boolean[1];
+        InputStream in = new ByteArrayInputStream(ALTO.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        AltoTextExtractor.extract(in, new StringWriter(), null);
+        assertFalse(closed[0]);
+    }
+
+    public void testFileNames() {
+        AltoTextExtractor extractor = new AltoTextExtractor(true, true, false);
+        assertEquals(Paths.get("out/p1.txt"), extractor.primaryFile(Paths.get("out/p1.xml")));
+        assertEquals(Paths.get("out/p1.xml"), AltoTextExtractor.xmlFile(Paths.get("out/p1.txt")));
+        assertEquals(Paths.get("out/p1.words.tsv"), AltoTextExtractor.wordsFile(Paths.get("out/p1.txt")));
+        assertEquals(2, extractor.files(Paths.get("out/p1.txt")).size());
+    }
+}
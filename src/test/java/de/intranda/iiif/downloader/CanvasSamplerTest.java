@@ -0,0 +1,67 @@
+package de.intranda.iiif.downloader;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the seedable canvas sampling
+ */
+public class CanvasSamplerTest
+        extends TestCase {
+
+    public CanvasSamplerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(CanvasSamplerTest.class);
+    }
+
+    public void testSampleIsDistinctSortedAndReproducible() {
+        int[] sample = new CanvasSampler(42).sample(1000, 999);
+        assertEquals(999, sample.length);
+        for (int i = 1; i < sample.length; i++) {
+            assertTrue(sample[i - 1] < sample[i]);
+        }
+        assertTrue(Arrays.equals(sample, new CanvasSampler(42).sample(1000, 999)));
+        assertFalse(Arrays.equals(new CanvasSampler(1).sample(1000, 10), new CanvasSampler(2).sample(1000, 10)));
+        // asking for more than there are takes everything
+        assertEquals(5, new CanvasSampler(42).sample(5, 10).length);
+    }
+
+    public void testStratifiedSample() {
+        List<int[]> chapters = Arrays.asList(new int[] { 1, 2, 3, 4 }, new int[] { 10 }, new int[] { 20, 21, 22 });
+        assertTrue(Arrays.equals(new int[] { 1, 2, 10, 20, 21 }, new CanvasSampler(42).sample(chapters, 2, false)));
+        int[] random = new CanvasSampler(42).sample(chapters, 2, true);
+        assertEquals(5, random.length);
+        assertEquals(10, random[2]);
+        // overlapping groups, e.g. an illustration inside a chapter
+        List<int[]> nested = Arrays.asList(new int[] { 1, 2, 3, 4 }, new int[] { 2, 3 });
+        assertTrue(Arrays.equals(new int[] { 1, 2, 3 }, new CanvasSampler(42).sample(nested, 2, false)));
+    }
+
+    public void testReservoirIsUniform() {
+        int[] counts = new int[10];
+        CanvasSampler sampler = new CanvasSampler(42);
+        for (int run = 0; run < 10000; run++) {
+            CanvasSampler.Reservoir<Integer> reservoir = sampler.reservoir(3);
+            for (int i = 0; i < 10; i++) {
+                reservoir.add(i);
+            }
+            List<Integer> sample = reservoir.getSample();
+            assertEquals(3, sample.size());
+            assertTrue(sample.get(0) < sample.get(1) && sample.get(1) < sample.get(2));
+            for (int i : sample) {
+                counts[i]++;
+            }
+        }
+        // every value is expected 3000 times
+        for (int count : counts) {
+            assertTrue(String.valueOf(count), count > 2700 && count < 3300);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package de.intranda.iiif.downloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for resuming partial downloads with the journal
+ */
+public class DownloadJournalTest
+        extends TestCase {
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] content = new byte[300 * 1024];
+    private final List<String> ranges = new ArrayList<>();
+    private HttpServer server;
+    private Path folder;
+
+    public DownloadJournalTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(DownloadJournalTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        new Random(1).nextBytes(content);
+        folder = Files.createTempDirectory("journal");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/image.jpg", exchange -> {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(range);
+            exchange.getResponseHeaders().set("ETag", ETAG);
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (range == null) {
+                    // announce the whole file, but break off in the middle
+                    exchange.sendResponseHeaders(200, content.length);
+                    out.write(content, 0, content.length / 2);
+                    out.flush();
+                    throw new IOException("connection lost");
+                }
+                int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                exchange.getResponseHeaders().set("Content-Range", String.format("bytes %d-%d/%d", start, content.length - 1, content.length));
+                exchange.sendResponseHeaders(206, content.length - start);
+                out.write(content, start, content.length - start);
+            }
+        });
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        server.stop(0);
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * A download that fails in the middle of the body keeps only the received part, and the next attempt continues after it
+     */
+    public void testResumeAfterFailedBody() throws IOException {
+        String url = String.format("http://127.0.0.1:%d/image.jpg", server.getAddress().getPort());
+        Path target = folder.resolve("image.jpg");
+        try (HttpDownloadClient client = new HttpDownloadClient(2, 2, 5000, 5000, null, null);
+                ProgressReporter progress = new ProgressReporter(new PrintStream(new ByteArrayOutputStream()), false)) {
+            FileDownloader downloader = new FileDownloader(client, null, progress, null, null, null, null, null);
+            DownloadJob job = new DownloadJob(url, folder, j -> {
+            });
+            job.setJournal(DownloadJournal.open(folder));
+            DownloadItem item = new DownloadItem(url, target, DownloadItem.Kind.IMAGE, job);
+            try {
+                downloader.fetch(item);
+                fail("the body was incomplete");
+            } catch (IOException e) {
+                // expected
+            }
+            Path partFile = FileDownloader.partFile(target);
+            long partial = Files.size(partFile);
+            assertTrue(partial > 0 && partial < content.length);
+            assertTrue(Arrays.equals(Arrays.copyOf(content, (int) partial), Files.readAllBytes(partFile)));
+
+            downloader.fetch(item);
+            assertEquals("bytes=" + partial + "-", ranges.get(1));
+            assertTrue(Arrays.equals(content, Files.readAllBytes(target)));
+            assertFalse(Files.exists(partFile));
+            assertTrue(job.getJournal().isComplete(item));
+            job.getJournal().close();
+        }
+    }
+}
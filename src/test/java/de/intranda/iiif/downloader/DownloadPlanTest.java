@@ -0,0 +1,91 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for writing download plans and reading them in shards
+ */
+public class DownloadPlanTest
+        extends TestCase {
+
+    public DownloadPlanTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(DownloadPlanTest.class);
+    }
+
+    public void testShardsSplitThePlan() throws IOException {
+        Path file = Files.createTempFile("plan", ".tsv");
+        try {
+            DownloadPlan.ImageOptions options = new DownloadPlan.ImageOptions(new ImageRequest(null, 0, null, null), false);
+            try (DownloadPlan.Writer writer = new DownloadPlan.Writer(file, options)) {
+                for (int i = 1; i <= 100; i++) {
+                    writer.write(new DownloadPlan.Entry("https://example.com/manifest.json", Paths.get("out"), DownloadItem.Kind.IMAGE,
+                            "https://example.com/" + i + ".jpg", Paths.get(i + ".jpg"), i));
+                }
+            }
+            Set<String> seen = new HashSet<>();
+            for (int shard = 0; shard < 3; shard++) {
+                List<DownloadPlan.Entry> entries = new ArrayList<>();
+                assertEquals(100, DownloadPlan.read(file, shard, 3, entries::add));
+                assertFalse(entries.isEmpty());
+                for (DownloadPlan.Entry entry : entries) {
+                    assertTrue(seen.add(entry.getUrl()));
+                }
+            }
+            assertEquals(100, seen.size());
+
+            List<DownloadPlan.Entry> all = new ArrayList<>();
+            DownloadPlan.read(file, 0, 1, all::add);
+            assertEquals(new DownloadPlan.Entry("https://example.com/manifest.json", Paths.get("out"), DownloadItem.Kind.IMAGE,
+                    "https://example.com/7.jpg", Paths.get("7.jpg"), 7), all.get(6));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public void testImageOptions() throws IOException {
+        Path file = Files.createTempFile("plan", ".tsv");
+        try {
+            DownloadPlan.ImageOptions options = new DownloadPlan.ImageOptions(new ImageRequest("!1000,1000", 2000000, "gray", "png"), false);
+            try (DownloadPlan.Writer writer = new DownloadPlan.Writer(file, options)) {
+                writer.write(new DownloadPlan.Entry("https://example.com/manifest.json", Paths.get("out"), DownloadItem.Kind.SERVICE_IMAGE,
+                        "https://example.com/iiif/1", Paths.get("1.png"), -1));
+            }
+            assertEquals(options, DownloadPlan.readImageOptions(file));
+            assertEquals(1, DownloadPlan.read(file, 0, 1, entry -> assertEquals("https://example.com/iiif/1", entry.getUrl())));
+
+            // plans of earlier versions do not record the images
+            Files.write(file, (DownloadPlan.HEADER + "\n").getBytes());
+            assertNull(DownloadPlan.readImageOptions(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public void testRejectsOtherFiles() throws IOException {
+        Path file = Files.createTempFile("plan", ".tsv");
+        try {
+            Files.write(file, "url\ttarget\n".getBytes());
+            DownloadPlan.read(file, 0, 1, entry -> fail());
+            fail("a file without the header is not a plan");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package de.intranda.iiif.downloader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the access checks of the HTTP API of the server mode
+ */
+public class DownloadServerTest
+        extends TestCase {
+    private static final String JOB = "{\"args\": [\"-m\", \"http://127.0.0.1/manifest.json\", \"-d\", \"/tmp/job\"]}";
+
+    private Path folder;
+    private Path tokenFile;
+    private DownloadServer server;
+    private String token;
+
+    public DownloadServerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(DownloadServerTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        folder = Files.createTempDirectory("server");
+        tokenFile = folder.resolve("server.token");
+        server = new DownloadServer((id, args, priority) -> new ServerJob(id, args.get(1), folder, priority, null, new ServerJob.Loader() {
+            @Override
+            public boolean load(DownloadJob job) {
+                return false;
+            }
+
+            @Override
+            public void finish(DownloadJob job) {
+            }
+        }), 1);
+        server.startHttp(0, tokenFile);
+        token = new String(Files.readAllBytes(tokenFile), StandardCharsets.US_ASCII).trim();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        server.close();
+        Files.deleteIfExists(tokenFile);
+        Files.delete(folder);
+    }
+
+    /**
+     * Sends a request over a plain socket, because HttpURLConnection does not send an Origin header
+     *
+     * @return the status code of the response
+     */
+    private int request(String method, String path, String authorization, String contentType, String origin) throws IOException {
+        byte[] body = "POST".equals(method) ? JOB.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        StringBuilder head = new StringBuilder(method + " " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n");
+        if (authorization != null) {
+            head.append("Authorization: ").append(authorization).append("\r\n");
+        }
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (origin != null) {
+            head.append("Origin: ").append(origin).append("\r\n");
+        }
+        head.append("Content-Length: ").append(body.length).append("\r\n\r\n");
+        try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+            out.write(body);
+            out.flush();
+            String statusLine = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            return Integer.parseInt(statusLine.split(" ")[1]);
+        }
+    }
+
+    public void testTokenFile() throws IOException {
+        assertFalse(token.isEmpty());
+        if (tokenFile.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile)));
+        }
+        server.close();
+        assertFalse(Files.exists(tokenFile));
+    }
+
+    public void testAccessChecks() throws IOException {
+        String bearer = "Bearer " + token;
+        assertEquals(401, request("GET", "/jobs", null, null, null));
+        assertEquals(401, request("GET", "/jobs", "Bearer wrong", null, null));
+        assertEquals(401, request("POST", "/shutdown", null, null, null));
+        assertEquals(200, request("GET", "/jobs", bearer, null, null));
+        // a browser sends an Origin header with cross-site requests
+        assertEquals(403, request("POST", "/jobs", bearer, "application/json", "http://example.com"));
+        assertEquals(415, request("POST", "/jobs", bearer, "application/x-www-form-urlencoded", null));
+        assertEquals(415, request("POST", "/jobs", bearer, "text/plain", null));
+        assertEquals(202, request("POST", "/jobs", bearer, "application/json; charset=utf-8", null));
+    }
+}
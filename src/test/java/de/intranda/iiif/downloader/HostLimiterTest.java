@@ -0,0 +1,92 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the adaptive host limit and the retry decisions of the scheduler
+ */
+public class HostLimiterTest
+        extends TestCase {
+
+    public HostLimiterTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(HostLimiterTest.class);
+    }
+
+    public void testDecreaseAndRecover() throws InterruptedException {
+        HostLimiter limiter = new HostLimiter(8);
+        assertEquals(8, limiter.getLimit());
+        limiter.acquire();
+        limiter.release(HostLimiter.Outcome.OVERLOAD, 1000000);
+        assertEquals(4, limiter.getLimit());
+        // requests failing right after the first one do not halve the limit again
+        limiter.acquire();
+        limiter.release(HostLimiter.Outcome.ERROR, 1000000);
+        assertEquals(4, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(HostLimiter.Outcome.SUCCESS, 1000000);
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    public void testRetryDecisions() {
+        assertTrue(DownloadScheduler.isTransient(new HttpStatusException(503, "u", null)));
+        assertTrue(DownloadScheduler.isTransient(new HttpStatusException(429, "u", null)));
+        assertTrue(DownloadScheduler.isTransient(new IOException("connection reset")));
+        assertFalse(DownloadScheduler.isTransient(new HttpStatusException(404, "u", null)));
+        assertFalse(DownloadScheduler.isTransient(new AccessDeniedException("/tmp/x")));
+        long delay = DownloadScheduler.backoffMs(new HttpStatusException(429, "u", "120"), 0);
+        assertEquals(120000, delay);
+        delay = DownloadScheduler.backoffMs(new IOException(), 2);
+        assertTrue(delay >= 2000 && delay <= 4000);
+        assertEquals(-1, HttpStatusException.parseRetryAfter("soon"));
+        assertEquals(-1, HttpStatusException.parseRetryAfter("99999999999999999999"));
+        assertTrue(DownloadScheduler.backoffMs(new HttpStatusException(503, "u", "999999999999999999"), 0) > 0);
+    }
+
+    public void testSingleRequestRetries() throws IOException {
+        HostLimits limits = new HostLimits(2, 1, null);
+        AtomicInteger attempts = new AtomicInteger();
+        String result = limits.call("http://example.org/tile.jpg", () -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new HttpStatusException(503, "u", null);
+            }
+            return "tile";
+        });
+        assertEquals("tile", result);
+        assertEquals(2, attempts.get());
+        attempts.set(0);
+        try {
+            limits.call("http://example.org/tile.jpg", () -> {
+                attempts.incrementAndGet();
+                throw new IOException("connection reset");
+            });
+            fail("the request always fails");
+        } catch (HostLimits.RetriesExhaustedException e) {
+            // the item of the request is not retried as a whole
+            assertFalse(DownloadScheduler.isTransient(e));
+        }
+        assertEquals(2, attempts.get());
+        // not retried at all
+        attempts.set(0);
+        try {
+            limits.call("http://example.org/tile.jpg", () -> {
+                attempts.incrementAndGet();
+                throw new HttpStatusException(404, "u", null);
+            });
+            fail("the tile does not exist");
+        } catch (HttpStatusException e) {
+            assertEquals(1, attempts.get());
+        }
+    }
+}
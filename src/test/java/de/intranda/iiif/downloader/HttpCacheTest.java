@@ -0,0 +1,100 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the access order and eviction of the download cache
+ */
+public class HttpCacheTest
+        extends TestCase {
+    private Path folder;
+    private Path cacheFolder;
+
+    public HttpCacheTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(HttpCacheTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        folder = Files.createTempDirectory("cache");
+        cacheFolder = folder.resolve("cache");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static void store(HttpCache cache, String url, int size) throws IOException {
+        Path temp = cache.createTempFile(url);
+        Files.write(temp, new byte[size]);
+        cache.release(cache.store(url, temp, "\"" + url + "\"", null));
+    }
+
+    private void age(long millis) throws IOException {
+        // the access times of the entries are only as fine as the file system timestamps
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheFolder)) {
+            for (Path file : files) {
+                Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() - millis));
+            }
+        }
+    }
+
+    public void testHitKeepsModificationTimeOfTarget() throws IOException {
+        HttpCache cache = new HttpCache(cacheFolder, 1000);
+        store(cache, "http://example.org/1.jpg", 100);
+        age(60000);
+        Path target = folder.resolve("1.jpg");
+        HttpCache.Entry entry = cache.lookup("http://example.org/1.jpg");
+        cache.copyTo(entry, target);
+        cache.release(entry);
+        // a hard link shares the modification time with the cache, a hit must not make the file look new
+        assertTrue(Files.getLastModifiedTime(target).toMillis() < System.currentTimeMillis() - 30000);
+    }
+
+    public void testLeastRecentlyUsedSurvivesReopen() throws IOException {
+        HttpCache cache = new HttpCache(cacheFolder, 1000);
+        store(cache, "http://example.org/1.jpg", 400);
+        store(cache, "http://example.org/2.jpg", 400);
+        age(60000);
+        // 1 is used again, so 2 is the least recently used entry
+        HttpCache.Entry entry = cache.lookup("http://example.org/1.jpg");
+        cache.copyTo(entry, folder.resolve("1.jpg"));
+        cache.release(entry);
+
+        cache = new HttpCache(cacheFolder, 1000);
+        store(cache, "http://example.org/3.jpg", 400);
+        assertNotNull(cache.lookup("http://example.org/1.jpg"));
+        assertNull(cache.lookup("http://example.org/2.jpg"));
+    }
+
+    public void testOrphanedMetaFilesAreDeleted() throws IOException {
+        HttpCache cache = new HttpCache(cacheFolder, 1000);
+        store(cache, "http://example.org/1.jpg", 100);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheFolder, "*.data")) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        new HttpCache(cacheFolder, 1000);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheFolder)) {
+            assertFalse(files.iterator().hasNext());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for resolving image requests against info.json documents
+ */
+public class ImageRequestTest
+        extends TestCase {
+    private static final String LEVEL2 = "{\"@context\":\"http://iiif.io/api/image/2/context.json\",\"@id\":\"http://example.com/img1\","
+            + "\"width\":4000,\"height\":3000,\"tiles\":[{\"width\":512,\"scaleFactors\":[1,2,4,8]}],"
+            + "\"profile\":[\"http://iiif.io/api/image/2/level2.json\",{\"maxArea\":4000000,\"qualities\":[\"gray\"]}]}";
+    private static final String LEVEL0 = "{\"id\":\"http://example.com/img2/\",\"type\":\"ImageService3\",\"profile\":\"level0\","
+            + "\"width\":4000,\"height\":3000,\"sizes\":[{\"width\":250,\"height\":188},{\"width\":1000,\"height\":750},"
+            + "{\"width\":2000,\"height\":1500}]}";
+    private static final String LEVEL2_V3 = "{\"id\":\"http://example.com/iiif/img3\",\"type\":\"ImageService3\",\"profile\":\"level2\","
+            + "\"width\":4000,\"height\":3000,\"extraFormats\":[\"webp\"]}";
+
+    private ImageServiceInfo level2;
+    private ImageServiceInfo level0;
+    private ImageServiceInfo level2v3;
+
+    public ImageRequestTest(String testName) throws IOException {
+        super(testName);
+        ObjectMapper mapper = new ObjectMapper();
+        level2 = ImageServiceInfo.parse(mapper.readTree(LEVEL2), "http://example.com/img1");
+        level0 = ImageServiceInfo.parse(mapper.readTree(LEVEL0), "http://example.com/img2");
+        level2v3 = ImageServiceInfo.parse(mapper.readTree(LEVEL2_V3), "http://example.com/iiif/img3");
+    }
+
+    public static Test suite() {
+        return new TestSuite(ImageRequestTest.class);
+    }
+
+    public void testParseInfo() {
+        assertEquals("http://example.com/img1", level2.getId());
+        assertFalse(level2.isVersion3());
+        assertFalse(level2.isLevel0());
+        assertEquals(4000000, level2.getMaxArea());
+        assertTrue(level2.getQualities().contains("gray"));
+        assertEquals("http://example.com/img2", level0.getId());
+        assertTrue(level0.isVersion3());
+        assertTrue(level0.isLevel0());
+        assertEquals(3, level0.getSizes().size());
+        assertEquals(2, level2.getLevel());
+        assertEquals(0, level0.getLevel());
+        assertTrue(level2v3.supports("sizeByConfinedWh"));
+    }
+
+    public void testBuildUrl() throws IOException {
+        // the server limits the area, so "max" is not possible
+        assertEquals("http://example.com/img1/full/2309,/0/default.jpg", new ImageRequest(null, 0, null, null).buildUrl(level2));
+        assertEquals("http://example.com/img1/full/1000,/0/gray.jpg", new ImageRequest("pct:25", 0, "gray", null).buildUrl(level2));
+        assertEquals("http://example.com/img1/full/400,/0/default.jpg", new ImageRequest("!400,400", 0, null, null).buildUrl(level2));
+        assertEquals("http://example.com/img1/full/115,/0/default.jpg", new ImageRequest(null, 10000, null, null).buildUrl(level2));
+        // never scaled up
+        assertEquals("http://example.com/img1/full/4000,1000/0/default.jpg", new ImageRequest("5000,1000", 0, null, null).buildUrl(level2));
+        try {
+            new ImageRequest(null, 0, null, "webp").buildUrl(level2);
+            fail("unsupported format");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testLevel0Sizes() throws IOException {
+        assertEquals("http://example.com/img2/full/max/0/default.jpg", new ImageRequest(null, 0, null, null).buildUrl(level0));
+        assertEquals("http://example.com/img2/full/1000,750/0/default.jpg", new ImageRequest("800,", 0, null, null).buildUrl(level0));
+        assertEquals("http://example.com/img2/full/250,188/0/default.jpg", new ImageRequest("100,", 0, null, null).buildUrl(level0));
+    }
+
+    public void testBuildUrlFromProfile() throws IOException {
+        String other = "http://example.com/iiif/img4/";
+        assertEquals("http://example.com/iiif/", ImageServiceCache.server(other));
+        assertEquals("http://example.com/iiif/img4/full/max/0/default.webp",
+                new ImageRequest(null, 0, null, "webp").buildUrl(other, level2v3));
+        assertEquals("http://example.com/iiif/img4/full/pct:25/0/default.jpg",
+                new ImageRequest("pct:25", 0, null, null).buildUrl(other, level2v3));
+        assertEquals("http://example.com/iiif/img4/full/!400,400/0/default.jpg",
+                new ImageRequest("!400,400", 0, null, null).buildUrl(other, level2v3));
+        // these need the size of the image
+        assertNull(new ImageRequest("400,", 0, null, null).buildUrl(other, level2v3));
+        assertNull(new ImageRequest(null, 10000, null, null).buildUrl(other, level2v3));
+        // Image API 2 may scale up with "!w,h", and the limits of the server need the size of the image
+        assertNull(new ImageRequest("!400,400", 0, null, null).buildUrl(other, level2));
+        assertNull(new ImageRequest("pct:25", 0, null, null).buildUrl(other, level2));
+        assertNull(new ImageRequest("pct:25", 0, null, null).buildUrl(other, level0));
+        try {
+            new ImageRequest(null, 0, "gray", null).buildUrl(other, level2v3);
+            fail("unsupported quality");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testRequestedUrl() {
+        assertEquals("http://example.com/img1/full/!400,400/0/gray.png",
+                new ImageRequest("!400,400", 0, "gray", "png").requestedUrl("http://example.com/img1/", false));
+        assertEquals("http://example.com/img1/full/max/0/default.jpg#max_pixels=10000&tiled",
+                new ImageRequest(null, 10000, null, null).requestedUrl("http://example.com/img1", true));
+    }
+
+    public void testScaleFactor() {
+        assertEquals(1, new ImageRequest(null, 0, null, null).scaleFactor(level2));
+        assertEquals(4, new ImageRequest("1000,", 0, null, null).scaleFactor(level2));
+        assertEquals(8, new ImageRequest("10,", 0, null, null).scaleFactor(level2));
+    }
+
+    public void testInvalidSize() {
+        for (String size : new String[] { "foo", ",", "!100,", "pct:" }) {
+            try {
+                new ImageRequest(size, 0, null, null);
+                fail("invalid size " + size);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package de.intranda.iiif.downloader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the latency histogram of the run report
+ */
+public class LatencyHistogramTest
+        extends TestCase {
+
+    public LatencyHistogramTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(LatencyHistogramTest.class);
+    }
+
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0.0, histogram.getPercentileMs(50));
+        for (int ms = 1; ms <= 100; ms++) {
+            histogram.record(ms * 1000000L);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMeanMs(), 0.001);
+        assertEquals(100.0, histogram.getMaxMs(), 0.001);
+        // percentiles are the upper bounds of their buckets, at most 19 % above the exact value
+        assertTrue(histogram.getPercentileMs(50) >= 50 && histogram.getPercentileMs(50) <= 50 * 1.19);
+        assertTrue(histogram.getPercentileMs(90) >= 90 && histogram.getPercentileMs(90) <= 90 * 1.19);
+        assertEquals(100.0, histogram.getPercentileMs(100), 0.001);
+    }
+
+    public void testBuckets() {
+        assertEquals(0, LatencyHistogram.bucket(0));
+        assertEquals(0, LatencyHistogram.bucket(500));
+        for (long nanos = 2000; nanos < 1000000000000L; nanos *= 3) {
+            int bucket = LatencyHistogram.bucket(nanos);
+            assertTrue(nanos / 1e6 <= LatencyHistogram.upperBoundMs(bucket));
+            assertTrue(nanos / 1e6 > LatencyHistogram.upperBoundMs(bucket - 1));
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package de.intranda.iiif.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Optional;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the manifest index, using canvas IDs from the test manifest only
+ */
+public class ManifestIndexTest
+        extends TestCase {
+    private static final String PAGE_URL = "https://digi.landesbibliothek.at/viewer/api/v1/records/AC03885497/pages/%d/canvas/";
+
+    private JsonNode testManifest;
+    private ManifestIndex index;
+
+    public ManifestIndexTest(String testName) throws IOException {
+        super(testName);
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        mapper.configure(DeserializationFeature.ACCEPT_SINGLE_VALUE_AS_ARRAY, true);
+        try (InputStream in = Files.newInputStream(Paths.get("src/test/resources/AC03885497_manifest.json"))) {
+            testManifest = mapper.readTree(in);
+        }
+        index = new ManifestIndex(testManifest);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ManifestIndexTest.class);
+    }
+
+    private static JsonNode page(int number) {
+        return new TextNode(String.format(PAGE_URL, number));
+    }
+
+    /**
+     * Tests resolving ID-only canvases, with and without trailing slash
+     */
+    public void testGetFullCanvas() {
+        Optional<JsonNode> canvas = index.getFullCanvas(page(11));
+        assertTrue(canvas.isPresent());
+        assertEquals("[7]", canvas.get().get("label").asText());
+
+        String withoutSlash = String.format(PAGE_URL, 11);
+        withoutSlash = withoutSlash.substring(0, withoutSlash.length() - 1);
+        assertTrue(index.getFullCanvas(new TextNode(withoutSlash)).isPresent());
+
+        assertFalse(index.getFullCanvas(new TextNode("https://example.com/canvas/1")).isPresent());
+    }
+
+    /**
+     * Tests the canvas to structure maps against the structure layout of the test manifest
+     */
+    public void testGetStructures() {
+        // second page of a chapter
+        assertEquals(1, index.getStructures(page(12), false).size());
+        assertEquals(0, index.getStructures(page(12), true).size());
+        // first page of a chapter
+        assertEquals(1, index.getStructures(page(11), true).size());
+        // page in a chapter with an illustration, full canvases resolve like ID-only canvases
+        JsonNode fullCanvas = index.getFullCanvas(page(29)).get();
+        assertEquals(2, index.getStructures(fullCanvas, false).size());
+        assertEquals(1, index.getStructures(fullCanvas, true).size());
+    }
+
+    /**
+     * Tests that the index based exclude filter gives the same results as the manifest based one
+     */
+    public void testFilterExcludeCanvas() {
+        LabelValuePair filterAbbildung = new LabelValuePair("Strukturtyp", "Abbildung");
+        LabelValuePair filterKapitel = new LabelValuePair("Strukturtyp", "Kapitel");
+        assertFalse(ManifestQuery.filterExcludeCanvas(page(29), Collections.singletonList(filterAbbildung), true, index));
+        assertTrue(ManifestQuery.filterExcludeCanvas(page(29), Collections.singletonList(filterKapitel), true, index));
+        assertFalse(ManifestQuery.filterExcludeCanvas(page(29), Collections.singletonList(filterKapitel), false, index));
+        assertEquals(ManifestQuery.filterExcludeCanvas(page(29), Collections.singletonList(filterKapitel), false, testManifest),
+                ManifestQuery.filterExcludeCanvas(page(29), Collections.singletonList(filterKapitel), false, index));
+    }
+}
@@ -0,0 +1,216 @@
+package de.intranda.iiif.downloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for writing TAR and ZIP archives and their index
+ */
+public class OutputSinkTest
+        extends TestCase {
+    private static final String SHORT_NAME = "manifest.json";
+    // longer than 100 bytes, but can be split into an ustar prefix and name at a slash
+    private static final String PREFIX_NAME = repeat('d', 60) + "/" + repeat('f', 80) + ".jpg";
+    // longer than 100 bytes without a slash, needs a GNU long name entry
+    private static final String LONG_NAME = repeat('x', 150) + ".jpg";
+    private static final String FILE_NAME = "images/00000001.jpg";
+
+    private Path folder;
+
+    public OutputSinkTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(OutputSinkTest.class);
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        folder = Files.createTempDirectory("sink");
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static byte[] data(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    /**
+     * Writes the entries into an archive
+     *
+     * @return the expected content of every entry, by name
+     */
+    private Map<String, byte[]> write(Path archive) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put(SHORT_NAME, data(10, 1));
+        entries.put(PREFIX_NAME, data(700, 2));
+        entries.put(LONG_NAME, data(1024, 3));
+        entries.put(FILE_NAME, data(513, 4));
+        Path file = folder.resolve("00000001.jpg");
+        Files.write(file, entries.get(FILE_NAME));
+        try (OutputSink sink = OutputSink.open(archive.toString())) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                if (FILE_NAME.equals(entry.getKey())) {
+                    sink.write(entry.getKey(), file);
+                } else {
+                    // a larger buffer than the entry, like the downloads from memory
+                    byte[] buffer = Arrays.copyOf(entry.getValue(), entry.getValue().length + 100);
+                    sink.write(entry.getKey(), buffer, entry.getValue().length);
+                }
+            }
+        }
+        assertTrue(Files.exists(archive));
+        assertFalse(Files.exists(FileDownloader.partFile(archive)));
+        return entries;
+    }
+
+    /**
+     * Checks that the index lists every entry with the offset of its first data byte in the archive
+     */
+    private static void assertIndex(byte[] archive, String index, Map<String, byte[]> entries) {
+        String[] lines = index.split("\n");
+        assertEquals("name\toffset\tsize\tcrc32", lines[0]);
+        assertEquals(entries.size() + 1, lines.length);
+        for (int i = 1; i < lines.length; i++) {
+            String[] fields = lines[i].split("\t");
+            byte[] expected = entries.get(fields[0]);
+            assertNotNull(fields[0], expected);
+            int offset = Integer.parseInt(fields[1]);
+            assertEquals(expected.length, Integer.parseInt(fields[2]));
+            assertTrue(fields[0], Arrays.equals(expected, Arrays.copyOfRange(archive, offset, offset + expected.length)));
+        }
+    }
+
+    public void testTar() throws IOException {
+        Path archive = folder.resolve("out.tar");
+        Map<String, byte[]> entries = write(archive);
+        byte[] tar = Files.readAllBytes(archive);
+        Map<String, byte[]> read = readTar(tar);
+        assertEquals(Arrays.asList(SHORT_NAME, PREFIX_NAME, LONG_NAME, FILE_NAME, OutputSink.INDEX_NAME), Arrays.asList(read.keySet().toArray()));
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            assertTrue(entry.getKey(), Arrays.equals(entry.getValue(), read.get(entry.getKey())));
+        }
+        assertIndex(tar, new String(read.get(OutputSink.INDEX_NAME), StandardCharsets.UTF_8), entries);
+    }
+
+    public void testZip() throws IOException {
+        Path archive = folder.resolve("out.zip");
+        Map<String, byte[]> entries = write(archive);
+        Map<String, byte[]> read = new LinkedHashMap<>();
+        try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(archive))) {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                read.put(entry.getName(), readAll(zip));
+            }
+        }
+        assertEquals(Arrays.asList(SHORT_NAME, PREFIX_NAME, LONG_NAME, FILE_NAME, OutputSink.INDEX_NAME), Arrays.asList(read.keySet().toArray()));
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            assertTrue(entry.getKey(), Arrays.equals(entry.getValue(), read.get(entry.getKey())));
+        }
+        // the central directory has to agree with the entries
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            assertEquals(entries.size() + 1, zip.size());
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                try (InputStream in = zip.getInputStream(zip.getEntry(entry.getKey()))) {
+                    assertTrue(entry.getKey(), Arrays.equals(entry.getValue(), readAll(in)));
+                }
+            }
+        }
+        assertIndex(Files.readAllBytes(archive), new String(read.get(OutputSink.INDEX_NAME), StandardCharsets.UTF_8), entries);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A minimal reader for ustar archives with GNU long names
+     *
+     * @return the content of every entry, by name
+     */
+    private static Map<String, byte[]> readTar(byte[] tar) {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        String longName = null;
+        int pos = 0;
+        while (pos + 512 <= tar.length && tar[pos] != 0) {
+            assertEquals("ustar", field(tar, pos + 257, 6));
+            assertChecksum(tar, pos);
+            String name = field(tar, pos, 100);
+            String prefix = field(tar, pos + 345, 155);
+            int size = Integer.parseInt(field(tar, pos + 124, 12), 8);
+            char type = (char) tar[pos + 156];
+            byte[] data = Arrays.copyOfRange(tar, pos + 512, pos + 512 + size);
+            pos += 512 + (size + 511) / 512 * 512;
+            if (type == 'L') {
+                longName = new String(data, 0, size - 1, StandardCharsets.UTF_8);
+                continue;
+            }
+            assertEquals('0', type);
+            if (longName != null) {
+                name = longName;
+                longName = null;
+            } else if (!prefix.isEmpty()) {
+                name = prefix + "/" + name;
+            }
+            entries.put(name, data);
+        }
+        // the end of the archive are two empty blocks
+        assertEquals(tar.length, pos + 1024);
+        return entries;
+    }
+
+    private static String field(byte[] tar, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && tar[end] != 0) {
+            end++;
+        }
+        return new String(tar, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static void assertChecksum(byte[] tar, int pos) {
+        long checksum = 0;
+        for (int i = 0; i < 512; i++) {
+            checksum += i >= 148 && i < 156 ? ' ' : tar[pos + i] & 0xff;
+        }
+        assertEquals(checksum, Long.parseLong(field(tar, pos + 148, 8).trim(), 8));
+    }
+}
@@ -0,0 +1,39 @@
+package de.intranda.iiif.downloader;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the limits of the request hedger
+ */
+public class RequestHedgerTest
+        extends TestCase {
+
+    public RequestHedgerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(RequestHedgerTest.class);
+    }
+
+    public void testInFlightCapAfterExhaustedBudget() {
+        // 10 % of the requests, at most 2 at the same time
+        try (RequestHedger hedger = new RequestHedger(null, 95, 10, 2, null)) {
+            RequestHedger.Host host = new RequestHedger.Host();
+            host.requests.set(10);
+            host.hedges.set(1);
+            for (int i = 0; i < 5; i++) {
+                assertFalse(hedger.admitHedge(host));
+            }
+            assertEquals(0, host.inFlight.get());
+
+            host.requests.set(100);
+            assertTrue(hedger.admitHedge(host));
+            assertTrue(hedger.admitHedge(host));
+            assertFalse(hedger.admitHedge(host));
+            assertEquals(2, host.inFlight.get());
+        }
+    }
+}
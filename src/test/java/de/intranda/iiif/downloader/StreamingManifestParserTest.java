@@ -0,0 +1,112 @@
+package de.intranda.iiif.downloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the streaming manifest parser
+ */
+public class StreamingManifestParserTest
+        extends TestCase {
+    private static final String PAGE_URL = "https://digi.landesbibliothek.at/viewer/api/v1/records/AC03885497/pages/%d/canvas/";
+
+    private CompactManifest testManifest;
+
+    public StreamingManifestParserTest(String testName) throws IOException {
+        super(testName);
+        testManifest = new CompactManifest();
+        try (InputStream in = Files.newInputStream(Paths.get("src/test/resources/AC03885497_manifest.json"))) {
+            assertTrue(StreamingManifestParser.parse(in, testManifest));
+        }
+        testManifest.compact();
+    }
+
+    public static Test suite() {
+        return new TestSuite(StreamingManifestParserTest.class);
+    }
+
+    /**
+     * Tests that all canvases and structures of the test manifest are extracted
+     */
+    public void testParseManifest() {
+        assertEquals(188, testManifest.size());
+        assertEquals(42, testManifest.getStructureCount());
+        CanvasRecord canvas = testManifest.getCanvases().get(10);
+        assertEquals(String.format(PAGE_URL, 11), canvas.getId());
+        assertEquals("[7]", canvas.getLabel());
+        assertEquals("https://digi.landesbibliothek.at/viewer/api/v1/records/AC03885497/files/images/00000011.tif/full/!400,400/0/default.jpg",
+                canvas.getImageUri());
+        assertNull(canvas.getAltoUri());
+        // multilingual labels are split into one pair per language
+        List<LabelValuePair> titlePage = testManifest.getStructureMetadata(2);
+        assertTrue(titlePage.contains(new LabelValuePair("Strukturtyp", "Titelseite")));
+        assertTrue(titlePage.contains(new LabelValuePair("Structure type", "Title page")));
+    }
+
+    /**
+     * Tests structure selection on the compact manifest
+     */
+    public void testSelectCanvases() {
+        List<LabelValuePair> abbildung = Collections.singletonList(new LabelValuePair("Strukturtyp", "Abbildung"));
+        List<LabelValuePair> kapitel = Collections.singletonList(new LabelValuePair("Strukturtyp", "Kapitel"));
+        List<LabelValuePair> none = new ArrayList<>();
+
+        List<CanvasRecord> images = testManifest.getCanvases(testManifest.selectCanvases(abbildung, none, true));
+        assertEquals(9, images.size());
+        assertEquals(String.format(PAGE_URL, 13), images.get(0).getId());
+
+        // page 29 is an illustration inside a chapter, excluding chapters removes it
+        List<CanvasRecord> withoutChapters = testManifest.getCanvases(testManifest.selectCanvases(abbildung, kapitel, false));
+        assertFalse(withoutChapters.stream().anyMatch(c -> c.getId().equals(String.format(PAGE_URL, 29))));
+        // ... unless only the first pages of chapters are excluded
+        List<CanvasRecord> withoutChapterStarts = testManifest.getCanvases(testManifest.selectCanvases(abbildung, kapitel, true));
+        assertTrue(withoutChapterStarts.stream().anyMatch(c -> c.getId().equals(String.format(PAGE_URL, 29))));
+
+        // page 29 belongs to an illustration and a chapter, but is selected once
+        int[] both = testManifest.selectCanvases(StructureFilter.compile(Arrays.asList("Strukturtyp::Abbildung", "Strukturtyp::Kapitel"), null),
+                false);
+        for (int i = 1; i < both.length; i++) {
+            assertTrue(both[i - 1] < both[i]);
+        }
+        assertTrue(testManifest.getCanvases(both).stream().anyMatch(c -> c.getId().equals(String.format(PAGE_URL, 29))));
+
+        assertEquals(188 - 1, testManifest.selectCanvases(none, Collections.singletonList(new LabelValuePair("Strukturtyp", "Vorwort")), false)
+                .length);
+    }
+
+    /**
+     * Tests ALTO detection and stopping the parser early
+     *
+     * @throws IOException
+     */
+    public void testAltoAndStop() throws IOException {
+        String json = "{\"sequences\":[{\"canvases\":["
+                + "{\"@id\":\"c1\",\"images\":[{\"resource\":{\"@id\":\"i1\"}}],"
+                + "\"seeAlso\":[{\"@id\":\"pdf1\",\"label\":\"PDF\"},{\"@id\":\"alto1\",\"label\":[{\"@value\":\"ALTO\"}]}]},"
+                + "{\"@id\":\"c2\",\"images\":[{\"resource\":{\"@id\":\"i2\"}}],\"seeAlso\":{\"@id\":\"alto2\",\"label\":\"ALTO\"}},"
+                + "{\"@id\":\"c3\",\"images\":[{\"resource\":{\"@id\":\"i3\"}}]}"
+                + "]}]}";
+        List<CanvasRecord> canvases = new ArrayList<>();
+        boolean complete = StreamingManifestParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), c -> {
+            canvases.add(c);
+            return canvases.size() < 2;
+        });
+        assertFalse(complete);
+        assertEquals(2, canvases.size());
+        assertEquals("c1/", canvases.get(0).getId());
+        assertEquals("alto1", canvases.get(0).getAltoUri());
+        assertEquals("alto2", canvases.get(1).getAltoUri());
+    }
+}
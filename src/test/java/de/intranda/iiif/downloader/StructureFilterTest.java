@@ -0,0 +1,90 @@
+package de.intranda.iiif.downloader;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for compiling and matching structure filter expressions
+ */
+public class StructureFilterTest
+        extends TestCase {
+
+    private static final LabelValuePair[] CHAPTER = {
+            new LabelValuePair("MD_ORDERLABELRANGE", "[7] - 10"),
+            new LabelValuePair("Strukturtyp", "Kapitel", "de"),
+            new LabelValuePair("Structure type", "Chapter", "en"),
+            new LabelValuePair("Titel", "Vorwort des Herausgebers", "de"),
+            new LabelValuePair("Datierung", "1930", "de") };
+
+    public StructureFilterTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(StructureFilterTest.class);
+    }
+
+    private static int match(String include, LabelValuePair... metadata) {
+        return StructureFilter.compile(Collections.singletonList(include), null).match(metadata);
+    }
+
+    public void testTerms() {
+        assertEquals(StructureFilter.INCLUDE, match("Strukturtyp::Kapitel", CHAPTER));
+        assertEquals(0, match("Strukturtyp::Kap", CHAPTER));
+        assertEquals(StructureFilter.INCLUDE, match("Titel^=Vorwort", CHAPTER));
+        assertEquals(StructureFilter.INCLUDE, match("Datierung~=^19[0-9]{2}$", CHAPTER));
+        assertEquals(0, match("Datierung~=^18", CHAPTER));
+        assertEquals(StructureFilter.INCLUDE, match("\"Structure type\"@en::\"Chapter\"", CHAPTER));
+        assertEquals(0, match("\"Strukturtyp\"@en::Kapitel", CHAPTER));
+        // the plain form of earlier versions, with spaces in label and value
+        assertEquals(StructureFilter.INCLUDE, match("Titel::Vorwort des Herausgebers", CHAPTER));
+    }
+
+    public void testLegacyForms() {
+        LabelValuePair[] metadata = { new LabelValuePair("Titel (de)", "Kapitel 1)"), new LabelValuePair("Titel@de", "Krieg AND Frieden"),
+                new LabelValuePair(" Signatur ", " 2 Inc. 5 "), new LabelValuePair("Datierung", "um 1900 OR 1901") };
+        // label and value are split at the first '::' and taken as they are
+        assertEquals(StructureFilter.INCLUDE, match("Titel (de)::Kapitel 1)", metadata));
+        assertEquals(StructureFilter.INCLUDE, match("Titel@de::Krieg AND Frieden", metadata));
+        assertEquals(StructureFilter.INCLUDE, match(" Signatur :: 2 Inc. 5 ", metadata));
+        assertEquals(0, match("Signatur::2 Inc. 5", metadata));
+        assertEquals(StructureFilter.INCLUDE, match("Datierung::um 1900 OR 1901", metadata));
+        // a valid expression is not split, even if it could be read as a plain pair
+        assertEquals(0, match("Strukturtyp::Kapitel AND NOT Titel::Vorwort des Herausgebers", CHAPTER));
+    }
+
+    public void testOperators() {
+        assertEquals(StructureFilter.INCLUDE, match("(Strukturtyp::Abbildung OR Strukturtyp::Kapitel) AND NOT Titel^=Inhalt", CHAPTER));
+        assertEquals(0, match("Strukturtyp::Kapitel AND NOT Titel^=Vorwort", CHAPTER));
+        assertEquals(StructureFilter.INCLUDE, match("Strukturtyp::Abbildung OR Strukturtyp::Kapitel AND Datierung::1930", CHAPTER));
+        assertEquals(0, match("(Strukturtyp::Abbildung OR Strukturtyp::Kapitel) AND Datierung::1931", CHAPTER));
+        // a regular expression may contain parentheses
+        assertEquals(StructureFilter.INCLUDE, match("NOT(Titel~=^(Inhalt|Register)) AND Strukturtyp::Kapitel", CHAPTER));
+    }
+
+    public void testIncludeAndExclude() {
+        List<String> include = Arrays.asList("Strukturtyp::Abbildung", "Strukturtyp::Kapitel");
+        StructureFilter filter = StructureFilter.compile(include, Collections.singletonList("Titel^=Vorwort"));
+        assertEquals(StructureFilter.INCLUDE | StructureFilter.EXCLUDE, filter.match(CHAPTER));
+        assertEquals(0, filter.match(new LabelValuePair[] { new LabelValuePair("Strukturtyp", "Einband") }));
+    }
+
+    public void testInvalidExpressions() {
+        // only a single label::value term falls back to the plain form, other mistakes are reported
+        for (String expression : new String[] { "Strukturtyp", "(Titel^=Vorwort", "Titel^=Vorwort)", "Datierung~=[", "Titel@^=Vorwort",
+                "\"Titel::Vorwort", "\"Strukturtyp\"::Kapitel AND", "Titel^=Vorwort AND", "(Titel::Vorwort", "NOT (Titel::Vorwort",
+                "Strukturtyp::Kapitel AND", "Strukturtyp::Kapitel AND Datierung~=[", "Strukturtyp::Kapitel OR (Titel::Vorwort" }) {
+            try {
+                match(expression, CHAPTER);
+                fail(expression + " is not a valid filter");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}